@@ -0,0 +1,274 @@
+package sungro.server;
+
+import sungro.api.*;
+import sungro.server.db.Database;
+import sungro.server.db.InitProfile;
+import sungro.server.db.Migrator;
+import sungro.server.db.WritePipeline;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DatabaseBenchmark {
+    private static final String SESSION_ID = "0123456789abcdef";
+    private static final int THREADS = 8;
+    private static final long DURATION_MILLIS = 5000;
+    private static final long WRITE_DURATION_MILLIS = 2000;
+
+    private final Repo repo;
+    private String sku;
+
+    public DatabaseBenchmark(Repo repo) {
+        this.repo = repo;
+    }
+
+    public static void main(String[] args) throws SQLException, IOException, InterruptedException {
+        for (InitProfile profile : InitProfile.ALL) {
+            String file = "bench-" + profile.getName() + ".db";
+            Files.deleteIfExists(Path.of(file));
+            Files.deleteIfExists(Path.of(file + "-wal"));
+            Files.deleteIfExists(Path.of(file + "-shm"));
+
+            Database database = new Database("jdbc:sqlite:" + file, profile);
+            new Migrator(database).migrate();
+
+            DatabaseBenchmark benchmark = new DatabaseBenchmark(new Repo(database));
+            benchmark.setUp();
+
+            System.out.println("Profile " + profile + ":");
+            benchmark.run();
+            benchmark.runWrites();
+            benchmark.runCommitModes(database);
+            benchmark.runGroupCommit(database.getWritePipeline());
+            System.out.println("  write pool: " + database.getWritePool());
+            System.out.println("  read pool:  " + database.getReadPool());
+
+            database.close();
+        }
+    }
+
+    public void setUp() throws RemoteException {
+        ParamForAddProduct param = new ParamForAddProduct();
+        param.setSessionId(SESSION_ID);
+        param.setName("Benchmark");
+        param.setCategory("Benchmark");
+        param.setProductPrice(BigDecimal.valueOf(100, 2));
+        param.setStatus("Available");
+        repo.addProduct(param);
+
+        ParamForAddStock param1 = new ParamForAddStock();
+        param1.setSessionId(SESSION_ID);
+        param1.setProductId(1);
+        param1.setQuantity(Integer.MAX_VALUE);
+        param1.setExpiryDate(LocalDate.of(2099, 12, 31));
+        sku = repo.addStock(param1).getNewSku();
+    }
+
+    public void run() throws InterruptedException {
+        AtomicLong reads = new AtomicLong();
+        AtomicLong writes = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(() -> {
+                ParamForGetOneProduct getOne = new ParamForGetOneProduct();
+                getOne.setSessionId(SESSION_ID);
+                getOne.setProductId(1);
+
+                ParamForGetManyProducts getMany = new ParamForGetManyProducts();
+                getMany.setSessionId(SESSION_ID);
+                getMany.setName("Bench");
+
+                ParamForAddSale addSale = new ParamForAddSale();
+                addSale.setSessionId(SESSION_ID);
+                addSale.setSku(sku);
+                addSale.setSoldQuantity(1);
+
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        int dice = ThreadLocalRandom.current().nextInt(10);
+
+                        if (dice == 0) {
+                            if (repo.addSale(addSale).getStatus() != ResultForAddSale.Status.SUCCESS) {
+                                errors.incrementAndGet();
+                            }
+                            writes.incrementAndGet();
+                        } else if (dice < 5) {
+                            if (repo.getOneProduct(getOne).getStatus() != ResultForGetOneProduct.Status.SUCCESS) {
+                                errors.incrementAndGet();
+                            }
+                            reads.incrementAndGet();
+                        } else {
+                            if (repo.getManyProducts(getMany).getStatus() != ResultForGetManyProducts.Status.SUCCESS) {
+                                errors.incrementAndGet();
+                            }
+                            reads.incrementAndGet();
+                        }
+                    }
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        double seconds = DURATION_MILLIS / 1000.0;
+        System.out.printf("  reads:  %10.1f ops/s%n", reads.get() / seconds);
+        System.out.printf("  writes: %10.1f ops/s%n", writes.get() / seconds);
+        System.out.printf("  errors: %10d%n", errors.get());
+    }
+
+    // Mutating calls one after another, so each costs its own commit and nothing hides behind the reads
+    public void runWrites() throws RemoteException {
+        ParamForAddSale addSale = new ParamForAddSale();
+        addSale.setSessionId(SESSION_ID);
+        addSale.setSku(sku);
+        addSale.setSoldQuantity(1);
+
+        ParamForSetStock setStock = new ParamForSetStock();
+        setStock.setSessionId(SESSION_ID);
+        setStock.setSku(sku);
+        setStock.setQuantityVaried(-1);
+        setStock.setRemark("Benchmark");
+
+        // Only successful calls count, so a call failing fast can't pass for throughput
+        long sales = 0;
+        long errors = 0;
+        long deadline = System.currentTimeMillis() + WRITE_DURATION_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (repo.addSale(addSale).getStatus() == ResultForAddSale.Status.SUCCESS) {
+                sales++;
+            } else {
+                errors++;
+            }
+        }
+
+        long stockChanges = 0;
+        deadline = System.currentTimeMillis() + WRITE_DURATION_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (repo.setStock(setStock).getStatus() == ResultForSetStock.Status.SUCCESS) {
+                stockChanges++;
+            } else {
+                errors++;
+            }
+        }
+
+        double seconds = WRITE_DURATION_MILLIS / 1000.0;
+        System.out.printf("  addSale:  %8.1f ops/s%n", sales / seconds);
+        System.out.printf("  setStock: %8.1f ops/s%n", stockChanges / seconds);
+        System.out.printf("  errors:   %8d%n", errors);
+    }
+
+    // Every thread selling at once, first with each sale committed on its own and then with sales committed in batches
+    public void runGroupCommit(WritePipeline writePipeline) throws InterruptedException {
+        double seconds = WRITE_DURATION_MILLIS / 1000.0;
+
+        for (int maxBatchSize : new int[]{1, WritePipeline.DEFAULT_MAX_BATCH_SIZE}) {
+            writePipeline.setMaxBatchSize(maxBatchSize);
+
+            long batches = writePipeline.getBatches();
+            long operations = writePipeline.getOperations();
+            AtomicLong sales = new AtomicLong();
+            AtomicLong errors = new AtomicLong();
+            long deadline = System.currentTimeMillis() + WRITE_DURATION_MILLIS;
+
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                Thread thread = new Thread(() -> {
+                    ParamForAddSale addSale = new ParamForAddSale();
+                    addSale.setSessionId(SESSION_ID);
+                    addSale.setSku(sku);
+                    addSale.setSoldQuantity(1);
+
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            if (repo.addSale(addSale).getStatus() == ResultForAddSale.Status.SUCCESS) {
+                                sales.incrementAndGet();
+                            } else {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                    }
+                });
+
+                threads.add(thread);
+                thread.start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            batches = writePipeline.getBatches() - batches;
+            operations = writePipeline.getOperations() - operations;
+            System.out.printf(
+                    "  concurrent addSale, batches of up to %d: %8.1f ops/s, %.1f per batch, %d errors%n", maxBatchSize,
+                    sales.get() / seconds, batches == 0 ? 0 : (double) operations / batches, errors.get()
+            );
+        }
+
+        writePipeline.setMaxBatchSize(WritePipeline.DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    // Repo's own addSale on the writer connection, its statements committed one by one as they were before every
+    // mutation ran in a transaction, then together. The difference is what the extra commits cost under the profile.
+    public void runCommitModes(Database database) throws SQLException {
+        double seconds = WRITE_DURATION_MILLIS / 1000.0;
+
+        ParamForAddSale addSale = new ParamForAddSale();
+        addSale.setSessionId(SESSION_ID);
+        addSale.setSku(sku);
+        addSale.setSoldQuantity(1);
+
+        for (boolean autoCommit : new boolean[]{true, false}) {
+            long count = 0;
+            long errors = 0;
+            long deadline = System.currentTimeMillis() + WRITE_DURATION_MILLIS;
+
+            try (Connection connection = database.getWriteConnection()) {
+                connection.setAutoCommit(autoCommit);
+
+                while (System.currentTimeMillis() < deadline) {
+                    ResultForAddSale result = repo.addSale(connection, new WritePipeline.AfterCommit(), addSale);
+
+                    if (!autoCommit) {
+                        connection.commit();
+                    }
+
+                    if (result.getStatus() == ResultForAddSale.Status.SUCCESS) {
+                        count++;
+                    } else {
+                        errors++;
+                    }
+                }
+
+                connection.setAutoCommit(true);
+            }
+
+            System.out.printf(
+                    "  addSale statements, %s: %8.1f ops/s, %d errors%n",
+                    autoCommit ? "autocommit" : "one transaction", count / seconds, errors
+            );
+        }
+    }
+}
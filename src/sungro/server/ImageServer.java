@@ -0,0 +1,214 @@
+package sungro.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import sungro.server.db.Database;
+import sungro.server.db.ImageStore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Serves stored pictures over HTTP at /images/<hash>, so clients can load them outside RMI, where each one is copied
+// into result objects and through serialization. The file goes from its channel straight to the response, and as the
+// content at a hash never changes, clients may cache it until the URL expires and revalidate with If-None-Match.
+//
+// Every request needs a URL signed by ImageUrls, which getPicture hands out after its session and permission checks,
+// so knowing a hash isn't enough. A hash no row refers to any more is not served, even while its file waits for
+// collect.
+public class ImageServer {
+    public static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
+    public static final int DEFAULT_THREADS = 16;
+
+    private static final String PREFIX = "/images/";
+
+    private final Database database;
+    private final ImageStore imageStore;
+    private final ImageUrls imageUrls;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public ImageServer(Database database, ImageUrls imageUrls, InetSocketAddress address) throws IOException {
+        this(database, imageUrls, address, DEFAULT_THREADS);
+    }
+
+    public ImageServer(
+            Database database, ImageUrls imageUrls, InetSocketAddress address, int threads
+    ) throws IOException {
+        this.database = database;
+        this.imageStore = database.getImageStore();
+        this.imageUrls = imageUrls;
+
+        AtomicInteger count = new AtomicInteger();
+
+        // The default runs every exchange on the dispatcher thread, so one slow client would hold up the rest
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "image-server-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext(PREFIX, this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String hash = exchange.getRequestURI().getPath().substring(PREFIX.length());
+            String etag = "\"" + hash + "\"";
+
+            long maxAge = imageUrls.verify(hash, exchange.getRequestURI().getRawQuery(), SessionSweeper.now());
+            if (maxAge < 0) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+
+            try {
+                if (!isReferenced(hash)) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+            } catch (SQLException throwables) {
+                throwables.printStackTrace();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+
+            FileChannel channel;
+
+            try {
+                channel = imageStore.open(hash);
+            } catch (IllegalArgumentException | NoSuchFileException e) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            try (channel) {
+                exchange.getResponseHeaders().set("ETag", etag);
+                // Private, as the picture may be a user's own, and no longer than the URL is good for
+                exchange.getResponseHeaders().set("Cache-Control", "private, max-age=" + maxAge);
+
+                if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+
+                long size = channel.size();
+                exchange.getResponseHeaders().set("Content-Type", getContentType(channel));
+
+                if (method.equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Content-Length", Long.toString(size));
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+
+                exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+
+                try (OutputStream body = exchange.getResponseBody()) {
+                    WritableByteChannel target = Channels.newChannel(body);
+                    long position = 0;
+
+                    while (position < size) {
+                        position += channel.transferTo(position, size - position, target);
+                    }
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private boolean isReferenced(String hash) throws SQLException {
+        try (Connection connection = database.getReadConnection()) {
+            return imageStore.isReferenced(connection, hash);
+        }
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // The store keeps no content type, so it is told from the first bytes of the file
+    private static String getContentType(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        channel.read(header, 0);
+        header.flip();
+
+        if (startsWith(header, 0x89, 'P', 'N', 'G')) {
+            return "image/png";
+        } else if (startsWith(header, 0xff, 0xd8, 0xff)) {
+            return "image/jpeg";
+        } else if (startsWith(header, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        } else if (startsWith(header, 'B', 'M')) {
+            return "image/bmp";
+        }
+
+        return "application/octet-stream";
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int... bytes) {
+        if (buffer.remaining() < bytes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < bytes.length; i++) {
+            if ((buffer.get(i) & 0xff) != bytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,101 @@
+package sungro.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+// Signed, expiring URLs for ImageServer, so a picture is only served to someone getPicture gave it to, and so only
+// after the session and permission checks there. A URL can't be revoked, but it dies with its expiry.
+//
+// The expiry is rounded up to a whole TTL, so every URL for a hash within one TTL is the same and clients can cache it.
+// A URL therefore lasts between one and two TTLs.
+public class ImageUrls {
+    public static final long DEFAULT_TTL_SECONDS = 3600;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String PREFIX = "/images/";
+
+    private final SecretKeySpec key;
+    private final long ttlSeconds;
+
+    // Mac instances aren't thread-safe
+    private final ThreadLocal<Mac> macs;
+
+    public ImageUrls(byte[] key, long ttlSeconds) {
+        if (key.length < SessionTokens.KEY_LENGTH) {
+            throw new IllegalArgumentException("Image URL key must be at least " + SessionTokens.KEY_LENGTH + " bytes");
+        }
+
+        if (ttlSeconds < 1) {
+            throw new IllegalArgumentException("Image URL TTL must be at least 1 second");
+        }
+
+        this.key = new SecretKeySpec(key, ALGORITHM);
+        this.ttlSeconds = ttlSeconds;
+
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(this.key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    // The path and query on the image server, or an empty string for no picture
+    public String sign(String hash, long now) {
+        if (hash.isEmpty()) {
+            return "";
+        }
+
+        long expires = (now / ttlSeconds + 2) * ttlSeconds;
+        return PREFIX + hash + "?expires=" + expires + "&sig=" + mac(hash, expires);
+    }
+
+    // Seconds until the URL expires, or -1 unless the query is a correct, unexpired signature for the hash
+    public long verify(String hash, String query, long now) {
+        if (query == null) {
+            return -1;
+        }
+
+        String expiresParam = null;
+        String sigParam = null;
+
+        for (String pair : query.split("&")) {
+            if (pair.startsWith("expires=")) {
+                expiresParam = pair.substring("expires=".length());
+            } else if (pair.startsWith("sig=")) {
+                sigParam = pair.substring("sig=".length());
+            }
+        }
+
+        if (expiresParam == null || sigParam == null) {
+            return -1;
+        }
+
+        long expires;
+
+        try {
+            expires = Long.parseLong(expiresParam);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        byte[] expected = mac(hash, expires).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(sigParam.getBytes(StandardCharsets.US_ASCII), expected) || expires <= now) {
+            return -1;
+        }
+
+        return expires - now;
+    }
+
+    private String mac(String hash, long expires) {
+        byte[] mac = macs.get().doFinal((hash + ":" + expires).getBytes(StandardCharsets.US_ASCII));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(mac);
+    }
+}
@@ -0,0 +1,65 @@
+package sungro.server;
+
+// Server-side paging options for the getMany* endpoints that the sungro-api parameters don't carry yet.
+// Setting a cursor switches from "limit 20 offset (page - 1) * 20" to a keyset seek past the last row the client
+// has seen, which stays cheap on deep pages and stable under concurrent inserts.
+public class ListOptions {
+    private int afterId;
+    private String afterSku = "";
+    private CountMode countMode = CountMode.EXACT;
+    private boolean withPictures = true;
+    private int thumbnailSize;
+
+    public int getAfterId() {
+        return afterId;
+    }
+
+    // UserID for getManyUsers, ProductID for getManyProducts, SaleID for getManySales
+    public void setAfterId(int afterId) {
+        this.afterId = afterId;
+    }
+
+    public String getAfterSku() {
+        return afterSku;
+    }
+
+    // SKU for getManyStock
+    public void setAfterSku(String afterSku) {
+        this.afterSku = afterSku;
+    }
+
+    public CountMode getCountMode() {
+        return countMode;
+    }
+
+    public void setCountMode(CountMode countMode) {
+        this.countMode = countMode;
+    }
+
+    public boolean isWithPictures() {
+        return withPictures;
+    }
+
+    // False leaves ProfilePic and ProductPic empty, so a page doesn't carry up to 20 pictures. Clients fetch the
+    // pictures they show with getPicture, which answers NOT_MODIFIED for those they already have.
+    public void setWithPictures(boolean withPictures) {
+        this.withPictures = withPictures;
+    }
+
+    public int getThumbnailSize() {
+        return thumbnailSize;
+    }
+
+    // One of Thumbnailer.SIZES for thumbnails instead of the original pictures, 0 for the originals. A picture whose
+    // thumbnails aren't ready yet is returned as it is.
+    public void setThumbnailSize(int thumbnailSize) {
+        this.thumbnailSize = thumbnailSize;
+    }
+
+    public enum CountMode {
+        // maxPage is computed from the exact number of matching rows
+        EXACT,
+        // No count at all: maxPage is currentPage + 1 when another page exists, otherwise currentPage
+        HAS_MORE
+    }
+}
@@ -0,0 +1,220 @@
+package sungro.server;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Token buckets in front of login, one per email and one shared by all, so a flood of attempts is turned away before it
+// costs a password hash or a query. The per-email bucket slows down guessing at one account. The global one caps the
+// hashing load whatever emails are tried. A successful login hands its per-email token back, so only failures count
+// against an account.
+//
+// Every bucket is a single AtomicLong updated by compare-and-set. Buckets that have refilled completely hold no
+// information and are evicted once a minute by whichever attempt comes along first. An email only gets a bucket once an
+// attempt at it has passed the global one, so a spray of made-up emails fills the map no faster than the global rate.
+// Should it fill all the same, further emails share a fixed set of buckets by hash instead of going unchecked.
+public class LoginThrottle implements LoginThrottleMXBean {
+    public static final int DEFAULT_EMAIL_CAPACITY = 10;
+    public static final int DEFAULT_EMAIL_PER_MINUTE = 10;
+    public static final int DEFAULT_GLOBAL_CAPACITY = 100;
+    public static final int DEFAULT_GLOBAL_PER_MINUTE = 1200;
+
+    // Emails tracked at most. Past that, new emails are held to the shared buckets.
+    public static final int DEFAULT_MAX_EMAILS = 100_000;
+    private static final int SHARED_BUCKETS = 4096;
+    private static final long EVICT_INTERVAL_MILLIS = 60_000;
+
+    // A token is 60000 units, so a bucket refilling n tokens a minute gains n units a millisecond
+    private static final long UNITS_PER_TOKEN = 60_000;
+    private static final int TIME_BITS = 38;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    private static final long MAX_UNITS = (1L << (64 - TIME_BITS)) - 1;
+
+    private final long started = System.currentTimeMillis();
+
+    private final int emailCapacity;
+    private final int emailPerMinute;
+    private final int maxEmails;
+
+    private final Bucket global;
+    private final ConcurrentHashMap<String, Bucket> emails = new ConcurrentHashMap<>();
+    private final Bucket[] shared = new Bucket[SHARED_BUCKETS];
+    private final AtomicLong lastEvicted = new AtomicLong();
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder throttledByEmail = new LongAdder();
+    private final LongAdder throttledGlobally = new LongAdder();
+
+    public LoginThrottle() {
+        this(DEFAULT_EMAIL_CAPACITY, DEFAULT_EMAIL_PER_MINUTE, DEFAULT_GLOBAL_CAPACITY, DEFAULT_GLOBAL_PER_MINUTE);
+    }
+
+    public LoginThrottle(int emailCapacity, int emailPerMinute, int globalCapacity, int globalPerMinute) {
+        this(emailCapacity, emailPerMinute, globalCapacity, globalPerMinute, DEFAULT_MAX_EMAILS);
+    }
+
+    public LoginThrottle(
+            int emailCapacity, int emailPerMinute, int globalCapacity, int globalPerMinute, int maxEmails
+    ) {
+        if (Math.max(emailCapacity, globalCapacity) * UNITS_PER_TOKEN > MAX_UNITS) {
+            throw new IllegalArgumentException("Login throttle capacity is too large");
+        }
+
+        this.emailCapacity = emailCapacity;
+        this.emailPerMinute = emailPerMinute;
+        this.maxEmails = maxEmails;
+
+        global = new Bucket(globalCapacity, globalPerMinute, 0);
+
+        for (int i = 0; i < shared.length; i++) {
+            shared[i] = new Bucket(emailCapacity, emailPerMinute, 0);
+        }
+    }
+
+    // Takes a token from the email's bucket and then from the global one. False means the attempt must be refused.
+    public boolean tryAcquire(String email) {
+        long now = System.currentTimeMillis() - started;
+        evict(now);
+
+        String key = email.toLowerCase(Locale.ROOT);
+        Bucket bucket = find(key);
+
+        if (bucket != null && !bucket.tryAcquire(now)) {
+            throttledByEmail.increment();
+            return false;
+        }
+
+        // Checked second, so attempts already refused for their email don't use up everybody else's tokens
+        if (!global.tryAcquire(now)) {
+            if (bucket != null) {
+                bucket.release(now);
+            }
+
+            throttledGlobally.increment();
+            return false;
+        }
+
+        if (bucket == null) {
+            bucket = emails.computeIfAbsent(key, k -> new Bucket(emailCapacity, emailPerMinute, now));
+
+            // Made meanwhile by other attempts at the same email, which took its last token
+            if (!bucket.tryAcquire(now)) {
+                global.release(now);
+                throttledByEmail.increment();
+                return false;
+            }
+        }
+
+        allowed.increment();
+        return true;
+    }
+
+    public void succeeded(String email) {
+        Bucket bucket = find(email.toLowerCase(Locale.ROOT));
+
+        if (bucket != null) {
+            bucket.release(System.currentTimeMillis() - started);
+        }
+    }
+
+    @Override
+    public long getAllowed() {
+        return allowed.sum();
+    }
+
+    @Override
+    public long getThrottledByEmail() {
+        return throttledByEmail.sum();
+    }
+
+    @Override
+    public long getThrottledGlobally() {
+        return throttledGlobally.sum();
+    }
+
+    @Override
+    public int getTrackedEmails() {
+        return emails.size();
+    }
+
+    // The email's own bucket, a shared one if the map is full, or null if the email is new and may get its own
+    private Bucket find(String key) {
+        Bucket bucket = emails.get(key);
+
+        if (bucket == null && emails.size() >= maxEmails) {
+            bucket = shared[(key.hashCode() & Integer.MAX_VALUE) % shared.length];
+        }
+
+        return bucket;
+    }
+
+    private void evict(long now) {
+        long last = lastEvicted.get();
+
+        if (now - last < EVICT_INTERVAL_MILLIS || !lastEvicted.compareAndSet(last, now)) {
+            return;
+        }
+
+        // A full bucket behaves exactly like a missing one. remove(key, value) keeps a bucket replaced meanwhile.
+        emails.forEach((key, bucket) -> {
+            if (bucket.isFull(now)) {
+                emails.remove(key, bucket);
+            }
+        });
+    }
+
+    // Units in the high bits and the time of the last update, in milliseconds since the throttle started, in the low
+    private static class Bucket {
+        private final long capacity;
+        private final long perMillisecond;
+        private final AtomicLong state;
+
+        Bucket(int capacity, int perMinute, long now) {
+            this.capacity = capacity * UNITS_PER_TOKEN;
+            this.perMillisecond = perMinute;
+            this.state = new AtomicLong(pack(this.capacity, now));
+        }
+
+        boolean tryAcquire(long now) {
+            while (true) {
+                long current = state.get();
+                long units = refilled(current, now);
+
+                if (units < UNITS_PER_TOKEN) {
+                    return false;
+                }
+
+                if (state.compareAndSet(current, pack(units - UNITS_PER_TOKEN, now))) {
+                    return true;
+                }
+            }
+        }
+
+        void release(long now) {
+            while (true) {
+                long current = state.get();
+                long units = Math.min(capacity, refilled(current, now) + UNITS_PER_TOKEN);
+
+                if (state.compareAndSet(current, pack(units, now))) {
+                    return;
+                }
+            }
+        }
+
+        boolean isFull(long now) {
+            return refilled(state.get(), now) >= capacity;
+        }
+
+        private long refilled(long state, long now) {
+            long units = state >>> TIME_BITS;
+            long elapsed = Math.max(0, now - (state & TIME_MASK));
+
+            return Math.min(capacity, units + elapsed * perMillisecond);
+        }
+
+        private static long pack(long units, long now) {
+            return units << TIME_BITS | now & TIME_MASK;
+        }
+    }
+}
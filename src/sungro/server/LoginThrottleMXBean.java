@@ -0,0 +1,11 @@
+package sungro.server;
+
+public interface LoginThrottleMXBean {
+    long getAllowed();
+
+    long getThrottledByEmail();
+
+    long getThrottledGlobally();
+
+    int getTrackedEmails();
+}
@@ -1,31 +1,251 @@
 package sungro.server;
 
 import sungro.server.db.Database;
+import sungro.server.db.ImageStore;
+import sungro.server.db.IndexAdvisor;
+import sungro.server.db.InitProfile;
 import sungro.server.db.Migrator;
+import sungro.server.db.PictureCache;
+import sungro.server.db.SalesRollups;
+import sungro.server.db.WritePipeline;
 
-import java.rmi.RemoteException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class Main {
-    public static void main(String[] args) throws RemoteException, SQLException {
-        System.out.println("Connecting to database...");
-        Database database = new Database("jdbc:sqlite:sample.db");
+    public static void main(String[] args) throws IOException, SQLException {
+        InitProfile profile = InitProfile.WAL;
+        boolean adviseIndexes = false;
+        boolean rebuildRollups = false;
+        long slowQueryMillis = -1;
+        boolean slowQueryValues = false;
+        long sessionIdleMinutes = SessionSweeper.DEFAULT_IDLE_TTL_SECONDS / 60;
+        long sessionMaxHours = SessionSweeper.DEFAULT_ABSOLUTE_TTL_SECONDS / 60 / 60;
+        Path sessionTokenKey = null;
+        long passwordHashMillis = 50;
+        String passwordHashAlgorithm = PasswordEncoder.SHA1;
+        boolean blobFreeLists = false;
+        int listThumbnailSize = 0;
+        int imagePort = 0;
+        String imageBind = ImageServer.DEFAULT_BIND_ADDRESS;
+        long pictureCacheMegabytes = PictureCache.DEFAULT_CAPACITY_BYTES / 1024 / 1024;
+        int writeBatchSize = WritePipeline.DEFAULT_MAX_BATCH_SIZE;
+        long writeLingerMillis = WritePipeline.DEFAULT_MAX_LINGER_MILLIS;
+
+        for (String arg : args) {
+            if (arg.startsWith("--profile=")) {
+                profile = InitProfile.of(arg.substring("--profile=".length()));
+            } else if (arg.equals("--advise-indexes")) {
+                adviseIndexes = true;
+            } else if (arg.equals("--rebuild-rollups")) {
+                rebuildRollups = true;
+            } else if (arg.startsWith("--slow-query-millis=")) {
+                slowQueryMillis = Long.parseLong(arg.substring("--slow-query-millis=".length()));
+            } else if (arg.equals("--debug-slow-query-values")) {
+                slowQueryValues = true;
+            } else if (arg.startsWith("--session-idle-minutes=")) {
+                sessionIdleMinutes = Long.parseLong(arg.substring("--session-idle-minutes=".length()));
+            } else if (arg.startsWith("--session-max-hours=")) {
+                sessionMaxHours = Long.parseLong(arg.substring("--session-max-hours=".length()));
+            } else if (arg.startsWith("--session-token-key=")) {
+                sessionTokenKey = Path.of(arg.substring("--session-token-key=".length()));
+            } else if (arg.startsWith("--password-hash-millis=")) {
+                passwordHashMillis = Long.parseLong(arg.substring("--password-hash-millis=".length()));
+            } else if (arg.equals("--password-hash-sha256")) {
+                passwordHashAlgorithm = PasswordEncoder.SHA256;
+            } else if (arg.equals("--blob-free-lists")) {
+                blobFreeLists = true;
+            } else if (arg.startsWith("--list-thumbnail-size=")) {
+                listThumbnailSize = Integer.parseInt(arg.substring("--list-thumbnail-size=".length()));
+            } else if (arg.startsWith("--image-port=")) {
+                imagePort = Integer.parseInt(arg.substring("--image-port=".length()));
+            } else if (arg.startsWith("--image-bind=")) {
+                imageBind = arg.substring("--image-bind=".length());
+            } else if (arg.startsWith("--picture-cache-mb=")) {
+                pictureCacheMegabytes = Long.parseLong(arg.substring("--picture-cache-mb=".length()));
+            } else if (arg.startsWith("--write-batch-size=")) {
+                writeBatchSize = Integer.parseInt(arg.substring("--write-batch-size=".length()));
+            } else if (arg.startsWith("--write-linger-millis=")) {
+                writeLingerMillis = Long.parseLong(arg.substring("--write-linger-millis=".length()));
+            }
+        }
+
+        System.out.println("Connecting to database with profile " + profile + "...");
+        Database database = new Database("jdbc:sqlite:sample.db", profile);
         System.out.println("Database connected");
 
+        // The statements clients run, for the advisor at shutdown
+        database.setRecordPreparedSql(adviseIndexes);
+
+        // Off the heap, so it doesn't count against -Xmx but against -XX:MaxDirectMemorySize. 0 turns it off.
+        database.getImageStore().setPictureCache(new PictureCache(pictureCacheMegabytes * 1024 * 1024));
+
+        // A batch size of 1 commits every stock and sale write on its own
+        database.getWritePipeline().setMaxBatchSize(writeBatchSize);
+        database.getWritePipeline().setMaxLingerMillis(writeLingerMillis);
+
+        if (slowQueryMillis >= 0) {
+            database.getQueryStats().setSlowThresholdMillis(slowQueryMillis);
+        }
+
+        // Writes session IDs and password hashes to the log, so only for debugging on a copy of the data
+        database.getQueryStats().setLogValues(slowQueryValues);
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    database.getQueryStats(), new ObjectName("sungro.server:type=QueryStats")
+            );
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    database.getImageStore().getPictureCache(), new ObjectName("sungro.server:type=PictureCache")
+            );
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    database.getWritePipeline(), new ObjectName("sungro.server:type=WritePipeline")
+            );
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+
+        // Stored hashes below the calibrated cost are upgraded as their users log in
+        if (passwordHashMillis > 0) {
+            System.out.println("Calibrating password hashing...");
+            int iteration = PasswordEncoder.calibrate(passwordHashAlgorithm, passwordHashMillis);
+            System.out.println("Password hashing uses " + passwordHashAlgorithm + " with " + iteration + " iterations");
+        } else {
+            PasswordEncoder.configure(passwordHashAlgorithm, PasswordEncoder.getIteration());
+        }
+
         System.out.println("Migrating database...");
         Migrator migrator = new Migrator(database);
         migrator.migrate();
         System.out.println("Database migrated");
 
+        if (rebuildRollups) {
+            System.out.println("Rebuilding sales rollups...");
+
+            try (Connection connection = database.getWriteConnection()) {
+                connection.setAutoCommit(false);
+                SalesRollups.rebuild(connection);
+                connection.commit();
+            }
+
+            System.out.println("Sales rollups rebuilt");
+        }
+
         System.out.println("Creating and binding Repo...");
-        sungro.api.Repo repo = new Repo(database);
+        SessionCache sessionCache = new SessionCache();
+        SessionSweeper sessionSweeper = new SessionSweeper(
+                database, sessionCache, sessionIdleMinutes * 60, sessionMaxHours * 60 * 60
+        );
+
+        // Signed tokens instead of Sessions rows. Every server sharing the key file accepts the others' tokens.
+        SessionTokens sessionTokens = null;
+
+        if (sessionTokenKey != null) {
+            if (!Files.exists(sessionTokenKey)) {
+                System.out.println("Generating session token key " + sessionTokenKey + "...");
+                Files.write(sessionTokenKey, SessionTokens.generateKey());
+            }
+
+            sessionTokens = new SessionTokens(Files.readAllBytes(sessionTokenKey), sessionMaxHours * 60 * 60);
+            sessionTokens.start(database, SessionTokens.DEFAULT_RELOAD_SECONDS);
+        }
+
+        Repo repo = new Repo(database, sessionCache, sessionSweeper, sessionTokens);
+
+        // Only for clients that fetch pictures with getPicture
+        repo.setWithPictures(!blobFreeLists);
+        // Only for clients that show list pictures at one of Thumbnailer.SIZES
+        repo.setThumbnailSize(listThumbnailSize);
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    sessionCache, new ObjectName("sungro.server:type=SessionCache")
+            );
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    sessionSweeper, new ObjectName("sungro.server:type=SessionSweeper")
+            );
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    repo.getPasswordHasher(), new ObjectName("sungro.server:type=PasswordHasher")
+            );
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    repo.getLoginThrottle(), new ObjectName("sungro.server:type=LoginThrottle")
+            );
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    repo.getThumbnailer(), new ObjectName("sungro.server:type=Thumbnailer")
+            );
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+
+        sessionSweeper.start(SessionSweeper.DEFAULT_INTERVAL_SECONDS);
+        database.getImageStore().start(database, ImageStore.DEFAULT_COLLECT_INTERVAL_SECONDS);
+
+        // Pictures stored before thumbnails existed, or turned away by a full queue, one at a time in the background
+        repo.getThumbnailer().start(Thumbnailer.DEFAULT_RETRY_INTERVAL_SECONDS);
+
         sungro.api.Repo stub = (sungro.api.Repo) UnicastRemoteObject.exportObject(repo, 0);
 
         Registry registry = LocateRegistry.createRegistry(1099);
         registry.rebind("Repo", stub);
         System.out.println("Repo bound");
+
+        // Pictures by signed URL over HTTP, beside RMI. Off unless given a port, and only on loopback unless given an
+        // address, as for a reverse proxy in front of it. The key lives as long as the process, and so do the URLs.
+        ImageServer imageServer = null;
+
+        if (imagePort != 0) {
+            ImageUrls imageUrls = new ImageUrls(SessionTokens.generateKey(), ImageUrls.DEFAULT_TTL_SECONDS);
+            repo.setImageUrls(imageUrls);
+
+            imageServer = new ImageServer(database, imageUrls, new InetSocketAddress(imageBind, imagePort));
+            imageServer.start();
+            System.out.println("Image server listening on " + imageBind + ":" + imageServer.getPort());
+        }
+
+        boolean advise = adviseIndexes;
+        SessionTokens tokens = sessionTokens;
+        ImageServer images = imageServer;
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (advise) {
+                // Everything the clients actually ran, plus the list shapes they haven't hit yet
+                Set<String> sqls = new TreeSet<>(database.getPreparedSql());
+                sqls.addAll(repo.getListSql());
+
+                try {
+                    IndexAdvisor advisor = new IndexAdvisor(database);
+                    advisor.report(advisor.advise(sqls), System.out);
+                } catch (SQLException throwables) {
+                    throwables.printStackTrace();
+                }
+            }
+
+            if (tokens != null) {
+                tokens.stop();
+            }
+
+            if (images != null) {
+                images.stop();
+            }
+
+            sessionSweeper.stop();
+            repo.getThumbnailer().stop();
+            repo.getThumbnailer().shutdown();
+            repo.getPasswordHasher().shutdown();
+            database.getImageStore().stop();
+            database.close();
+        }));
     }
 }
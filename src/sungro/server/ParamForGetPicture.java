@@ -0,0 +1,65 @@
+package sungro.server;
+
+import java.io.Serializable;
+
+// Server-side until sungro-api has a matching parameter class
+public class ParamForGetPicture implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String sessionId = "";
+    private Kind kind = Kind.PRODUCT;
+    private int id;
+    private String knownHash = "";
+    private int size;
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public void setKind(Kind kind) {
+        this.kind = kind;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    // UserID for USER, ProductID for PRODUCT
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public String getKnownHash() {
+        return knownHash;
+    }
+
+    // The hash of the copy the client already has, if any. When it is still current the result is NOT_MODIFIED and
+    // carries no picture.
+    public void setKnownHash(String knownHash) {
+        this.knownHash = knownHash;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    // One of Thumbnailer.SIZES for a thumbnail, with the original standing in until it is ready. 0 is the original.
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public enum Kind {
+        // Users.ProfilePic
+        USER,
+        // Products.ProductPic
+        PRODUCT
+    }
+}
@@ -0,0 +1,28 @@
+package sungro.server;
+
+import java.io.Serializable;
+
+// Server-side until sungro-api has a matching parameter class
+public class ParamForGetQueryStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String sessionId = "";
+    private boolean reset;
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    // Clears the statistics after taking the snapshot, so the next call covers only what ran in between
+    public void setReset(boolean reset) {
+        this.reset = reset;
+    }
+}
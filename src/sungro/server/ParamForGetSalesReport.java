@@ -0,0 +1,57 @@
+package sungro.server;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+
+// Server-side until sungro-api has a matching parameter class
+public class ParamForGetSalesReport implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String sessionId = "";
+    private GroupBy groupBy = GroupBy.PRODUCT;
+    private LocalDate fromDate = LocalDate.of(1970, 1, 1);
+    private LocalDate toDate = LocalDate.of(1970, 1, 1);
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public GroupBy getGroupBy() {
+        return groupBy;
+    }
+
+    public void setGroupBy(GroupBy groupBy) {
+        this.groupBy = groupBy;
+    }
+
+    public LocalDate getFromDate() {
+        return fromDate;
+    }
+
+    // Inclusive. 1970-01-01 leaves the range open on this side, like the date filters of getManySales.
+    public void setFromDate(LocalDate fromDate) {
+        this.fromDate = fromDate;
+    }
+
+    public LocalDate getToDate() {
+        return toDate;
+    }
+
+    // Inclusive. 1970-01-01 leaves the range open on this side.
+    public void setToDate(LocalDate toDate) {
+        this.toDate = toDate;
+    }
+
+    public enum GroupBy {
+        // Daily rows per product
+        PRODUCT,
+        // Daily rows per seller
+        SELLER,
+        // Monthly rows per category, covering every month the date range touches
+        CATEGORY
+    }
+}
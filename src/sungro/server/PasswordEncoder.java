@@ -6,11 +6,66 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 
+// Stored as "iteration:salt:hash" for PBKDF2WithHmacSHA1, the original format, and as "sha256:iteration:salt:hash" for
+// PBKDF2WithHmacSHA256. Hashes in either format verify whatever the current settings, and needsRehash tells login
+// when a stored hash is weaker than what encode would produce now.
 public class PasswordEncoder {
+    public static final String SHA1 = "PBKDF2WithHmacSHA1";
+    public static final String SHA256 = "PBKDF2WithHmacSHA256";
+
+    private static final String SHA256_PREFIX = "sha256";
+
     private static final int SALT_LEN = 16;
     private static final int HASH_LEN = 64;
     private static final int ITERATION = 8192;
 
+    // Looking up a SecretKeyFactory costs a provider search, so each thread keeps its own
+    private static final ThreadLocal<SecretKeyFactory> SHA1_FACTORY = ThreadLocal.withInitial(() -> factory(SHA1));
+    private static final ThreadLocal<SecretKeyFactory> SHA256_FACTORY = ThreadLocal.withInitial(() -> factory(SHA256));
+
+    private static volatile String algorithm = SHA1;
+    private static volatile int iteration = ITERATION;
+
+    public static String getAlgorithm() {
+        return algorithm;
+    }
+
+    public static int getIteration() {
+        return iteration;
+    }
+
+    public static void configure(String algorithm, int iteration) {
+        if (!algorithm.equals(SHA1) && !algorithm.equals(SHA256)) {
+            throw new IllegalArgumentException("Unsupported password hash algorithm " + algorithm);
+        }
+
+        PasswordEncoder.algorithm = algorithm;
+        PasswordEncoder.iteration = iteration;
+    }
+
+    // Picks the iteration count at which one hash takes about targetMillis on this machine, never below the original
+    // 8192, and uses it for every encode from now on
+    public static int calibrate(String algorithm, long targetMillis) {
+        char[] password = "calibration".toCharArray();
+        byte[] salt = new byte[SALT_LEN];
+        int sample = 20_000;
+
+        // The first rounds include JIT warm-up, so only the fastest of a few is trusted
+        long best = Long.MAX_VALUE;
+
+        for (int i = 0; i < 5; i++) {
+            long started = System.nanoTime();
+            pbkdf2(algorithm, password, salt, sample, HASH_LEN);
+            best = Math.min(best, System.nanoTime() - started);
+        }
+
+        long scaled = sample * targetMillis * 1_000_000 / Math.max(best, 1);
+        int result = (int) Math.max(ITERATION, Math.min(scaled, 10_000_000) / 1000 * 1000);
+
+        configure(algorithm, result);
+        return result;
+    }
+
     public static String encode(String passwordStr) {
         char[] password = passwordStr.toCharArray();
 
@@ -18,36 +73,57 @@ public class PasswordEncoder {
         byte[] salt = new byte[SALT_LEN];
         random.nextBytes(salt);
 
-        byte[] hash = pbkdf2(password, salt, ITERATION, HASH_LEN);
-        return ITERATION + ":" + toHex(salt) + ":" + toHex(hash);
+        String algorithm = PasswordEncoder.algorithm;
+        int iteration = PasswordEncoder.iteration;
+
+        byte[] hash = pbkdf2(algorithm, password, salt, iteration, HASH_LEN);
+        String encoded = iteration + ":" + toHex(salt) + ":" + toHex(hash);
+
+        return algorithm.equals(SHA256) ? SHA256_PREFIX + ":" + encoded : encoded;
     }
 
     public static boolean verify(String password, String encodedPassword) {
 
         String[] tokens = encodedPassword.split(":");
+        int offset = tokens.length == 4 ? 1 : 0;
 
-        int iteration = Integer.parseInt(tokens[0]);
-        byte[] salt = fromHex(tokens[1]);
-        byte[] hash = fromHex(tokens[2]);
+        String algorithm = offset == 1 ? SHA256 : SHA1;
+        int iteration = Integer.parseInt(tokens[offset]);
+        byte[] salt = fromHex(tokens[offset + 1]);
+        byte[] hash = fromHex(tokens[offset + 2]);
 
-        byte[] testHash = pbkdf2(password.toCharArray(), salt, iteration, hash.length);
+        byte[] testHash = pbkdf2(algorithm, password.toCharArray(), salt, iteration, hash.length);
 
         return slowEquals(hash, testHash);
     }
 
-    private static byte[] pbkdf2(char[] password, byte[] salt, int iteration, int hash_len) {
+    public static boolean needsRehash(String encodedPassword) {
+        String[] tokens = encodedPassword.split(":");
+        int offset = tokens.length == 4 ? 1 : 0;
+
+        String algorithm = offset == 1 ? SHA256 : SHA1;
+        int iteration = Integer.parseInt(tokens[offset]);
+
+        return !algorithm.equals(PasswordEncoder.algorithm) || iteration < PasswordEncoder.iteration;
+    }
+
+    private static byte[] pbkdf2(String algorithm, char[] password, byte[] salt, int iteration, int hash_len) {
         PBEKeySpec spec = new PBEKeySpec(password, salt, iteration, hash_len * 8);
-        SecretKeyFactory skf;
+        SecretKeyFactory skf = algorithm.equals(SHA256) ? SHA256_FACTORY.get() : SHA1_FACTORY.get();
 
         try {
-            skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-        } catch (NoSuchAlgorithmException e) {
+            return skf.generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException e) {
             throw new RuntimeException(e);
+        } finally {
+            spec.clearPassword();
         }
+    }
 
+    private static SecretKeyFactory factory(String algorithm) {
         try {
-            return skf.generateSecret(spec).getEncoded();
-        } catch (InvalidKeySpecException e) {
+            return SecretKeyFactory.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
     }
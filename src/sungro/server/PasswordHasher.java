@@ -0,0 +1,119 @@
+package sungro.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Runs PasswordEncoder on a few dedicated threads instead of the RMI thread of the caller. A burst of logins then
+// queues here, leaving the remaining cores to everything else, and once the queue is full further requests fail fast
+// with BusyException rather than piling up.
+public class PasswordHasher implements PasswordHasherMXBean {
+    public static final int DEFAULT_QUEUE_LIMIT = 64;
+
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public PasswordHasher() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), DEFAULT_QUEUE_LIMIT);
+    }
+
+    public PasswordHasher(int threads, int queueLimit) {
+        AtomicInteger count = new AtomicInteger();
+
+        executor = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueLimit),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "password-hasher-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+
+    public String encode(String password) throws BusyException {
+        return run(() -> PasswordEncoder.encode(password));
+    }
+
+    public boolean verify(String password, String encodedPassword) throws BusyException {
+        return run(() -> PasswordEncoder.verify(password, encodedPassword));
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    @Override
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public int getQueueLimit() {
+        return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return PasswordEncoder.getAlgorithm();
+    }
+
+    @Override
+    public int getIteration() {
+        return PasswordEncoder.getIteration();
+    }
+
+    private <T> T run(Callable<T> task) throws BusyException {
+        Future<T> future;
+
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new BusyException();
+        }
+
+        try {
+            T result = future.get();
+            completed.increment();
+            return result;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new BusyException();
+        }
+    }
+
+    public static class BusyException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        BusyException() {
+            super("Password hashing queue is full");
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package sungro.server;
+
+public interface PasswordHasherMXBean {
+    int getThreads();
+
+    int getQueued();
+
+    int getQueueLimit();
+
+    long getCompleted();
+
+    long getRejected();
+
+    String getAlgorithm();
+
+    int getIteration();
+}
@@ -0,0 +1,33 @@
+package sungro.server;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Identifies a picture by content, so clients can cache pictures and ask for them only when the hash changes
+public class PictureHash {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Hex SHA-256, or an empty string for no picture
+    public static String of(byte[] picture) {
+        if (picture == null || picture.length == 0) {
+            return "";
+        }
+
+        byte[] digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(picture);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        char[] hex = new char[digest.length * 2];
+
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >>> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+}
@@ -2,28 +2,188 @@ package sungro.server;
 
 import sungro.api.*;
 import sungro.server.db.Database;
+import sungro.server.db.ImageStore;
 import sungro.server.db.QueryBuilder;
+import sungro.server.db.QueryTemplate;
+import sungro.server.db.QueryTemplateCache;
+import sungro.server.db.SalesRollups;
 import sungro.server.db.UpdateBuilder;
+import sungro.server.db.WritePipeline;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.rmi.RemoteException;
 import java.sql.*;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Repo implements sungro.api.Repo {
+    private static final int PAGE_SIZE = 20;
+
+    private static final int USERS_BY_NAME = 1;
+    private static final int USERS_BY_EMAIL = 1 << 1;
+    private static final int USERS_BY_ID_NUMBER = 1 << 2;
+    private static final int USERS_BY_ROLE = 1 << 3;
+    private static final int USERS_AFTER_ID = 1 << 4;
+    private static final int USERS_WITHOUT_PICTURES = 1 << 5;
+
+    private static final int PRODUCTS_BY_NAME = 1;
+    private static final int PRODUCTS_BY_CATEGORY = 1 << 1;
+    private static final int PRODUCTS_BY_STATUS = 1 << 2;
+    private static final int PRODUCTS_AFTER_ID = 1 << 3;
+    private static final int PRODUCTS_WITHOUT_PICTURES = 1 << 4;
+
+    private static final int STOCK_BY_SKU = 1;
+    private static final int STOCK_BY_PRODUCT_ID = 1 << 1;
+    private static final int STOCK_BY_NAME = 1 << 2;
+    private static final int STOCK_BY_CATEGORY = 1 << 3;
+    private static final int STOCK_BY_EXPIRY_DATE_FROM = 1 << 4;
+    private static final int STOCK_BY_EXPIRY_DATE_TO = 1 << 5;
+    private static final int STOCK_AFTER_SKU = 1 << 6;
+    private static final int STOCK_WITHOUT_PICTURES = 1 << 7;
+
+    private static final int SALES_BY_PRODUCT_ID = 1;
+    private static final int SALES_BY_SKU = 1 << 1;
+    private static final int SALES_ON_DATE = 1 << 2;
+    private static final int SALES_ON_MONTH = 1 << 3;
+    private static final int SALES_AFTER_ID = 1 << 4;
+
     private final Database database;
+    private final RowCounters rowCounters = new RowCounters();
+    private final PasswordHasher passwordHasher = new PasswordHasher();
+    private final LoginThrottle loginThrottle = new LoginThrottle();
+
+    // Whether the sungro-api calls, which can't pass ListOptions, and getCurrentUser and login return pictures
+    private volatile boolean withPictures = true;
+    // And the thumbnail size the sungro-api list calls return, 0 for the original pictures
+    private volatile int thumbnailSize;
+    private final SessionCache sessionCache;
+    private final SessionSweeper sessionSweeper;
+
+    // Null in the legacy mode, where every session is a row in Sessions
+    private final SessionTokens sessionTokens;
+
+    private final ImageStore imageStore;
+    private final Thumbnailer thumbnailer;
+    // Null when there is no image server, and getPicture hands out no URLs
+    private volatile ImageUrls imageUrls;
+
+    // The stock and sale writes of many terminals, committed together
+    private final WritePipeline writePipeline;
+
+    private final QueryTemplateCache manyUsersQueries = new QueryTemplateCache(6, Repo::compileManyUsersQuery);
+    private final QueryTemplateCache manyProductsQueries = new QueryTemplateCache(5, Repo::compileManyProductsQuery);
+    private final QueryTemplateCache manyStockQueries = new QueryTemplateCache(8, Repo::compileManyStockQuery);
+    private final QueryTemplateCache manySalesQueries = new QueryTemplateCache(5, Repo::compileManySalesQuery);
+
+    public Repo(Database database) throws SQLException {
+        this(database, new SessionCache());
+    }
+
+    public Repo(Database database, SessionCache sessionCache) throws SQLException {
+        this(database, sessionCache, new SessionSweeper(database, sessionCache));
+    }
 
-    public Repo(Database database) {
+    public Repo(Database database, SessionCache sessionCache, SessionSweeper sessionSweeper) throws SQLException {
+        this(database, sessionCache, sessionSweeper, null);
+    }
+
+    public Repo(
+            Database database, SessionCache sessionCache, SessionSweeper sessionSweeper, SessionTokens sessionTokens
+    ) throws SQLException {
         this.database = database;
+        this.sessionCache = sessionCache;
+        this.sessionSweeper = sessionSweeper;
+        this.sessionTokens = sessionTokens;
+        this.imageStore = database.getImageStore();
+        this.thumbnailer = new Thumbnailer(database);
+        this.writePipeline = database.getWritePipeline();
+
+        try (Connection connection = database.getReadConnection()) {
+            rowCounters.load(connection);
+
+            if (sessionTokens != null) {
+                sessionTokens.load(connection);
+            }
+        }
+    }
+
+    public RowCounters getRowCounters() {
+        return rowCounters;
+    }
+
+    public SessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    public SessionSweeper getSessionSweeper() {
+        return sessionSweeper;
+    }
+
+    public PasswordHasher getPasswordHasher() {
+        return passwordHasher;
+    }
+
+    public LoginThrottle getLoginThrottle() {
+        return loginThrottle;
+    }
+
+    public boolean isWithPictures() {
+        return withPictures;
+    }
+
+    public void setWithPictures(boolean withPictures) {
+        this.withPictures = withPictures;
+    }
+
+    public int getThumbnailSize() {
+        return thumbnailSize;
+    }
+
+    public void setThumbnailSize(int thumbnailSize) {
+        this.thumbnailSize = thumbnailSize;
+    }
+
+    public Thumbnailer getThumbnailer() {
+        return thumbnailer;
+    }
+
+    public ImageUrls getImageUrls() {
+        return imageUrls;
+    }
+
+    public void setImageUrls(ImageUrls imageUrls) {
+        this.imageUrls = imageUrls;
+    }
+
+    // Every statement the list endpoints can emit, whether or not a client has asked for that shape yet
+    public List<String> getListSql() {
+        List<String> result = new ArrayList<>();
+
+        for (QueryTemplateCache queries : List.of(
+                manyUsersQueries, manyProductsQueries, manyStockQueries, manySalesQueries
+        )) {
+            for (QueryTemplate query : queries.getAll()) {
+                result.add(query.getSql());
+                result.add(query.getTotalSql());
+                result.add(query.getCountSql());
+            }
+        }
+
+        return result;
     }
 
     @Override
     public ResultForGetManyUsers getManyUsers(ParamForGetManyUsers param) throws RemoteException {
+        return getManyUsers(param, newListOptions());
+    }
+
+    public ResultForGetManyUsers getManyUsers(ParamForGetManyUsers param, ListOptions options) throws RemoteException {
         ResultForGetManyUsers result = new ResultForGetManyUsers();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getReadConnection()) {
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForGetManyUsers.Status.INVALID_SESSION_ID);
@@ -35,59 +195,88 @@ public class Repo implements sungro.api.Repo {
                 return result;
             }
 
-            QueryBuilder queryData = new QueryBuilder();
-
-            queryData.appendSelect(
-                    "select " +
-                            "U.UserID, " +
-                            "U.FirstName, " +
-                            "U.LastName, " +
-                            "U.Email, " +
-                            "U.IDNumber, " +
-                            "U.IDType, " +
-                            "U.Role, " +
-                            "U.ProfilePic, " +
-                            "U.Status, " +
-                            "C.UserID as CreatedByUserID, " +
-                            "C.FirstName || ' ' || C.LastName as CreatedByUserName, " +
-                            "U.CreatedOn "
-            );
-
-            queryData.appendFrom(
-                    "from Users as U " +
-                            "inner join Users as C " +
-                            "on C.UserID = U.CreatedBy "
-            );
+            int shape = 0;
 
             if (!param.getName().isBlank()) {
-                queryData.appendWhere("(U.FirstName like ? or U.LastName like ?) ");
-                queryData.addStringToWhere(param.getName() + "%");
-                queryData.addStringToWhere(param.getName() + "%");
+                shape |= USERS_BY_NAME;
             }
 
             if (!param.getEmail().isBlank()) {
-                queryData.appendWhere("U.Email like ? ");
-                queryData.addStringToWhere(param.getEmail() + "%");
+                shape |= USERS_BY_EMAIL;
             }
 
             if (!param.getIdNumber().isBlank()) {
-                queryData.appendWhere("U.IDNumber = ? ");
-                queryData.addStringToWhere(param.getIdNumber());
+                shape |= USERS_BY_ID_NUMBER;
             }
 
             if (!param.getRole().isBlank()) {
-                queryData.appendWhere("U.Role = ? ");
-                queryData.addStringToWhere(param.getRole());
+                shape |= USERS_BY_ROLE;
+            }
+
+            if (options.getAfterId() != 0) {
+                shape |= USERS_AFTER_ID;
+            }
+
+            if (!options.isWithPictures()) {
+                shape |= USERS_WITHOUT_PICTURES;
+            }
+
+            boolean hasMoreOnly = options.getCountMode() == ListOptions.CountMode.HAS_MORE;
+            // A window count gives the total along with the page, except in cursor mode where it would only count
+            // the rows after the cursor
+            boolean withTotal = !hasMoreOnly && (shape & USERS_AFTER_ID) == 0;
+
+            QueryTemplate query = manyUsersQueries.get(shape);
+            Object[] values = new Object[query.getParamCount()];
+            int i = 0;
+
+            if ((shape & USERS_BY_NAME) != 0) {
+                values[i++] = param.getName() + "%";
+                values[i++] = param.getName() + "%";
+            }
+
+            if ((shape & USERS_BY_EMAIL) != 0) {
+                values[i++] = param.getEmail() + "%";
+            }
+
+            if ((shape & USERS_BY_ID_NUMBER) != 0) {
+                values[i++] = param.getIdNumber();
+            }
+
+            if ((shape & USERS_BY_ROLE) != 0) {
+                values[i++] = param.getRole();
             }
 
-            queryData.appendRemaining("order by U.UserID limit 20 offset ? ");
-            queryData.addIntToRemaining((param.getPage() - 1) * 20);
+            if ((shape & USERS_AFTER_ID) != 0) {
+                values[i++] = options.getAfterId();
+            }
+
+            // One extra row tells whether there is a next page without counting
+            values[i++] = hasMoreOnly ? PAGE_SIZE + 1 : PAGE_SIZE;
+
+            if ((shape & USERS_AFTER_ID) == 0) {
+                values[i] = (param.getPage() - 1) * PAGE_SIZE;
+            }
+
+            int rowCount = -1;
+            boolean hasMore = false;
 
             try (
-                    PreparedStatement preparedStatement = queryData.prepare(connection);
+                    PreparedStatement preparedStatement = withTotal
+                            ? query.prepareWithTotal(connection, values)
+                            : query.prepare(connection, values);
                     ResultSet row = preparedStatement.executeQuery()
             ) {
                 while (row.next()) {
+                    if (result.getUsers().size() == PAGE_SIZE) {
+                        hasMore = true;
+                        break;
+                    }
+
+                    if (withTotal) {
+                        rowCount = row.getInt(13);
+                    }
+
                     User user = new User();
                     user.setUserId(row.getInt(1));
                     user.setFirstName(row.getString(2));
@@ -96,7 +285,7 @@ public class Repo implements sungro.api.Repo {
                     user.setIdNumber(row.getString(5));
                     user.setIdType(row.getString(6));
                     user.setRole(row.getString(7));
-                    user.setProfilePic(row.getBytes(8));
+                    user.setProfilePic(readPicture(connection, row.getString(8), options.getThumbnailSize()));
                     user.setStatus(row.getString(9));
                     user.setCreatedByUserId(row.getInt(10));
                     user.setCreatedByUserName(row.getString(11));
@@ -106,25 +295,24 @@ public class Repo implements sungro.api.Repo {
                 }
             }
 
-            QueryBuilder queryCount = new QueryBuilder();
-
-            queryCount.appendSelect("select count(*) ");
-            queryCount.appendFrom(queryData.getFrom());
-            queryCount.appendWhere(queryData.getWhere());
-            queryCount.getWhereParams().addAll(queryData.getWhereParams());
+            if (hasMoreOnly) {
+                result.setMaxPage(hasMore ? param.getPage() + 1 : param.getPage());
+            } else {
+                // The total ignores the cursor, so it is counted with the same filters in offset mode. This is also
+                // the fallback for a page past the end, which has no rows to carry the window count.
+                if (rowCount < 0) {
+                    rowCount = count(connection, manyUsersQueries.get(shape & ~USERS_AFTER_ID), values);
+                }
 
-            try (
-                    PreparedStatement preparedStatement = queryCount.prepare(connection);
-                    ResultSet row = preparedStatement.executeQuery()
-            ) {
-                row.next();
-                int rowCount = row.getInt(1);
-                result.setMaxPage((rowCount - 1) / 20 + 1);
+                result.setMaxPage((rowCount - 1) / PAGE_SIZE + 1);
             }
 
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForGetManyUsers.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForGetManyUsers.Status.SERVER_ERROR);
         }
 
         result.setCurrentPage(param.getPage());
@@ -136,7 +324,7 @@ public class Repo implements sungro.api.Repo {
     public ResultForGetOneUser getOneUser(ParamForGetOneUser param) throws RemoteException {
         ResultForGetOneUser result = new ResultForGetOneUser();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getReadConnection()) {
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForGetOneUser.Status.INVALID_SESSION_ID);
@@ -157,7 +345,7 @@ public class Repo implements sungro.api.Repo {
                             "U.IDNumber, " +
                             "U.IDType, " +
                             "U.Role, " +
-                            "U.ProfilePic, " +
+                            "U.ProfilePicHash, " +
                             "U.Status, " +
                             "C.UserID as CreatedByUserID, " +
                             "C.FirstName || ' ' || C.LastName as CreatedByUserName, " +
@@ -179,7 +367,7 @@ public class Repo implements sungro.api.Repo {
                         user.setIdNumber(row.getString(5));
                         user.setIdType(row.getString(6));
                         user.setRole(row.getString(7));
-                        user.setProfilePic(row.getBytes(8));
+                        user.setProfilePic(imageStore.read(row.getString(8)));
                         user.setStatus(row.getString(9));
                         user.setCreatedByUserId(row.getInt(10));
                         user.setCreatedByUserName(row.getString(11));
@@ -192,6 +380,9 @@ public class Repo implements sungro.api.Repo {
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForGetOneUser.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForGetOneUser.Status.SERVER_ERROR);
         }
 
         return result;
@@ -201,145 +392,160 @@ public class Repo implements sungro.api.Repo {
     public ResultForAddUser addUser(ParamForAddUser param) throws RemoteException {
         ResultForAddUser result = new ResultForAddUser();
 
-        try (Connection connection = database.getConnection()) {
-            User currentUser = getCurrentUser(connection, param.getSessionId());
-            if (currentUser == null) {
-                result.setStatus(ResultForAddUser.Status.INVALID_SESSION_ID);
-                return result;
-            }
+        try {
+            User currentUser;
 
-            if (!currentUser.getRole().equals("Admin")) {
-                result.setStatus(ResultForAddUser.Status.PERMISSION_DENIED);
-                return result;
-            }
+            try (Connection connection = database.getReadConnection()) {
+                currentUser = getCurrentUser(connection, param.getSessionId());
+                if (currentUser == null) {
+                    result.setStatus(ResultForAddUser.Status.INVALID_SESSION_ID);
+                    return result;
+                }
 
-            if (param.getFirstName().isBlank()) {
-                result.setStatus(ResultForAddUser.Status.MISSING_FIRST_NAME);
-                return result;
-            }
+                if (!currentUser.getRole().equals("Admin")) {
+                    result.setStatus(ResultForAddUser.Status.PERMISSION_DENIED);
+                    return result;
+                }
 
-            if (param.getLastName().isBlank()) {
-                result.setStatus(ResultForAddUser.Status.MISSING_LAST_NAME);
-                return result;
-            }
+                if (param.getFirstName().isBlank()) {
+                    result.setStatus(ResultForAddUser.Status.MISSING_FIRST_NAME);
+                    return result;
+                }
 
-            if (param.getEmail().isBlank()) {
-                result.setStatus(ResultForAddUser.Status.MISSING_EMAIL);
-                return result;
-            }
+                if (param.getLastName().isBlank()) {
+                    result.setStatus(ResultForAddUser.Status.MISSING_LAST_NAME);
+                    return result;
+                }
 
-            String regex = "^[\\w!#$%&'*+/=?`{|}~^-]+(?:\\.[\\w!#$%&'*+/=?`{|}~^-]+)*@(?:[a-zA-Z0-9-]+\\.)+[a-zA-Z]{2,6}$";
-            if (!param.getEmail().matches(regex)) {
-                result.setStatus(ResultForAddUser.Status.INVALID_EMAIL);
-                return result;
-            }
+                if (param.getEmail().isBlank()) {
+                    result.setStatus(ResultForAddUser.Status.MISSING_EMAIL);
+                    return result;
+                }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select exists(select 1 from Users where Email = ?)"
-            )) {
-                preparedStatement.setString(1, param.getEmail());
+                String regex = "^[\\w!#$%&'*+/=?`{|}~^-]+(?:\\.[\\w!#$%&'*+/=?`{|}~^-]+)*@(?:[a-zA-Z0-9-]+\\.)+[a-zA-Z]{2,6}$";
+                if (!param.getEmail().matches(regex)) {
+                    result.setStatus(ResultForAddUser.Status.INVALID_EMAIL);
+                    return result;
+                }
 
-                try (ResultSet row = preparedStatement.executeQuery()) {
-                    row.next();
+                if (isTaken(connection, "Email", param.getEmail(), 0)) {
+                    result.setStatus(ResultForAddUser.Status.REPEATED_EMAIL);
+                    return result;
+                }
 
-                    if (row.getInt(1) == 1) {
-                        result.setStatus(ResultForAddUser.Status.REPEATED_EMAIL);
-                        return result;
-                    }
+                if (param.getIdNumber().isBlank()) {
+                    result.setStatus(ResultForAddUser.Status.MISSING_ID_NUMBER);
+                    return result;
                 }
-            }
 
-            if (param.getIdNumber().isBlank()) {
-                result.setStatus(ResultForAddUser.Status.MISSING_ID_NUMBER);
-                return result;
-            }
+                if (isTaken(connection, "IDNumber", param.getIdNumber(), 0)) {
+                    result.setStatus(ResultForAddUser.Status.REPEATED_ID_NUMBER);
+                    return result;
+                }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select exists(select 1 from Users where IDNumber = ?)"
-            )) {
-                preparedStatement.setString(1, param.getIdNumber());
+                if (param.getIdType().isBlank()) {
+                    result.setStatus(ResultForAddUser.Status.MISSING_ID_TYPE);
+                    return result;
+                }
 
-                try (ResultSet row = preparedStatement.executeQuery()) {
-                    row.next();
+                if (!param.getIdType().equals("IC") && !param.getIdType().equals("Passport")) {
+                    result.setStatus(ResultForAddUser.Status.INVALID_ID_TYPE);
+                }
 
-                    if (row.getInt(1) == 1) {
-                        result.setStatus(ResultForAddUser.Status.REPEATED_ID_NUMBER);
-                        return result;
-                    }
+                if (param.getRole().isBlank()) {
+                    result.setStatus(ResultForAddUser.Status.MISSING_ROLE);
+                    return result;
                 }
-            }
 
-            if (param.getIdType().isBlank()) {
-                result.setStatus(ResultForAddUser.Status.MISSING_ID_TYPE);
-                return result;
-            }
+                if (!param.getRole().equals("Admin") && !param.getRole().equals("Sales Executive")) {
+                    result.setStatus(ResultForAddUser.Status.INVALID_ROLE);
+                    return result;
+                }
 
-            if (!param.getIdType().equals("IC") && !param.getIdType().equals("Passport")) {
-                result.setStatus(ResultForAddUser.Status.INVALID_ID_TYPE);
-            }
+                if (param.getPassword().isBlank()) {
+                    result.setStatus(ResultForAddUser.Status.MISSING_PASSWORD);
+                    return result;
+                }
 
-            if (param.getRole().isBlank()) {
-                result.setStatus(ResultForAddUser.Status.MISSING_ROLE);
-                return result;
-            }
+                if (param.getStatus().isBlank()) {
+                    result.setStatus(ResultForAddUser.Status.MISSING_STATUS);
+                    return result;
+                }
 
-            if (!param.getRole().equals("Admin") && !param.getRole().equals("Sales Executive")) {
-                result.setStatus(ResultForAddUser.Status.INVALID_ROLE);
-                return result;
+                if (!param.getStatus().equals("Active") && !param.getStatus().equals("Inactive")) {
+                    result.setStatus(ResultForAddUser.Status.INVALID_STATUS);
+                    return result;
+                }
             }
 
-            if (param.getPassword().isBlank()) {
-                result.setStatus(ResultForAddUser.Status.MISSING_PASSWORD);
-                return result;
-            }
+            // Hashed before taking the write connection, as the pool has only the one and every other write would
+            // wait out the hash
+            String pwHash = passwordHasher.encode(param.getPassword());
 
-            if (param.getStatus().isBlank()) {
-                result.setStatus(ResultForAddUser.Status.MISSING_STATUS);
-                return result;
-            }
+            try (Connection connection = database.getWriteConnection()) {
+                connection.setAutoCommit(false);
 
-            if (!param.getStatus().equals("Active") && !param.getStatus().equals("Inactive")) {
-                result.setStatus(ResultForAddUser.Status.INVALID_STATUS);
-                return result;
-            }
+                // Either may have been taken since it was checked
+                if (isTaken(connection, "Email", param.getEmail(), 0)) {
+                    result.setStatus(ResultForAddUser.Status.REPEATED_EMAIL);
+                    return result;
+                }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "insert into Users ( " +
-                            "FirstName, LastName, Email, IDNumber, IDType, " +
-                            "Role, PwHash, ProfilePic, Status, CreatedBy, " +
-                            "CreatedOn " +
-                            ") " +
-                            "values ( " +
-                            "?, ?, ?, ?, ?, " +
-                            "?, ?, ?, ?, ?, " +
-                            "? " +
-                            ")"
-            )) {
-                preparedStatement.setString(1, param.getFirstName());
-                preparedStatement.setString(2, param.getLastName());
-                preparedStatement.setString(3, param.getEmail());
-                preparedStatement.setString(4, param.getIdNumber());
-                preparedStatement.setString(5, param.getIdType());
-                preparedStatement.setString(6, param.getRole());
-                preparedStatement.setString(7, PasswordEncoder.encode(param.getPassword()));
-                preparedStatement.setBytes(8, param.getProfilePic());
-                preparedStatement.setString(9, param.getStatus());
-                preparedStatement.setInt(10, currentUser.getUserId());
-                preparedStatement.setString(11, LocalDateTime.now().toString());
+                if (isTaken(connection, "IDNumber", param.getIdNumber(), 0)) {
+                    result.setStatus(ResultForAddUser.Status.REPEATED_ID_NUMBER);
+                    return result;
+                }
 
-                preparedStatement.executeUpdate();
-            }
+                String profilePicHash = imageStore.acquire(connection, param.getProfilePic());
+
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "insert into Users ( " +
+                                "FirstName, LastName, Email, IDNumber, IDType, " +
+                                "Role, PwHash, ProfilePic, Status, CreatedBy, " +
+                                "CreatedOn, ProfilePicHash " +
+                                ") " +
+                                "values ( " +
+                                "?, ?, ?, ?, ?, " +
+                                "?, ?, ?, ?, ?, " +
+                                "?, ? " +
+                                ")"
+                )) {
+                    preparedStatement.setString(1, param.getFirstName());
+                    preparedStatement.setString(2, param.getLastName());
+                    preparedStatement.setString(3, param.getEmail());
+                    preparedStatement.setString(4, param.getIdNumber());
+                    preparedStatement.setString(5, param.getIdType());
+                    preparedStatement.setString(6, param.getRole());
+                    preparedStatement.setString(7, pwHash);
+                    // The picture itself is in the image store
+                    preparedStatement.setBytes(8, new byte[0]);
+                    preparedStatement.setString(9, param.getStatus());
+                    preparedStatement.setInt(10, currentUser.getUserId());
+                    preparedStatement.setString(11, LocalDateTime.now().toString());
+                    preparedStatement.setString(12, profilePicHash);
+
+                    preparedStatement.executeUpdate();
+                }
 
-            try (Statement statement = connection.createStatement()) {
-                try (ResultSet row = statement.executeQuery("select last_insert_rowid()")) {
-                    row.next();
-                    result.setNewUserId(row.getInt(1));
+                try (Statement statement = connection.createStatement()) {
+                    try (ResultSet row = statement.executeQuery("select last_insert_rowid()")) {
+                        row.next();
+                        result.setNewUserId(row.getInt(1));
+                    }
                 }
-            }
 
+                connection.commit();
+
+                thumbnailer.submit(profilePicHash);
+            }
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForAddUser.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForAddUser.Status.SERVER_ERROR);
+        } catch (PasswordHasher.BusyException e) {
+            result.setStatus(ResultForAddUser.Status.SERVER_ERROR);
         }
 
         return result;
@@ -349,7 +555,9 @@ public class Repo implements sungro.api.Repo {
     public ResultForDeleteUser deleteUser(ParamForDeleteUser param) throws RemoteException {
         ResultForDeleteUser result = new ResultForDeleteUser();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getWriteConnection()) {
+            connection.setAutoCommit(false);
+
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForDeleteUser.Status.INVALID_SESSION_ID);
@@ -361,18 +569,20 @@ public class Repo implements sungro.api.Repo {
                 return result;
             }
 
+            String profilePicHash;
+
             try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select exists(select 1 from Users where UserID = ?)"
+                    "select ProfilePicHash from Users where UserID = ?"
             )) {
                 preparedStatement.setInt(1, param.getUserId());
 
                 try (ResultSet row = preparedStatement.executeQuery()) {
-                    row.next();
-
-                    if (row.getInt(1) == 0) {
+                    if (!row.next()) {
                         result.setStatus(ResultForDeleteUser.Status.NOT_FOUND);
                         return result;
                     }
+
+                    profilePicHash = row.getString(1);
                 }
             }
 
@@ -459,6 +669,16 @@ public class Repo implements sungro.api.Repo {
                 preparedStatement.executeUpdate();
             }
 
+            imageStore.release(connection, profilePicHash);
+
+            if (sessionTokens != null) {
+                sessionTokens.revoke(connection, param.getUserId());
+            }
+
+            connection.commit();
+
+            sessionCache.invalidateUser(param.getUserId());
+
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForDeleteUser.Status.SERVER_ERROR);
@@ -471,163 +691,206 @@ public class Repo implements sungro.api.Repo {
     public ResultForSetUser setUser(ParamForSetUser param) throws RemoteException {
         ResultForSetUser result = new ResultForSetUser();
 
-        try (Connection connection = database.getConnection()) {
-            User currentUser = getCurrentUser(connection, param.getSessionId());
-            if (currentUser == null) {
-                result.setStatus(ResultForSetUser.Status.INVALID_SESSION_ID);
-                return result;
-            }
+        try {
+            try (Connection connection = database.getReadConnection()) {
+                User currentUser = getCurrentUser(connection, param.getSessionId());
+                if (currentUser == null) {
+                    result.setStatus(ResultForSetUser.Status.INVALID_SESSION_ID);
+                    return result;
+                }
 
-            if (!currentUser.getRole().equals("Admin") && currentUser.getUserId() != param.getUserId()) {
-                result.setStatus(ResultForSetUser.Status.PERMISSION_DENIED);
-                return result;
-            }
+                if (!currentUser.getRole().equals("Admin") && currentUser.getUserId() != param.getUserId()) {
+                    result.setStatus(ResultForSetUser.Status.PERMISSION_DENIED);
+                    return result;
+                }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select exists(select 1 from Users where UserID = ?)"
-            )) {
-                preparedStatement.setInt(1, param.getUserId());
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "select exists(select 1 from Users where UserID = ?)"
+                )) {
+                    preparedStatement.setInt(1, param.getUserId());
 
-                try (ResultSet row = preparedStatement.executeQuery()) {
-                    row.next();
+                    try (ResultSet row = preparedStatement.executeQuery()) {
+                        row.next();
 
-                    if (row.getInt(1) == 0) {
-                        result.setStatus(ResultForSetUser.Status.NOT_FOUND);
-                        return result;
+                        if (row.getInt(1) == 0) {
+                            result.setStatus(ResultForSetUser.Status.NOT_FOUND);
+                            return result;
+                        }
                     }
                 }
-            }
 
-            if (param.getFirstName().isBlank()) {
-                result.setStatus(ResultForSetUser.Status.MISSING_FIRST_NAME);
-                return result;
-            }
+                if (param.getFirstName().isBlank()) {
+                    result.setStatus(ResultForSetUser.Status.MISSING_FIRST_NAME);
+                    return result;
+                }
 
-            if (param.getLastName().isBlank()) {
-                result.setStatus(ResultForSetUser.Status.MISSING_LAST_NAME);
-                return result;
-            }
+                if (param.getLastName().isBlank()) {
+                    result.setStatus(ResultForSetUser.Status.MISSING_LAST_NAME);
+                    return result;
+                }
 
-            if (param.getEmail().isBlank()) {
-                result.setStatus(ResultForSetUser.Status.MISSING_EMAIL);
-                return result;
-            }
+                if (param.getEmail().isBlank()) {
+                    result.setStatus(ResultForSetUser.Status.MISSING_EMAIL);
+                    return result;
+                }
 
-            String regex = "^[\\w!#$%&'*+/=?`{|}~^-]+(?:\\.[\\w!#$%&'*+/=?`{|}~^-]+)*@(?:[a-zA-Z0-9-]+\\.)+[a-zA-Z]{2,6}$";
-            if (!param.getEmail().matches(regex)) {
-                result.setStatus(ResultForSetUser.Status.INVALID_EMAIL);
-                return result;
-            }
+                String regex = "^[\\w!#$%&'*+/=?`{|}~^-]+(?:\\.[\\w!#$%&'*+/=?`{|}~^-]+)*@(?:[a-zA-Z0-9-]+\\.)+[a-zA-Z]{2,6}$";
+                if (!param.getEmail().matches(regex)) {
+                    result.setStatus(ResultForSetUser.Status.INVALID_EMAIL);
+                    return result;
+                }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select exists(select 1 from Users where Email = ? and UserID <> ?)"
-            )) {
-                preparedStatement.setString(1, param.getEmail());
-                preparedStatement.setInt(2, param.getUserId());
+                if (isTaken(connection, "Email", param.getEmail(), param.getUserId())) {
+                    result.setStatus(ResultForSetUser.Status.REPEATED_EMAIL);
+                    return result;
+                }
 
-                try (ResultSet row = preparedStatement.executeQuery()) {
-                    row.next();
+                if (param.getIdNumber().isBlank()) {
+                    result.setStatus(ResultForSetUser.Status.MISSING_ID_NUMBER);
+                    return result;
+                }
 
-                    if (row.getInt(1) == 1) {
-                        result.setStatus(ResultForSetUser.Status.REPEATED_EMAIL);
-                        return result;
-                    }
+                if (isTaken(connection, "IDNumber", param.getIdNumber(), param.getUserId())) {
+                    result.setStatus(ResultForSetUser.Status.REPEATED_ID_NUMBER);
+                    return result;
                 }
-            }
 
-            if (param.getIdNumber().isBlank()) {
-                result.setStatus(ResultForSetUser.Status.MISSING_ID_NUMBER);
-                return result;
-            }
+                if (param.getIdType().isBlank()) {
+                    result.setStatus(ResultForSetUser.Status.MISSING_ID_TYPE);
+                    return result;
+                }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select exists(select 1 from Users where IDNumber = ? and UserID <> ?)"
-            )) {
-                preparedStatement.setString(1, param.getIdNumber());
-                preparedStatement.setInt(2, param.getUserId());
+                if (!param.getIdType().equals("IC") && !param.getIdType().equals("Passport")) {
+                    result.setStatus(ResultForSetUser.Status.INVALID_ID_TYPE);
+                }
 
-                try (ResultSet row = preparedStatement.executeQuery()) {
-                    row.next();
+                if (param.getRole().isBlank()) {
+                    result.setStatus(ResultForSetUser.Status.MISSING_ROLE);
+                    return result;
+                }
 
-                    if (row.getInt(1) == 1) {
-                        result.setStatus(ResultForSetUser.Status.REPEATED_ID_NUMBER);
-                        return result;
-                    }
+                if (!param.getRole().equals("Admin") && !param.getRole().equals("Sales Executive")) {
+                    result.setStatus(ResultForSetUser.Status.INVALID_ROLE);
+                    return result;
                 }
-            }
 
-            if (param.getIdType().isBlank()) {
-                result.setStatus(ResultForSetUser.Status.MISSING_ID_TYPE);
-                return result;
-            }
+                if (param.getStatus().isBlank()) {
+                    result.setStatus(ResultForSetUser.Status.MISSING_STATUS);
+                    return result;
+                }
 
-            if (!param.getIdType().equals("IC") && !param.getIdType().equals("Passport")) {
-                result.setStatus(ResultForSetUser.Status.INVALID_ID_TYPE);
+                if (!param.getStatus().equals("Active") && !param.getStatus().equals("Inactive")) {
+                    result.setStatus(ResultForSetUser.Status.INVALID_STATUS);
+                    return result;
+                }
             }
 
-            if (param.getRole().isBlank()) {
-                result.setStatus(ResultForSetUser.Status.MISSING_ROLE);
-                return result;
-            }
+            // Hashed before taking the write connection, as the pool has only the one and every other write would
+            // wait out the hash
+            String pwHash = param.getPassword().isBlank() ? null : passwordHasher.encode(param.getPassword());
 
-            if (!param.getRole().equals("Admin") && !param.getRole().equals("Sales Executive")) {
-                result.setStatus(ResultForSetUser.Status.INVALID_ROLE);
-                return result;
-            }
+            try (Connection connection = database.getWriteConnection()) {
+                connection.setAutoCommit(false);
 
-            if (param.getStatus().isBlank()) {
-                result.setStatus(ResultForSetUser.Status.MISSING_STATUS);
-                return result;
-            }
+                String oldRole;
+                String oldStatus;
+                String oldProfilePicHash;
 
-            if (!param.getStatus().equals("Active") && !param.getStatus().equals("Inactive")) {
-                result.setStatus(ResultForSetUser.Status.INVALID_STATUS);
-                return result;
-            }
+                // Read again, as any of it may have changed since it was checked
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "select Role, Status, ProfilePicHash from Users where UserID = ?"
+                )) {
+                    preparedStatement.setInt(1, param.getUserId());
 
-            UpdateBuilder updateBuilder = new UpdateBuilder();
-            updateBuilder.appendUpdate("update Users ");
+                    try (ResultSet row = preparedStatement.executeQuery()) {
+                        if (!row.next()) {
+                            result.setStatus(ResultForSetUser.Status.NOT_FOUND);
+                            return result;
+                        }
 
-            updateBuilder.appendSet("FirstName = ? ");
-            updateBuilder.addStringToSet(param.getFirstName());
+                        oldRole = row.getString(1);
+                        oldStatus = row.getString(2);
+                        oldProfilePicHash = row.getString(3);
+                    }
+                }
 
-            updateBuilder.appendSet("LastName = ? ");
-            updateBuilder.addStringToSet(param.getLastName());
+                if (isTaken(connection, "Email", param.getEmail(), param.getUserId())) {
+                    result.setStatus(ResultForSetUser.Status.REPEATED_EMAIL);
+                    return result;
+                }
 
-            updateBuilder.appendSet("Email = ? ");
-            updateBuilder.addStringToSet(param.getEmail());
+                if (isTaken(connection, "IDNumber", param.getIdNumber(), param.getUserId())) {
+                    result.setStatus(ResultForSetUser.Status.REPEATED_ID_NUMBER);
+                    return result;
+                }
 
-            updateBuilder.appendSet("IDNumber = ? ");
-            updateBuilder.addStringToSet(param.getIdNumber());
+                UpdateBuilder updateBuilder = new UpdateBuilder();
+                updateBuilder.appendUpdate("update Users ");
 
-            updateBuilder.appendSet("IDType = ? ");
-            updateBuilder.addStringToSet(param.getIdType());
+                updateBuilder.appendSet("FirstName = ? ");
+                updateBuilder.addStringToSet(param.getFirstName());
 
-            updateBuilder.appendSet("Role = ? ");
-            updateBuilder.addStringToSet(param.getRole());
+                updateBuilder.appendSet("LastName = ? ");
+                updateBuilder.addStringToSet(param.getLastName());
 
-            updateBuilder.appendSet("Status = ? ");
-            updateBuilder.addStringToSet(param.getStatus());
+                updateBuilder.appendSet("Email = ? ");
+                updateBuilder.addStringToSet(param.getEmail());
 
-            if (!param.getPassword().isBlank()) {
-                updateBuilder.appendSet("PwHash = ? ");
-                updateBuilder.addStringToSet(PasswordEncoder.encode(param.getPassword()));
-            }
+                updateBuilder.appendSet("IDNumber = ? ");
+                updateBuilder.addStringToSet(param.getIdNumber());
 
-            if (param.getProfilePic().length != 0) {
-                updateBuilder.appendSet("ProfilePic = ? ");
-                updateBuilder.addBytesToSet(param.getProfilePic());
-            }
+                updateBuilder.appendSet("IDType = ? ");
+                updateBuilder.addStringToSet(param.getIdType());
 
-            updateBuilder.appendWhere("UserID = ? ");
-            updateBuilder.addIntToWhere(param.getUserId());
+                updateBuilder.appendSet("Role = ? ");
+                updateBuilder.addStringToSet(param.getRole());
 
-            try (PreparedStatement preparedStatement = updateBuilder.prepare(connection)) {
-                preparedStatement.executeUpdate();
+                updateBuilder.appendSet("Status = ? ");
+                updateBuilder.addStringToSet(param.getStatus());
+
+                if (pwHash != null) {
+                    updateBuilder.appendSet("PwHash = ? ");
+                    updateBuilder.addStringToSet(pwHash);
+                }
+
+                String newProfilePicHash = "";
+
+                if (param.getProfilePic().length != 0) {
+                    updateBuilder.appendSet("ProfilePicHash = ? ");
+                    newProfilePicHash = imageStore.acquire(connection, param.getProfilePic());
+                    updateBuilder.addStringToSet(newProfilePicHash);
+
+                    imageStore.release(connection, oldProfilePicHash);
+                }
+
+                updateBuilder.appendWhere("UserID = ? ");
+                updateBuilder.addIntToWhere(param.getUserId());
+
+                try (PreparedStatement preparedStatement = updateBuilder.prepare(connection)) {
+                    preparedStatement.executeUpdate();
+                }
+
+                // Tokens carry the role, so a new role or status needs a new login. Other edits leave them valid.
+                if (sessionTokens != null
+                        && (!param.getRole().equals(oldRole) || !param.getStatus().equals(oldStatus))) {
+                    sessionTokens.revoke(connection, param.getUserId());
+                }
+
+                connection.commit();
+
+                thumbnailer.submit(newProfilePicHash);
+
+                // The cached role of the user's sessions may no longer hold
+                sessionCache.invalidateUser(param.getUserId());
             }
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForSetUser.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForSetUser.Status.SERVER_ERROR);
+        } catch (PasswordHasher.BusyException e) {
+            result.setStatus(ResultForSetUser.Status.SERVER_ERROR);
         }
 
         return result;
@@ -637,7 +900,14 @@ public class Repo implements sungro.api.Repo {
     public ResultForGetCurrentUser getCurrentUser(ParamForGetCurrentUser param) throws RemoteException {
         ResultForGetCurrentUser result = new ResultForGetCurrentUser();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getReadConnection()) {
+            // Goes through the session check like every other call, so expired sessions are refused here too
+            User currentUser = getCurrentUser(connection, param.getSessionId());
+            if (currentUser == null) {
+                result.setStatus(ResultForGetCurrentUser.Status.INVALID_SESSION_ID);
+                return result;
+            }
+
             try (PreparedStatement preparedStatement = connection.prepareStatement(
                     "select " +
                             "U.UserID, " +
@@ -647,17 +917,16 @@ public class Repo implements sungro.api.Repo {
                             "U.IDNumber, " +
                             "U.IDType, " +
                             "U.Role, " +
-                            "U.ProfilePic, " +
+                            (withPictures ? "U.ProfilePicHash, " : "'' as ProfilePicHash, ") +
                             "U.Status, " +
                             "C.UserID as CreatedByUserID, " +
                             "C.FirstName || ' ' || C.LastName as CreatedByUserName, " +
                             "U.CreatedOn " +
-                            "from Sessions as S " +
-                            "inner join Users as U on U.UserID = S.UserID " +
+                            "from Users as U " +
                             "inner join Users as C on C.UserID = U.CreatedBy " +
-                            "where S.SessionID = ?"
+                            "where U.UserID = ?"
             )) {
-                preparedStatement.setString(1, param.getSessionId());
+                preparedStatement.setInt(1, currentUser.getUserId());
 
                 try (ResultSet row = preparedStatement.executeQuery()) {
                     if (row.next()) {
@@ -669,7 +938,7 @@ public class Repo implements sungro.api.Repo {
                         user.setIdNumber(row.getString(5));
                         user.setIdType(row.getString(6));
                         user.setRole(row.getString(7));
-                        user.setProfilePic(row.getBytes(8));
+                        user.setProfilePic(imageStore.read(row.getString(8)));
                         user.setStatus(row.getString(9));
                         user.setCreatedByUserId(row.getInt(10));
                         user.setCreatedByUserName(row.getString(11));
@@ -682,6 +951,9 @@ public class Repo implements sungro.api.Repo {
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForGetCurrentUser.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForGetCurrentUser.Status.SERVER_ERROR);
         }
 
         return result;
@@ -691,79 +963,162 @@ public class Repo implements sungro.api.Repo {
     public ResultForLogin login(ParamForLogin param) throws RemoteException {
         ResultForLogin result = new ResultForLogin();
 
-        try (Connection connection = database.getConnection()) {
-            if (param.getEmail().isBlank()) {
-                result.setStatus(ResultForLogin.Status.MISSING_EMAIL);
-                return result;
+        if (param.getEmail().isBlank()) {
+            result.setStatus(ResultForLogin.Status.MISSING_EMAIL);
+            return result;
+        }
+
+        if (param.getPassword().isEmpty()) {
+            result.setStatus(ResultForLogin.Status.MISSING_PASSWORD);
+            return result;
+        }
+
+        // Refused before any query or hashing. The API has no status for it, so it looks like a server error.
+        if (!loginThrottle.tryAcquire(param.getEmail())) {
+            result.setStatus(ResultForLogin.Status.SERVER_ERROR);
+            return result;
+        }
+
+        // No connection is held while the password is hashed, which can wait behind a queue of other logins
+        try {
+            int userId;
+            String pwHash;
+
+            try (Connection connection = database.getReadConnection()) {
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "select UserID, PwHash from Users where Email = ?"
+                )) {
+                    preparedStatement.setString(1, param.getEmail());
+
+                    try (ResultSet row = preparedStatement.executeQuery()) {
+                        if (!row.next()) {
+                            result.setStatus(ResultForLogin.Status.INVALID_CREDENTIAL);
+                            return result;
+                        }
+
+                        userId = row.getInt(1);
+                        pwHash = row.getString(2);
+                    }
+                }
             }
 
-            if (param.getPassword().isEmpty()) {
-                result.setStatus(ResultForLogin.Status.MISSING_PASSWORD);
+            if (!passwordHasher.verify(param.getPassword(), pwHash)) {
+                result.setStatus(ResultForLogin.Status.INVALID_CREDENTIAL);
                 return result;
             }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select " +
-                            "U.UserID, " +
-                            "U.FirstName, " +
-                            "U.LastName, " +
-                            "U.Email, " +
-                            "U.IDNumber, " +
-                            "U.IDType, " +
-                            "U.Role, " +
-                            "U.ProfilePic, " +
-                            "U.Status, " +
-                            "C.UserID as CreatedByUserID, " +
-                            "C.FirstName || ' ' || C.LastName as CreatedByUserName, " +
-                            "U.CreatedOn, " +
-                            "U.PwHash " +
-                            "from Users as U " +
-                            "inner join Users as C on C.UserID = U.CreatedBy " +
-                            "where U.Email = ?"
-            )) {
-                preparedStatement.setString(1, param.getEmail());
+            loginThrottle.succeeded(param.getEmail());
 
-                try (ResultSet row = preparedStatement.executeQuery()) {
-                    if (!row.next()) {
-                        result.setStatus(ResultForLogin.Status.INVALID_CREDENTIAL);
-                        return result;
+            // Hashes from before the last calibration are upgraded while the password is at hand. A busy hasher only
+            // postpones that to a later login.
+            String newPwHash = null;
+
+            if (PasswordEncoder.needsRehash(pwHash)) {
+                try {
+                    newPwHash = passwordHasher.encode(param.getPassword());
+                } catch (PasswordHasher.BusyException e) {
+                    newPwHash = null;
+                }
+            }
+
+            try (Connection connection = database.getWriteConnection()) {
+                connection.setAutoCommit(false);
+
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "select " +
+                                "U.UserID, " +
+                                "U.FirstName, " +
+                                "U.LastName, " +
+                                "U.Email, " +
+                                "U.IDNumber, " +
+                                "U.IDType, " +
+                                "U.Role, " +
+                                (withPictures ? "U.ProfilePicHash, " : "'' as ProfilePicHash, ") +
+                                "U.Status, " +
+                                "C.UserID as CreatedByUserID, " +
+                                "C.FirstName || ' ' || C.LastName as CreatedByUserName, " +
+                                "U.CreatedOn " +
+                                "from Users as U " +
+                                "inner join Users as C on C.UserID = U.CreatedBy " +
+                                "where U.UserID = ? and U.PwHash = ?"
+                )) {
+                    preparedStatement.setInt(1, userId);
+                    preparedStatement.setString(2, pwHash);
+
+                    try (ResultSet row = preparedStatement.executeQuery()) {
+                        // Deleted, or its password changed or reset, while the old one was being checked
+                        if (!row.next()) {
+                            result.setStatus(ResultForLogin.Status.INVALID_CREDENTIAL);
+                            return result;
+                        }
+
+                        User user = result.getUser();
+                        user.setUserId(row.getInt(1));
+                        user.setFirstName(row.getString(2));
+                        user.setLastName(row.getString(3));
+                        user.setEmail(row.getString(4));
+                        user.setIdNumber(row.getString(5));
+                        user.setIdType(row.getString(6));
+                        user.setRole(row.getString(7));
+                        user.setProfilePic(imageStore.read(row.getString(8)));
+                        user.setStatus(row.getString(9));
+                        user.setCreatedByUserId(row.getInt(10));
+                        user.setCreatedByUserName(row.getString(11));
+                        user.setCreatedOn(LocalDateTime.parse(row.getString(12)));
                     }
+                }
 
-                    if (!PasswordEncoder.verify(param.getPassword(), row.getString(13))) {
-                        result.setStatus(ResultForLogin.Status.INVALID_CREDENTIAL);
-                        return result;
+                if (newPwHash != null) {
+                    try (PreparedStatement preparedStatement = connection.prepareStatement(
+                            "update Users set PwHash = ? where UserID = ? and PwHash = ?"
+                    )) {
+                        preparedStatement.setString(1, newPwHash);
+                        preparedStatement.setInt(2, userId);
+                        preparedStatement.setString(3, pwHash);
+
+                        preparedStatement.executeUpdate();
                     }
+                }
 
-                    User user = result.getUser();
-                    user.setUserId(row.getInt(1));
-                    user.setFirstName(row.getString(2));
-                    user.setLastName(row.getString(3));
-                    user.setEmail(row.getString(4));
-                    user.setIdNumber(row.getString(5));
-                    user.setIdType(row.getString(6));
-                    user.setRole(row.getString(7));
-                    user.setProfilePic(row.getBytes(8));
-                    user.setStatus(row.getString(9));
-                    user.setCreatedByUserId(row.getInt(10));
-                    user.setCreatedByUserName(row.getString(11));
-                    user.setCreatedOn(LocalDateTime.parse(row.getString(12)));
+                long now = SessionSweeper.now();
+
+                if (sessionTokens != null) {
+                    result.setSessionId(sessionTokens.issue(
+                            connection, result.getUser().getUserId(), result.getUser().getRole(), now
+                    ));
+                    connection.commit();
+                    return result;
                 }
-            }
 
-            result.setSessionId(RandomStrGenerator.generateSessionId());
+                result.setSessionId(RandomStrGenerator.generateSessionId());
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "insert into Sessions (SessionID, UserID) values (?, ?)"
-            )) {
-                preparedStatement.setString(1, result.getSessionId());
-                preparedStatement.setInt(2, result.getUser().getUserId());
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "insert into Sessions (SessionID, UserID, CreatedOn, LastSeenOn) values (?, ?, ?, ?)"
+                )) {
+                    preparedStatement.setString(1, result.getSessionId());
+                    preparedStatement.setInt(2, result.getUser().getUserId());
+                    preparedStatement.setLong(3, now);
+                    preparedStatement.setLong(4, now);
 
-                preparedStatement.executeUpdate();
+                    preparedStatement.executeUpdate();
+                }
+
+                connection.commit();
+
+                sessionCache.put(
+                        result.getSessionId(), result.getUser().getUserId(), result.getUser().getRole(), now, now,
+                        sessionCache.getGeneration()
+                );
             }
 
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForLogin.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForLogin.Status.SERVER_ERROR);
+        } catch (PasswordHasher.BusyException e) {
+            result.setStatus(ResultForLogin.Status.SERVER_ERROR);
         }
 
         return result;
@@ -773,13 +1128,22 @@ public class Repo implements sungro.api.Repo {
     public ResultForLogout logout(ParamForLogout param) throws RemoteException {
         ResultForLogout result = new ResultForLogout();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getWriteConnection()) {
+            connection.setAutoCommit(false);
+
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForLogout.Status.INVALID_SESSION_ID);
                 return result;
             }
 
+            // A token can't be revoked on its own, so this logs the user out everywhere
+            if (SessionTokens.isToken(param.getSessionId())) {
+                sessionTokens.revoke(connection, currentUser.getUserId());
+                connection.commit();
+                return result;
+            }
+
             try (PreparedStatement preparedStatement = connection.prepareStatement(
                     "delete from Sessions where SessionID = ?"
             )) {
@@ -788,6 +1152,9 @@ public class Repo implements sungro.api.Repo {
                 preparedStatement.executeUpdate();
             }
 
+            connection.commit();
+            sessionCache.invalidate(param.getSessionId());
+
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForLogout.Status.SERVER_ERROR);
@@ -796,67 +1163,130 @@ public class Repo implements sungro.api.Repo {
         return result;
     }
 
+    public ResultForGetQueryStats getQueryStats(ParamForGetQueryStats param) throws RemoteException {
+        ResultForGetQueryStats result = new ResultForGetQueryStats();
+
+        try (Connection connection = database.getReadConnection()) {
+            User currentUser = getCurrentUser(connection, param.getSessionId());
+            if (currentUser == null) {
+                result.setStatus(ResultForGetQueryStats.Status.INVALID_SESSION_ID);
+                return result;
+            }
+
+            if (!currentUser.getRole().equals("Admin")) {
+                result.setStatus(ResultForGetQueryStats.Status.PERMISSION_DENIED);
+                return result;
+            }
+        } catch (SQLException throwables) {
+            throwables.printStackTrace();
+            result.setStatus(ResultForGetQueryStats.Status.SERVER_ERROR);
+            return result;
+        }
+
+        result.getStatements().addAll(database.getQueryStats().getStatements());
+
+        if (param.isReset()) {
+            database.getQueryStats().reset();
+        }
+
+        return result;
+    }
+
     @Override
     public ResultForGetManyProducts getManyProducts(ParamForGetManyProducts param) throws RemoteException {
+        return getManyProducts(param, newListOptions());
+    }
+
+    public ResultForGetManyProducts getManyProducts(ParamForGetManyProducts param, ListOptions options)
+            throws RemoteException {
         ResultForGetManyProducts result = new ResultForGetManyProducts();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getReadConnection()) {
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForGetManyProducts.Status.INVALID_SESSION_ID);
                 return result;
             }
 
-            QueryBuilder queryData = new QueryBuilder();
-
-            queryData.appendSelect(
-                    "select " +
-                            "P.ProductID, " +
-                            "P.Name, " +
-                            "P.Category, " +
-                            "P.ProductPrice, " +
-                            "P.ProductPic, " +
-                            "P.Status, " +
-                            "C.UserID as CreatedByUserID, " +
-                            "C.FirstName || ' ' || C.LastName as CreatedByUserName, " +
-                            "P.CreatedOn "
-            );
-
-            queryData.appendFrom(
-                    "from Products as P " +
-                            "inner join Users as C " +
-                            "on C.UserID = P.CreatedBy "
-            );
+            int shape = 0;
 
             if (!param.getName().isBlank()) {
-                queryData.appendWhere("P.Name like ? ");
-                queryData.addStringToWhere(param.getName() + "%");
+                shape |= PRODUCTS_BY_NAME;
             }
 
             if (!param.getCategory().isBlank()) {
-                queryData.appendWhere("P.Category = ? ");
-                queryData.addStringToWhere(param.getCategory());
+                shape |= PRODUCTS_BY_CATEGORY;
             }
 
             if (!param.getStatus().isBlank()) {
-                queryData.appendWhere("P.Status = ? ");
-                queryData.addStringToWhere(param.getStatus());
+                shape |= PRODUCTS_BY_STATUS;
+            }
+
+            if (options.getAfterId() != 0) {
+                shape |= PRODUCTS_AFTER_ID;
+            }
+
+            if (!options.isWithPictures()) {
+                shape |= PRODUCTS_WITHOUT_PICTURES;
+            }
+
+            boolean hasMoreOnly = options.getCountMode() == ListOptions.CountMode.HAS_MORE;
+            // Totals of the common shapes are kept in memory. For the rest, a window count gives the total along with
+            // the page, except in cursor mode where it would only count the rows after the cursor.
+            int rowCount = hasMoreOnly ? -1 : countProducts(shape & ~(PRODUCTS_AFTER_ID | PRODUCTS_WITHOUT_PICTURES), param);
+            boolean withTotal = !hasMoreOnly && rowCount < 0 && (shape & PRODUCTS_AFTER_ID) == 0;
+
+            QueryTemplate query = manyProductsQueries.get(shape);
+            Object[] values = new Object[query.getParamCount()];
+            int i = 0;
+
+            if ((shape & PRODUCTS_BY_NAME) != 0) {
+                values[i++] = param.getName() + "%";
+            }
+
+            if ((shape & PRODUCTS_BY_CATEGORY) != 0) {
+                values[i++] = param.getCategory();
+            }
+
+            if ((shape & PRODUCTS_BY_STATUS) != 0) {
+                values[i++] = param.getStatus();
+            }
+
+            if ((shape & PRODUCTS_AFTER_ID) != 0) {
+                values[i++] = options.getAfterId();
             }
 
-            queryData.appendRemaining("order by P.ProductID desc limit 20 offset ? ");
-            queryData.addIntToRemaining((param.getPage() - 1) * 20);
+            // One extra row tells whether there is a next page without counting
+            values[i++] = hasMoreOnly ? PAGE_SIZE + 1 : PAGE_SIZE;
+
+            if ((shape & PRODUCTS_AFTER_ID) == 0) {
+                values[i] = (param.getPage() - 1) * PAGE_SIZE;
+            }
+
+            boolean hasMore = false;
 
             try (
-                    PreparedStatement preparedStatement = queryData.prepare(connection);
+                    PreparedStatement preparedStatement = withTotal
+                            ? query.prepareWithTotal(connection, values)
+                            : query.prepare(connection, values);
                     ResultSet row = preparedStatement.executeQuery()
             ) {
                 while (row.next()) {
+                    if (result.getProducts().size() == PAGE_SIZE) {
+                        hasMore = true;
+                        break;
+                    }
+
+                    if (withTotal) {
+                        rowCount = row.getInt(10);
+                    }
+
                     Product product = new Product();
                     product.setProductId(row.getInt(1));
                     product.setName(row.getString(2));
                     product.setCategory(row.getString(3));
                     product.setProductPrice(BigDecimal.valueOf(row.getInt(4), 2));
-                    product.setProductPic(row.getBytes(5));
+                    product.setProductPic(readPicture(connection, row.getString(5), options.getThumbnailSize()));
                     product.setStatus(row.getString(6));
                     product.setCreatedByUserId(row.getInt(7));
                     product.setCreatedByUserName(row.getString(8));
@@ -866,25 +1296,24 @@ public class Repo implements sungro.api.Repo {
                 }
             }
 
-            QueryBuilder queryCount = new QueryBuilder();
-
-            queryCount.appendSelect("select count(*) ");
-            queryCount.appendFrom(queryData.getFrom());
-            queryCount.appendWhere(queryData.getWhere());
-            queryCount.getWhereParams().addAll(queryData.getWhereParams());
+            if (hasMoreOnly) {
+                result.setMaxPage(hasMore ? param.getPage() + 1 : param.getPage());
+            } else {
+                // The total ignores the cursor, so it is counted with the same filters in offset mode. This is also
+                // the fallback for a page past the end, which has no rows to carry the window count.
+                if (rowCount < 0) {
+                    rowCount = count(connection, manyProductsQueries.get(shape & ~PRODUCTS_AFTER_ID), values);
+                }
 
-            try (
-                    PreparedStatement preparedStatement = queryCount.prepare(connection);
-                    ResultSet row = preparedStatement.executeQuery()
-            ) {
-                row.next();
-                int rowCount = row.getInt(1);
-                result.setMaxPage((rowCount - 1) / 20 + 1);
+                result.setMaxPage((rowCount - 1) / PAGE_SIZE + 1);
             }
 
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForGetManyProducts.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForGetManyProducts.Status.SERVER_ERROR);
         }
 
         result.setCurrentPage(param.getPage());
@@ -896,7 +1325,7 @@ public class Repo implements sungro.api.Repo {
     public ResultForGetOneProduct getOneProduct(ParamForGetOneProduct param) throws RemoteException {
         ResultForGetOneProduct result = new ResultForGetOneProduct();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getReadConnection()) {
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForGetOneProduct.Status.INVALID_SESSION_ID);
@@ -909,7 +1338,7 @@ public class Repo implements sungro.api.Repo {
                             "P.Name, " +
                             "P.Category, " +
                             "P.ProductPrice, " +
-                            "P.ProductPic, " +
+                            "P.ProductPicHash, " +
                             "P.Status, " +
                             "C.UserID as CreatedByUserID, " +
                             "C.FirstName || ' ' || C.LastName as CreatedByUserName, " +
@@ -928,7 +1357,7 @@ public class Repo implements sungro.api.Repo {
                         product.setName(row.getString(2));
                         product.setCategory(row.getString(3));
                         product.setProductPrice(BigDecimal.valueOf(row.getInt(4), 2));
-                        product.setProductPic(row.getBytes(5));
+                        product.setProductPic(imageStore.read(row.getString(5)));
                         product.setStatus(row.getString(6));
                         product.setCreatedByUserId(row.getInt(7));
                         product.setCreatedByUserName(row.getString(8));
@@ -941,6 +1370,9 @@ public class Repo implements sungro.api.Repo {
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForGetOneProduct.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForGetOneProduct.Status.SERVER_ERROR);
         }
 
         return result;
@@ -950,7 +1382,9 @@ public class Repo implements sungro.api.Repo {
     public ResultForAddProduct addProduct(ParamForAddProduct param) throws RemoteException {
         ResultForAddProduct result = new ResultForAddProduct();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getWriteConnection()) {
+            connection.setAutoCommit(false);
+
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForAddProduct.Status.INVALID_SESSION_ID);
@@ -1002,23 +1436,27 @@ public class Repo implements sungro.api.Repo {
                 return result;
             }
 
+            String productPicHash = imageStore.acquire(connection, param.getProductPic());
+
             try (PreparedStatement preparedStatement = connection.prepareStatement(
                     "insert into Products ( " +
                             "Name, Category, ProductPrice, ProductPic, Status, " +
-                            "CreatedBy, CreatedOn " +
+                            "CreatedBy, CreatedOn, ProductPicHash " +
                             ") " +
                             "values ( " +
                             "?, ?, ?, ?, ?, " +
-                            "?, ? " +
+                            "?, ?, ? " +
                             ")"
             )) {
                 preparedStatement.setString(1, param.getName());
                 preparedStatement.setString(2, param.getCategory());
                 preparedStatement.setInt(3, param.getProductPrice().movePointRight(2).intValue());
-                preparedStatement.setBytes(4, param.getProductPic());
+                // The picture itself is in the image store
+                preparedStatement.setBytes(4, new byte[0]);
                 preparedStatement.setString(5, param.getStatus());
                 preparedStatement.setInt(6, currentUser.getUserId());
                 preparedStatement.setString(7, LocalDateTime.now().toString());
+                preparedStatement.setString(8, productPicHash);
 
                 preparedStatement.executeUpdate();
             }
@@ -1030,9 +1468,17 @@ public class Repo implements sungro.api.Repo {
                 }
             }
 
+            connection.commit();
+
+            thumbnailer.submit(productPicHash);
+            rowCounters.addProducts(param.getCategory(), param.getStatus(), 1);
+
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForAddProduct.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForAddProduct.Status.SERVER_ERROR);
         }
 
         return result;
@@ -1042,22 +1488,30 @@ public class Repo implements sungro.api.Repo {
     public ResultForDeleteProduct deleteProduct(ParamForDeleteProduct param) throws RemoteException {
         ResultForDeleteProduct result = new ResultForDeleteProduct();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getWriteConnection()) {
+            connection.setAutoCommit(false);
+
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForDeleteProduct.Status.INVALID_SESSION_ID);
                 return result;
             }
 
+            String category;
+            String status;
+            String productPicHash;
+
             try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select exists(select 1 from Products where ProductID = ?)"
+                    "select Category, Status, ProductPicHash from Products where ProductID = ?"
             )) {
                 preparedStatement.setInt(1, param.getProductId());
 
                 try (ResultSet row = preparedStatement.executeQuery()) {
-                    row.next();
-
-                    if (row.getInt(1) == 0) {
+                    if (row.next()) {
+                        category = row.getString(1);
+                        status = row.getString(2);
+                        productPicHash = row.getString(3);
+                    } else {
                         result.setStatus(ResultForDeleteProduct.Status.NOT_FOUND);
                         return result;
                     }
@@ -1087,6 +1541,12 @@ public class Repo implements sungro.api.Repo {
                 preparedStatement.executeUpdate();
             }
 
+            imageStore.release(connection, productPicHash);
+
+            connection.commit();
+
+            rowCounters.addProducts(category, status, -1);
+
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForDeleteProduct.Status.SERVER_ERROR);
@@ -1099,22 +1559,30 @@ public class Repo implements sungro.api.Repo {
     public ResultForSetProduct setProduct(ParamForSetProduct param) throws RemoteException {
         ResultForSetProduct result = new ResultForSetProduct();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getWriteConnection()) {
+            connection.setAutoCommit(false);
+
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForSetProduct.Status.INVALID_SESSION_ID);
                 return result;
             }
 
+            String category;
+            String status;
+            String productPicHash;
+
             try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select exists(select 1 from Products where ProductID = ?)"
+                    "select Category, Status, ProductPicHash from Products where ProductID = ?"
             )) {
                 preparedStatement.setInt(1, param.getProductId());
 
                 try (ResultSet row = preparedStatement.executeQuery()) {
-                    row.next();
-
-                    if (row.getInt(1) == 0) {
+                    if (row.next()) {
+                        category = row.getString(1);
+                        status = row.getString(2);
+                        productPicHash = row.getString(3);
+                    } else {
                         result.setStatus(ResultForSetProduct.Status.NOT_FOUND);
                         return result;
                     }
@@ -1179,9 +1647,14 @@ public class Repo implements sungro.api.Repo {
             updateBuilder.appendSet("ProductPrice = ? ");
             updateBuilder.addIntToSet(param.getProductPrice().movePointRight(2).intValue());
 
+            String newProductPicHash = "";
+
             if (param.getProductPic().length != 0) {
-                updateBuilder.appendSet("ProductPic = ? ");
-                updateBuilder.addBytesToSet(param.getProductPic());
+                updateBuilder.appendSet("ProductPicHash = ? ");
+                newProductPicHash = imageStore.acquire(connection, param.getProductPic());
+                updateBuilder.addStringToSet(newProductPicHash);
+
+                imageStore.release(connection, productPicHash);
             }
 
             updateBuilder.appendSet("Status = ? ");
@@ -1193,9 +1666,22 @@ public class Repo implements sungro.api.Repo {
             try (PreparedStatement preparedStatement = updateBuilder.prepare(connection)) {
                 preparedStatement.executeUpdate();
             }
+
+            if (!category.equals(param.getCategory())) {
+                SalesRollups.moveCategory(connection, param.getProductId(), category, param.getCategory());
+            }
+
+            connection.commit();
+
+            thumbnailer.submit(newProductPicHash);
+            rowCounters.addProducts(category, status, -1);
+            rowCounters.addProducts(param.getCategory(), param.getStatus(), 1);
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForSetProduct.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForSetProduct.Status.SERVER_ERROR);
         }
 
         return result;
@@ -1203,83 +1689,123 @@ public class Repo implements sungro.api.Repo {
 
     @Override
     public ResultForGetManyStock getManyStock(ParamForGetManyStock param) throws RemoteException {
+        return getManyStock(param, newListOptions());
+    }
+
+    public ResultForGetManyStock getManyStock(ParamForGetManyStock param, ListOptions options) throws RemoteException {
         ResultForGetManyStock result = new ResultForGetManyStock();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getReadConnection()) {
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForGetManyStock.Status.INVALID_SESSION_ID);
                 return result;
             }
 
-            QueryBuilder queryData = new QueryBuilder();
-
-            queryData.appendSelect(
-                    "select " +
-                            "S.SKU, " +
-                            "P.ProductID, " +
-                            "P.Name, " +
-                            "P.Category, " +
-                            "P.ProductPrice, " +
-                            "P.ProductPic, " +
-                            "S.Quantity, " +
-                            "S.ExpDate, " +
-                            "C.UserID as CreatedByUserID, " +
-                            "C.FirstName || ' ' || C.LastName as CreatedByUserName, " +
-                            "S.CreatedOn "
-            );
-
-            queryData.appendFrom(
-                    "from Stock as S " +
-                            "inner join Users as C on C.UserID = S.CreatedBy " +
-                            "inner join Products as P on P.ProductID = S.ProductID "
-            );
+            int shape = 0;
 
             if (!param.getSku().isBlank()) {
-                queryData.appendWhere("S.SKU = ? ");
-                queryData.addStringToWhere(param.getSku());
+                shape |= STOCK_BY_SKU;
             }
 
             if (param.getProductId() != 0) {
-                queryData.appendWhere("S.ProductID = ? ");
-                queryData.addIntToWhere(param.getProductId());
+                shape |= STOCK_BY_PRODUCT_ID;
             }
 
             if (!param.getName().isBlank()) {
-                queryData.appendWhere("P.Name like ? ");
-                queryData.addStringToWhere(param.getName() + "%");
+                shape |= STOCK_BY_NAME;
             }
 
             if (!param.getCategory().isBlank()) {
-                queryData.appendWhere("P.Category = ? ");
-                queryData.addStringToWhere(param.getCategory());
+                shape |= STOCK_BY_CATEGORY;
             }
 
             if (!param.getExpiryDateFrom().isEqual(LocalDate.of(1970, 1, 1))) {
-                queryData.appendWhere("S.ExpDate >= ? ");
-                queryData.addStringToWhere(param.getExpiryDateFrom().toString());
+                shape |= STOCK_BY_EXPIRY_DATE_FROM;
             }
 
             if (!param.getExpiryDateTo().isEqual(LocalDate.of(1970, 1, 1))) {
-                queryData.appendWhere("S.ExpDate <= ? ");
-                queryData.addStringToWhere(param.getExpiryDateTo().toString());
+                shape |= STOCK_BY_EXPIRY_DATE_TO;
+            }
+
+            if (!options.getAfterSku().isBlank()) {
+                shape |= STOCK_AFTER_SKU;
+            }
+
+            if (!options.isWithPictures()) {
+                shape |= STOCK_WITHOUT_PICTURES;
+            }
+
+            boolean hasMoreOnly = options.getCountMode() == ListOptions.CountMode.HAS_MORE;
+            // Totals of the common shapes are kept in memory. For the rest, a window count gives the total along with
+            // the page, except in cursor mode where it would only count the rows after the cursor.
+            int rowCount = hasMoreOnly ? -1 : countStock(shape & ~(STOCK_AFTER_SKU | STOCK_WITHOUT_PICTURES), param);
+            boolean withTotal = !hasMoreOnly && rowCount < 0 && (shape & STOCK_AFTER_SKU) == 0;
+
+            QueryTemplate query = manyStockQueries.get(shape);
+            Object[] values = new Object[query.getParamCount()];
+            int i = 0;
+
+            if ((shape & STOCK_BY_SKU) != 0) {
+                values[i++] = param.getSku();
+            }
+
+            if ((shape & STOCK_BY_PRODUCT_ID) != 0) {
+                values[i++] = param.getProductId();
+            }
+
+            if ((shape & STOCK_BY_NAME) != 0) {
+                values[i++] = param.getName() + "%";
+            }
+
+            if ((shape & STOCK_BY_CATEGORY) != 0) {
+                values[i++] = param.getCategory();
+            }
+
+            if ((shape & STOCK_BY_EXPIRY_DATE_FROM) != 0) {
+                values[i++] = param.getExpiryDateFrom().toString();
+            }
+
+            if ((shape & STOCK_BY_EXPIRY_DATE_TO) != 0) {
+                values[i++] = param.getExpiryDateTo().toString();
+            }
+
+            if ((shape & STOCK_AFTER_SKU) != 0) {
+                values[i++] = options.getAfterSku();
+            }
+
+            // One extra row tells whether there is a next page without counting
+            values[i++] = hasMoreOnly ? PAGE_SIZE + 1 : PAGE_SIZE;
+
+            if ((shape & STOCK_AFTER_SKU) == 0) {
+                values[i] = (param.getPage() - 1) * PAGE_SIZE;
             }
 
-            queryData.appendRemaining("limit 20 offset ? ");
-            queryData.addIntToRemaining((param.getPage() - 1) * 20);
+            boolean hasMore = false;
 
             try (
-                    PreparedStatement preparedStatement = queryData.prepare(connection);
+                    PreparedStatement preparedStatement = withTotal
+                            ? query.prepareWithTotal(connection, values)
+                            : query.prepare(connection, values);
                     ResultSet row = preparedStatement.executeQuery()
             ) {
                 while (row.next()) {
+                    if (result.getStock().size() == PAGE_SIZE) {
+                        hasMore = true;
+                        break;
+                    }
+
+                    if (withTotal) {
+                        rowCount = row.getInt(12);
+                    }
+
                     Stock stock = new Stock();
                     stock.setSku(row.getString(1));
                     stock.setProductId(row.getInt(2));
                     stock.setProductName(row.getString(3));
                     stock.setProductCategory(row.getString(4));
                     stock.setProductPrice(BigDecimal.valueOf(row.getInt(5), 2));
-                    stock.setProductPic(row.getBytes(6));
+                    stock.setProductPic(readPicture(connection, row.getString(6), options.getThumbnailSize()));
                     stock.setQuantity(row.getInt(7));
                     stock.setExpiryDate(LocalDate.parse(row.getString(8)));
                     stock.setCreatedByUserId(row.getInt(9));
@@ -1290,25 +1816,24 @@ public class Repo implements sungro.api.Repo {
                 }
             }
 
-            QueryBuilder queryCount = new QueryBuilder();
-
-            queryCount.appendSelect("select count(*) ");
-            queryCount.appendFrom(queryData.getFrom());
-            queryCount.appendWhere(queryData.getWhere());
-            queryCount.getWhereParams().addAll(queryData.getWhereParams());
+            if (hasMoreOnly) {
+                result.setMaxPage(hasMore ? param.getPage() + 1 : param.getPage());
+            } else {
+                // The total ignores the cursor, so it is counted with the same filters in offset mode. This is also
+                // the fallback for a page past the end, which has no rows to carry the window count.
+                if (rowCount < 0) {
+                    rowCount = count(connection, manyStockQueries.get(shape & ~STOCK_AFTER_SKU), values);
+                }
 
-            try (
-                    PreparedStatement preparedStatement = queryCount.prepare(connection);
-                    ResultSet row = preparedStatement.executeQuery()
-            ) {
-                row.next();
-                int rowCount = row.getInt(1);
-                result.setMaxPage((rowCount - 1) / 20 + 1);
+                result.setMaxPage((rowCount - 1) / PAGE_SIZE + 1);
             }
 
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForGetManyStock.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForGetManyStock.Status.SERVER_ERROR);
         }
 
         result.setCurrentPage(param.getPage());
@@ -1320,7 +1845,7 @@ public class Repo implements sungro.api.Repo {
     public ResultForGetOneStock getOneStock(ParamForGetOneStock param) throws RemoteException {
         ResultForGetOneStock result = new ResultForGetOneStock();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getReadConnection()) {
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForGetOneStock.Status.INVALID_SESSION_ID);
@@ -1334,7 +1859,7 @@ public class Repo implements sungro.api.Repo {
                             "P.Name, " +
                             "P.Category, " +
                             "P.ProductPrice, " +
-                            "P.ProductPic, " +
+                            "P.ProductPicHash, " +
                             "S.Quantity, " +
                             "S.ExpDate, " +
                             "C.UserID as CreatedByUserID, " +
@@ -1355,7 +1880,7 @@ public class Repo implements sungro.api.Repo {
                         stock.setProductName(row.getString(3));
                         stock.setProductCategory(row.getString(4));
                         stock.setProductPrice(BigDecimal.valueOf(row.getInt(5), 2));
-                        stock.setProductPic(row.getBytes(6));
+                        stock.setProductPic(imageStore.read(row.getString(6)));
                         stock.setQuantity(row.getInt(7));
                         stock.setExpiryDate(LocalDate.parse(row.getString(8)));
                         stock.setCreatedByUserId(row.getInt(9));
@@ -1369,6 +1894,9 @@ public class Repo implements sungro.api.Repo {
         } catch (SQLException throwables) {
             throwables.printStackTrace();
             result.setStatus(ResultForGetOneStock.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForGetOneStock.Status.SERVER_ERROR);
         }
 
         return result;
@@ -1378,7 +1906,7 @@ public class Repo implements sungro.api.Repo {
     public ResultForGetManyStockTrx getManyStockTrx(ParamForGetManyStockTrx param) throws RemoteException {
         ResultForGetManyStockTrx result = new ResultForGetManyStockTrx();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getReadConnection()) {
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForGetManyStockTrx.Status.INVALID_SESSION_ID);
@@ -1412,10 +1940,11 @@ public class Repo implements sungro.api.Repo {
                             "from StockTrx as T " +
                             "left join Users as C on C.UserID = T.CreatedBy " +
                             "where T.SKU = ? " +
-                            "order by T.StockTrxID desc limit 20 offset ?"
+                            "order by T.StockTrxID desc limit ? offset ?"
             )) {
                 preparedStatement.setString(1, param.getSku());
-                preparedStatement.setInt(2, (param.getPage() - 1) * 20);
+                preparedStatement.setInt(2, PAGE_SIZE);
+                preparedStatement.setInt(3, (param.getPage() - 1) * PAGE_SIZE);
 
                 try (ResultSet row = preparedStatement.executeQuery()) {
                     while (row.next()) {
@@ -1447,234 +1976,262 @@ public class Repo implements sungro.api.Repo {
     public ResultForAddStock addStock(ParamForAddStock param) throws RemoteException {
         ResultForAddStock result = new ResultForAddStock();
 
-        try (Connection connection = database.getConnection()) {
-            User currentUser = getCurrentUser(connection, param.getSessionId());
-            if (currentUser == null) {
-                result.setStatus(ResultForAddStock.Status.INVALID_SESSION_ID);
-                return result;
-            }
+        try {
+            return writePipeline.execute((connection, afterCommit) -> addStock(connection, afterCommit, param));
+        } catch (SQLException throwables) {
+            throwables.printStackTrace();
+            result.setStatus(ResultForAddStock.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForAddStock.Status.SERVER_ERROR);
+        }
 
-            if (param.getProductId() == 0) {
-                result.setStatus(ResultForAddStock.Status.MISSING_PRODUCT_ID);
-                return result;
-            }
+        return result;
+    }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select exists(select 1 from Products where ProductID = ?)"
-            )) {
-                preparedStatement.setInt(1, param.getProductId());
+    private ResultForAddStock addStock(
+            Connection connection, WritePipeline.AfterCommit afterCommit, ParamForAddStock param
+    ) throws SQLException {
+        ResultForAddStock result = new ResultForAddStock();
 
-                try (ResultSet row = preparedStatement.executeQuery()) {
-                    row.next();
+        User currentUser = getCurrentUser(connection, param.getSessionId());
+        if (currentUser == null) {
+            result.setStatus(ResultForAddStock.Status.INVALID_SESSION_ID);
+            return result;
+        }
 
-                    if (row.getInt(1) == 0) {
-                        result.setStatus(ResultForAddStock.Status.INVALID_PRODUCT_ID);
-                        return result;
-                    }
+        if (param.getProductId() == 0) {
+            result.setStatus(ResultForAddStock.Status.MISSING_PRODUCT_ID);
+            return result;
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "select exists(select 1 from Products where ProductID = ?)"
+        )) {
+            preparedStatement.setInt(1, param.getProductId());
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                row.next();
+
+                if (row.getInt(1) == 0) {
+                    result.setStatus(ResultForAddStock.Status.INVALID_PRODUCT_ID);
+                    return result;
                 }
             }
+        }
 
-            if (param.getQuantity() == 0) {
-                result.setStatus(ResultForAddStock.Status.MISSING_QUANTITY);
-                return result;
-            }
+        if (param.getQuantity() == 0) {
+            result.setStatus(ResultForAddStock.Status.MISSING_QUANTITY);
+            return result;
+        }
 
-            if (param.getQuantity() < 0) {
-                result.setStatus(ResultForAddStock.Status.INVALID_QUANTITY);
-                return result;
-            }
+        if (param.getQuantity() < 0) {
+            result.setStatus(ResultForAddStock.Status.INVALID_QUANTITY);
+            return result;
+        }
 
-            if (param.getExpiryDate().compareTo(LocalDate.of(1970, 1, 1)) == 0) {
-                result.setStatus(ResultForAddStock.Status.MISSING_EXPIRY_DATE);
-                return result;
-            }
+        if (param.getExpiryDate().compareTo(LocalDate.of(1970, 1, 1)) == 0) {
+            result.setStatus(ResultForAddStock.Status.MISSING_EXPIRY_DATE);
+            return result;
+        }
 
-            result.setNewSku(RandomStrGenerator.generateSku());
-            String now = LocalDateTime.now().toString();
+        result.setNewSku(RandomStrGenerator.generateSku());
+        String now = LocalDateTime.now().toString();
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "insert into Stock ( " +
-                            "SKU, ProductID, ExpDate, Quantity, CreatedBy, " +
-                            "CreatedOn " +
-                            ") " +
-                            "values ( " +
-                            "?, ?, ?, ?, ?, " +
-                            "? " +
-                            ")"
-            )) {
-                preparedStatement.setString(1, result.getNewSku());
-                preparedStatement.setInt(2, param.getProductId());
-                preparedStatement.setString(3, param.getExpiryDate().toString());
-                preparedStatement.setInt(4, param.getQuantity());
-                preparedStatement.setInt(5, currentUser.getUserId());
-                preparedStatement.setString(6, now);
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "insert into Stock ( " +
+                        "SKU, ProductID, ExpDate, Quantity, CreatedBy, " +
+                        "CreatedOn " +
+                        ") " +
+                        "values ( " +
+                        "?, ?, ?, ?, ?, " +
+                        "? " +
+                        ")"
+        )) {
+            preparedStatement.setString(1, result.getNewSku());
+            preparedStatement.setInt(2, param.getProductId());
+            preparedStatement.setString(3, param.getExpiryDate().toString());
+            preparedStatement.setInt(4, param.getQuantity());
+            preparedStatement.setInt(5, currentUser.getUserId());
+            preparedStatement.setString(6, now);
+
+            preparedStatement.executeUpdate();
+        }
 
-                preparedStatement.executeUpdate();
-            }
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "insert into StockTrx ( " +
+                        "SKU, QuantityVaried, Remark, CreatedBy, CreatedOn " +
+                        ") " +
+                        "values ( " +
+                        "?, ?, ?, ?, ? " +
+                        ")"
+        )) {
+            preparedStatement.setString(1, result.getNewSku());
+            preparedStatement.setInt(2, param.getQuantity());
+            preparedStatement.setString(3, param.getRemark());
+            preparedStatement.setInt(4, currentUser.getUserId());
+            preparedStatement.setString(5, now);
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "insert into StockTrx ( " +
-                            "SKU, QuantityVaried, Remark, CreatedBy, CreatedOn " +
-                            ") " +
-                            "values ( " +
-                            "?, ?, ?, ?, ? " +
-                            ")"
-            )) {
-                preparedStatement.setString(1, result.getNewSku());
-                preparedStatement.setInt(2, param.getQuantity());
-                preparedStatement.setString(3, param.getRemark());
-                preparedStatement.setInt(4, currentUser.getUserId());
-                preparedStatement.setString(5, now);
+            preparedStatement.executeUpdate();
+        }
 
-                preparedStatement.executeUpdate();
-            }
+        afterCommit.add(() -> rowCounters.addStock(param.getProductId(), 1));
+
+        return result;
+    }
 
+    @Override
+    public ResultForDeleteStock deleteStock(ParamForDeleteStock param) throws RemoteException {
+        ResultForDeleteStock result = new ResultForDeleteStock();
+
+        try {
+            return writePipeline.execute((connection, afterCommit) -> deleteStock(connection, afterCommit, param));
         } catch (SQLException throwables) {
             throwables.printStackTrace();
-            result.setStatus(ResultForAddStock.Status.SERVER_ERROR);
+            result.setStatus(ResultForDeleteStock.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForDeleteStock.Status.SERVER_ERROR);
         }
 
         return result;
     }
 
-    @Override
-    public ResultForDeleteStock deleteStock(ParamForDeleteStock param) throws RemoteException {
+    private ResultForDeleteStock deleteStock(
+            Connection connection, WritePipeline.AfterCommit afterCommit, ParamForDeleteStock param
+    ) throws SQLException {
         ResultForDeleteStock result = new ResultForDeleteStock();
 
-        try (Connection connection = database.getConnection()) {
-            User currentUser = getCurrentUser(connection, param.getSessionId());
-            if (currentUser == null) {
-                result.setStatus(ResultForDeleteStock.Status.INVALID_SESSION_ID);
-                return result;
-            }
+        User currentUser = getCurrentUser(connection, param.getSessionId());
+        if (currentUser == null) {
+            result.setStatus(ResultForDeleteStock.Status.INVALID_SESSION_ID);
+            return result;
+        }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select exists(select 1 from Stock where SKU = ?)"
-            )) {
-                preparedStatement.setString(1, param.getSku());
+        int productId;
 
-                try (ResultSet row = preparedStatement.executeQuery()) {
-                    row.next();
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "select ProductID from Stock where SKU = ?"
+        )) {
+            preparedStatement.setString(1, param.getSku());
 
-                    if (row.getInt(1) == 0) {
-                        result.setStatus(ResultForDeleteStock.Status.NOT_FOUND);
-                        return result;
-                    }
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                if (row.next()) {
+                    productId = row.getInt(1);
+                } else {
+                    result.setStatus(ResultForDeleteStock.Status.NOT_FOUND);
+                    return result;
                 }
             }
+        }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select count(*) from StockTrx where SKU = ?"
-            )) {
-                preparedStatement.setString(1, param.getSku());
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "select count(*) from StockTrx where SKU = ?"
+        )) {
+            preparedStatement.setString(1, param.getSku());
 
-                try (ResultSet row = preparedStatement.executeQuery()) {
-                    row.next();
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                row.next();
 
-                    if (row.getInt(1) > 1) {
-                        result.setStatus(ResultForDeleteStock.Status.DEPENDED);
-                        return result;
-                    }
+                if (row.getInt(1) > 1) {
+                    result.setStatus(ResultForDeleteStock.Status.DEPENDED);
+                    return result;
                 }
             }
+        }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "delete from Stock where SKU = ?"
-            )) {
-                preparedStatement.setString(1, param.getSku());
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "delete from StockTrx where SKU = ?"
+        )) {
+            preparedStatement.setString(1, param.getSku());
 
-                preparedStatement.executeUpdate();
-            }
+            preparedStatement.executeUpdate();
+        }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "delete from StockTrx where SKU = ?"
-            )) {
-                preparedStatement.setString(1, param.getSku());
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "delete from Stock where SKU = ?"
+        )) {
+            preparedStatement.setString(1, param.getSku());
 
-                preparedStatement.executeUpdate();
-            }
+            preparedStatement.executeUpdate();
+        }
 
+        afterCommit.add(() -> rowCounters.addStock(productId, -1));
+
+        return result;
+    }
+
+    @Override
+    public ResultForSetStock setStock(ParamForSetStock param) throws RemoteException {
+        ResultForSetStock result = new ResultForSetStock();
+
+        try {
+            return writePipeline.execute((connection, afterCommit) -> setStock(connection, afterCommit, param));
         } catch (SQLException throwables) {
             throwables.printStackTrace();
-            result.setStatus(ResultForDeleteStock.Status.SERVER_ERROR);
+            result.setStatus(ResultForSetStock.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForSetStock.Status.SERVER_ERROR);
         }
 
         return result;
     }
 
-    @Override
-    public ResultForSetStock setStock(ParamForSetStock param) throws RemoteException {
+    private ResultForSetStock setStock(
+            Connection connection, WritePipeline.AfterCommit afterCommit, ParamForSetStock param
+    ) throws SQLException {
         ResultForSetStock result = new ResultForSetStock();
 
-        try (Connection connection = database.getConnection()) {
-            User currentUser = getCurrentUser(connection, param.getSessionId());
-            if (currentUser == null) {
-                result.setStatus(ResultForSetStock.Status.INVALID_SESSION_ID);
-                return result;
-            }
+        User currentUser = getCurrentUser(connection, param.getSessionId());
+        if (currentUser == null) {
+            result.setStatus(ResultForSetStock.Status.INVALID_SESSION_ID);
+            return result;
+        }
 
-            int remainingQuantity;
+        /*
+        if (param.getRemark().isBlank()) {
+            result.setStatus(ResultForSetStock.Status.MISSING_REMARK);
+            return result;
+        }
+        */
 
+        if (param.getQuantityVaried() == 0 || !changeQuantity(connection, param.getSku(), param.getQuantityVaried())) {
+            // Only a change that didn't go through needs to know why
             try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select Quantity from Stock where SKU = ?"
+                    "select exists(select 1 from Stock where SKU = ?)"
             )) {
                 preparedStatement.setString(1, param.getSku());
 
                 try (ResultSet row = preparedStatement.executeQuery()) {
-                    if (row.next()) {
-                        remainingQuantity = row.getInt(1);
-                    } else {
+                    row.next();
+
+                    if (row.getInt(1) == 0) {
                         result.setStatus(ResultForSetStock.Status.NOT_FOUND);
                         return result;
                     }
                 }
             }
 
-            if (param.getQuantityVaried() == 0 || -param.getQuantityVaried() > remainingQuantity) {
-                result.setStatus(ResultForSetStock.Status.INVALID_QUANTITY_VARIED);
-                return result;
-            }
-
-            /*
-            if (param.getRemark().isBlank()) {
-                result.setStatus(ResultForSetStock.Status.MISSING_REMARK);
-                return result;
-            }
-            */
-
-            UpdateBuilder updateBuilder = new UpdateBuilder();
-            updateBuilder.appendUpdate("update Stock ");
-
-            updateBuilder.appendSet("Quantity = ? ");
-            updateBuilder.addIntToSet(remainingQuantity + param.getQuantityVaried());
-
-            updateBuilder.appendWhere("SKU = ? ");
-            updateBuilder.addStringToWhere(param.getSku());
-
-            try (PreparedStatement preparedStatement = updateBuilder.prepare(connection)) {
-                preparedStatement.executeUpdate();
-            }
-
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "insert into StockTrx ( " +
-                            "SKU, QuantityVaried, Remark, CreatedBy, CreatedOn " +
-                            ") " +
-                            "values ( " +
-                            "?, ?, ?, ?, ? " +
-                            ")"
-            )) {
-                preparedStatement.setString(1, param.getSku());
-                preparedStatement.setInt(2, param.getQuantityVaried());
-                preparedStatement.setString(3, param.getRemark());
-                preparedStatement.setInt(4, currentUser.getUserId());
-                preparedStatement.setString(5, LocalDateTime.now().toString());
+            result.setStatus(ResultForSetStock.Status.INVALID_QUANTITY_VARIED);
+            return result;
+        }
 
-                preparedStatement.executeUpdate();
-            }
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "insert into StockTrx ( " +
+                        "SKU, QuantityVaried, Remark, CreatedBy, CreatedOn " +
+                        ") " +
+                        "values ( " +
+                        "?, ?, ?, ?, ? " +
+                        ")"
+        )) {
+            preparedStatement.setString(1, param.getSku());
+            preparedStatement.setInt(2, param.getQuantityVaried());
+            preparedStatement.setString(3, param.getRemark());
+            preparedStatement.setInt(4, currentUser.getUserId());
+            preparedStatement.setString(5, LocalDateTime.now().toString());
 
-        } catch (SQLException throwables) {
-            throwables.printStackTrace();
-            result.setStatus(ResultForSetStock.Status.SERVER_ERROR);
+            preparedStatement.executeUpdate();
         }
 
         return result;
@@ -1682,68 +2239,98 @@ public class Repo implements sungro.api.Repo {
 
     @Override
     public ResultForGetManySales getManySales(ParamForGetManySales param) throws RemoteException {
+        return getManySales(param, newListOptions());
+    }
+
+    public ResultForGetManySales getManySales(ParamForGetManySales param, ListOptions options) throws RemoteException {
         ResultForGetManySales result = new ResultForGetManySales();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getReadConnection()) {
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
                 result.setStatus(ResultForGetManySales.Status.INVALID_SESSION_ID);
                 return result;
             }
 
-            QueryBuilder queryData = new QueryBuilder();
-
-            queryData.appendSelect(
-                    "select " +
-                            "A.SaleID, " +
-                            "O.SKU, " +
-                            "P.ProductID, " +
-                            "P.Name, " +
-                            "P.Category, " +
-                            "A.UnitPrice, " +
-                            "A.SoldQuantity, " +
-                            "A.SoldQuantity * A.UnitPrice as SubTotalPrice, " +
-                            "C.UserID as SoldByUserID, " +
-                            "C.FirstName || ' ' || C.LastName as SoldByUserName, " +
-                            "A.SoldOn "
-            );
-
-            queryData.appendFrom(
-                    "from Sales as A " +
-                            "inner join StockTrx as T on T.StockTrxID = A.StockTrxID " +
-                            "inner join Stock as O on O.SKU = T.SKU " +
-                            "inner join Products as P on P.ProductID = O.ProductID " +
-                            "inner join Users as C on C.UserID = A.SoldBy "
-            );
+            int shape = 0;
 
             if (param.getProductId() != 0) {
-                queryData.appendWhere("P.ProductID = ? ");
-                queryData.addIntToWhere(param.getProductId());
+                shape |= SALES_BY_PRODUCT_ID;
             }
 
             if (!param.getSku().isBlank()) {
-                queryData.appendWhere("A.SKU = ? ");
-                queryData.addStringToWhere(param.getSku());
+                shape |= SALES_BY_SKU;
             }
 
             if (param.getOnDate().compareTo(LocalDate.of(1970, 1, 1)) != 0) {
-                queryData.appendWhere("A.SoldOn like ? ");
-                queryData.addStringToWhere(param.getOnDate().toString() + "%");
+                shape |= SALES_ON_DATE;
             }
 
             if (param.getOnMonth().compareTo(LocalDate.of(1970, 1, 1)) != 0) {
-                queryData.appendWhere("A.SoldOn like ? ");
-                queryData.addStringToWhere(param.getOnMonth().format(DateTimeFormatter.ofPattern("yyyy-MM-%")));
+                shape |= SALES_ON_MONTH;
+            }
+
+            if (options.getAfterId() != 0) {
+                shape |= SALES_AFTER_ID;
+            }
+
+            boolean hasMoreOnly = options.getCountMode() == ListOptions.CountMode.HAS_MORE;
+            // Totals of the common shapes are kept in memory. For the rest, a window count gives the total along with
+            // the page, except in cursor mode where it would only count the rows after the cursor.
+            int rowCount = hasMoreOnly ? -1 : countSales(shape & ~SALES_AFTER_ID, param);
+            boolean withTotal = !hasMoreOnly && rowCount < 0 && (shape & SALES_AFTER_ID) == 0;
+
+            QueryTemplate query = manySalesQueries.get(shape);
+            Object[] values = new Object[query.getParamCount()];
+            int i = 0;
+
+            if ((shape & SALES_BY_PRODUCT_ID) != 0) {
+                values[i++] = param.getProductId();
+            }
+
+            if ((shape & SALES_BY_SKU) != 0) {
+                values[i++] = param.getSku();
+            }
+
+            if ((shape & SALES_ON_DATE) != 0) {
+                values[i++] = toDayKey(param.getOnDate());
             }
 
-            queryData.appendRemaining("order by A.SaleID desc limit 20 offset ? ");
-            queryData.addIntToRemaining((param.getPage() - 1) * 20);
+            if ((shape & SALES_ON_MONTH) != 0) {
+                LocalDate firstDay = param.getOnMonth().withDayOfMonth(1);
+                values[i++] = toDayKey(firstDay);
+                values[i++] = toDayKey(firstDay.plusMonths(1));
+            }
+
+            if ((shape & SALES_AFTER_ID) != 0) {
+                values[i++] = options.getAfterId();
+            }
+
+            // One extra row tells whether there is a next page without counting
+            values[i++] = hasMoreOnly ? PAGE_SIZE + 1 : PAGE_SIZE;
+
+            if ((shape & SALES_AFTER_ID) == 0) {
+                values[i] = (param.getPage() - 1) * PAGE_SIZE;
+            }
+
+            boolean hasMore = false;
 
             try (
-                    PreparedStatement preparedStatement = queryData.prepare(connection);
+                    PreparedStatement preparedStatement = withTotal
+                            ? query.prepareWithTotal(connection, values)
+                            : query.prepare(connection, values);
                     ResultSet row = preparedStatement.executeQuery()
             ) {
                 while (row.next()) {
+                    if (result.getSales().size() == PAGE_SIZE) {
+                        hasMore = true;
+                        break;
+                    }
+
+                    if (withTotal) {
+                        rowCount = row.getInt(12);
+                    }
+
                     Sale sale = new Sale();
                     sale.setSaleId(row.getInt(1));
                     sale.setSku(row.getString(2));
@@ -1761,20 +2348,16 @@ public class Repo implements sungro.api.Repo {
                 }
             }
 
-            QueryBuilder queryCount = new QueryBuilder();
-
-            queryCount.appendSelect("select count(*) ");
-            queryCount.appendFrom(queryData.getFrom());
-            queryCount.appendWhere(queryData.getWhere());
-            queryCount.getWhereParams().addAll(queryData.getWhereParams());
+            if (hasMoreOnly) {
+                result.setMaxPage(hasMore ? param.getPage() + 1 : param.getPage());
+            } else {
+                // The total ignores the cursor, so it is counted with the same filters in offset mode. This is also
+                // the fallback for a page past the end, which has no rows to carry the window count.
+                if (rowCount < 0) {
+                    rowCount = count(connection, manySalesQueries.get(shape & ~SALES_AFTER_ID), values);
+                }
 
-            try (
-                    PreparedStatement preparedStatement = queryCount.prepare(connection);
-                    ResultSet row = preparedStatement.executeQuery()
-            ) {
-                row.next();
-                int rowCount = row.getInt(1);
-                result.setMaxPage((rowCount - 1) / 20 + 1);
+                result.setMaxPage((rowCount - 1) / PAGE_SIZE + 1);
             }
 
         } catch (SQLException throwables) {
@@ -1791,197 +2374,748 @@ public class Repo implements sungro.api.Repo {
     public ResultForAddSale addSale(ParamForAddSale param) throws RemoteException {
         ResultForAddSale result = new ResultForAddSale();
 
-        try (Connection connection = database.getConnection()) {
-            User currentUser = getCurrentUser(connection, param.getSessionId());
-            if (currentUser == null) {
-                result.setStatus(ResultForAddSale.Status.INVALID_SESSION_ID);
-                return result;
-            }
+        try {
+            return writePipeline.execute((connection, afterCommit) -> addSale(connection, afterCommit, param));
+        } catch (SQLException throwables) {
+            throwables.printStackTrace();
+            result.setStatus(ResultForAddSale.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForAddSale.Status.SERVER_ERROR);
+        }
 
-            if (param.getSku().isBlank()) {
-                result.setStatus(ResultForAddSale.Status.MISSING_SKU);
-                return result;
-            }
+        return result;
+    }
 
-            int unitPrice;
-            int remainingQuantity;
+    // Runs in the batch's transaction, so the quantity checked is the one updated, and the sale, the stock and the
+    // rollups commit together
+    // Package-private for DatabaseBenchmark, which times it outside the pipeline
+    ResultForAddSale addSale(
+            Connection connection, WritePipeline.AfterCommit afterCommit, ParamForAddSale param
+    ) throws SQLException {
+        ResultForAddSale result = new ResultForAddSale();
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select P.ProductPrice, O.Quantity " +
-                            "from Stock as O " +
-                            "inner join Products as P on P.ProductID = O.ProductID " +
-                            "where O.SKU = ?"
-            )) {
-                preparedStatement.setString(1, param.getSku());
+        User currentUser = getCurrentUser(connection, param.getSessionId());
+        if (currentUser == null) {
+            result.setStatus(ResultForAddSale.Status.INVALID_SESSION_ID);
+            return result;
+        }
 
-                try (ResultSet row = preparedStatement.executeQuery()) {
-                    if (row.next()) {
-                        unitPrice = row.getInt(1);
-                        remainingQuantity = row.getInt(2);
-                    } else {
-                        result.setStatus(ResultForAddSale.Status.INVALID_SKU);
-                        return result;
-                    }
+        if (param.getSku().isBlank()) {
+            result.setStatus(ResultForAddSale.Status.MISSING_SKU);
+            return result;
+        }
+
+        int unitPrice;
+        int productId;
+        String category;
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "select P.ProductPrice, O.ProductID, P.Category " +
+                        "from Stock as O " +
+                        "inner join Products as P on P.ProductID = O.ProductID " +
+                        "where O.SKU = ?"
+        )) {
+            preparedStatement.setString(1, param.getSku());
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                if (row.next()) {
+                    unitPrice = row.getInt(1);
+                    productId = row.getInt(2);
+                    category = row.getString(3);
+                } else {
+                    result.setStatus(ResultForAddSale.Status.INVALID_SKU);
+                    return result;
                 }
             }
+        }
 
-            if (param.getSoldQuantity() <= 0 || param.getSoldQuantity() > remainingQuantity) {
-                result.setStatus(ResultForAddSale.Status.INVALID_QUANTITY);
-                return result;
-            }
+        if (param.getSoldQuantity() <= 0 || !changeQuantity(connection, param.getSku(), -param.getSoldQuantity())) {
+            result.setStatus(ResultForAddSale.Status.INVALID_QUANTITY);
+            return result;
+        }
 
-            String now = LocalDateTime.now().toString();
+        LocalDateTime soldOn = LocalDateTime.now();
+        String now = soldOn.toString();
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "insert into StockTrx ( " +
-                            "SKU, QuantityVaried, Remark, CreatedBy, CreatedOn " +
-                            ") " +
-                            "values ( " +
-                            "?, ?, ?, ?, ? " +
-                            ")"
-            )) {
-                preparedStatement.setString(1, param.getSku());
-                preparedStatement.setInt(2, -param.getSoldQuantity());
-                preparedStatement.setString(3, "");
-                preparedStatement.setInt(4, currentUser.getUserId());
-                preparedStatement.setString(5, now);
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "insert into StockTrx ( " +
+                        "SKU, QuantityVaried, Remark, CreatedBy, CreatedOn " +
+                        ") " +
+                        "values ( " +
+                        "?, ?, ?, ?, ? " +
+                        ")"
+        )) {
+            preparedStatement.setString(1, param.getSku());
+            preparedStatement.setInt(2, -param.getSoldQuantity());
+            preparedStatement.setString(3, "");
+            preparedStatement.setInt(4, currentUser.getUserId());
+            preparedStatement.setString(5, now);
 
-                preparedStatement.executeUpdate();
-            }
+            preparedStatement.executeUpdate();
+        }
 
-            int newStockTrxId;
+        int newStockTrxId;
 
-            try (Statement statement = connection.createStatement()) {
-                try (ResultSet row = statement.executeQuery("select last_insert_rowid()")) {
-                    row.next();
-                    newStockTrxId = row.getInt(1);
-                }
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet row = statement.executeQuery("select last_insert_rowid()")) {
+                row.next();
+                newStockTrxId = row.getInt(1);
             }
+        }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "insert into Sales ( " +
-                            "StockTrxID, UnitPrice, SoldQuantity, SoldBy, SoldOn " +
-                            ") " +
-                            "values ( " +
-                            "?, ?, ?, ?, ? " +
-                            ")"
-            )) {
-                preparedStatement.setInt(1, newStockTrxId);
-                preparedStatement.setInt(2, unitPrice);
-                preparedStatement.setInt(3, param.getSoldQuantity());
-                preparedStatement.setInt(4, currentUser.getUserId());
-                preparedStatement.setString(5, now);
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "insert into Sales ( " +
+                        "StockTrxID, UnitPrice, SoldQuantity, SoldBy, SoldOn, " +
+                        "SoldOnDay, SoldOnMonth " +
+                        ") " +
+                        "values ( " +
+                        "?, ?, ?, ?, ?, " +
+                        "?, ? " +
+                        ")"
+        )) {
+            preparedStatement.setInt(1, newStockTrxId);
+            preparedStatement.setInt(2, unitPrice);
+            preparedStatement.setInt(3, param.getSoldQuantity());
+            preparedStatement.setInt(4, currentUser.getUserId());
+            preparedStatement.setString(5, now);
+            preparedStatement.setInt(6, toDayKey(soldOn.toLocalDate()));
+            preparedStatement.setInt(7, toMonthKey(soldOn.toLocalDate()));
+
+            preparedStatement.executeUpdate();
+        }
 
-                preparedStatement.executeUpdate();
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet row = statement.executeQuery("select last_insert_rowid()")) {
+                row.next();
+                result.setNewSaleId(row.getInt(1));
             }
+        }
 
-            try (Statement statement = connection.createStatement()) {
-                try (ResultSet row = statement.executeQuery("select last_insert_rowid()")) {
-                    row.next();
-                    result.setNewSaleId(row.getInt(1));
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "update StockTrx set Remark = ? where StockTrxID = ?"
+        )) {
+            preparedStatement.setString(1, "Sold. Refer to Sale ID " + result.getNewSaleId() + ".");
+            preparedStatement.setInt(2, newStockTrxId);
+
+            preparedStatement.executeUpdate();
+        }
+
+        SalesRollups.add(
+                connection, toDayKey(soldOn.toLocalDate()), toMonthKey(soldOn.toLocalDate()), productId,
+                currentUser.getUserId(), category, param.getSoldQuantity(),
+                (long) unitPrice * param.getSoldQuantity(), 1
+        );
+
+        afterCommit.add(() -> rowCounters.addSales(productId, 1));
+
+        return result;
+    }
+
+    @Override
+    public ResultForDeleteSale deleteSale(ParamForDeleteSale param) throws RemoteException {
+        ResultForDeleteSale result = new ResultForDeleteSale();
+
+        try {
+            return writePipeline.execute((connection, afterCommit) -> deleteSale(connection, afterCommit, param));
+        } catch (SQLException throwables) {
+            throwables.printStackTrace();
+            result.setStatus(ResultForDeleteSale.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForDeleteSale.Status.SERVER_ERROR);
+        }
+
+        return result;
+    }
+
+    private ResultForDeleteSale deleteSale(
+            Connection connection, WritePipeline.AfterCommit afterCommit, ParamForDeleteSale param
+    ) throws SQLException {
+        ResultForDeleteSale result = new ResultForDeleteSale();
+
+        User currentUser = getCurrentUser(connection, param.getSessionId());
+        if (currentUser == null) {
+            result.setStatus(ResultForDeleteSale.Status.INVALID_SESSION_ID);
+            return result;
+        }
+
+        int stockTrxId;
+        int soldQuantity;
+        String sku;
+        int productId;
+        int unitPrice;
+        int soldBy;
+        int day;
+        int month;
+        String category;
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "select A.StockTrxID, A.SoldQuantity, T.SKU, O.ProductID, " +
+                        "A.UnitPrice, A.SoldBy, A.SoldOnDay, A.SoldOnMonth, P.Category " +
+                        "from Sales as A " +
+                        "inner join StockTrx as T on T.StockTrxID = A.StockTrxID " +
+                        "inner join Stock as O on O.SKU = T.SKU " +
+                        "inner join Products as P on P.ProductID = O.ProductID " +
+                        "where A.SaleID = ?"
+        )) {
+            preparedStatement.setInt(1, param.getSaleId());
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                if (row.next()) {
+                    stockTrxId = row.getInt(1);
+                    soldQuantity = row.getInt(2);
+                    sku = row.getString(3);
+                    productId = row.getInt(4);
+                    unitPrice = row.getInt(5);
+                    soldBy = row.getInt(6);
+                    day = row.getInt(7);
+                    month = row.getInt(8);
+                    category = row.getString(9);
+                } else {
+                    result.setStatus(ResultForDeleteSale.Status.NOT_FOUND);
+                    return result;
                 }
             }
+        }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "update StockTrx set Remark = ? where StockTrxID = ?"
-            )) {
-                preparedStatement.setString(1, "Sold. Refer to Sale ID " + result.getNewSaleId() + ".");
-                preparedStatement.setInt(2, newStockTrxId);
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "delete from Sales where SaleID = ?"
+        )) {
+            preparedStatement.setInt(1, param.getSaleId());
 
-                preparedStatement.executeUpdate();
-            }
+            preparedStatement.executeUpdate();
+        }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "update Stock set Quantity = ? where SKU = ?"
-            )) {
-                preparedStatement.setInt(1, remainingQuantity - param.getSoldQuantity());
-                preparedStatement.setString(2, param.getSku());
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "delete from StockTrx where StockTrxID = ?"
+        )) {
+            preparedStatement.setInt(1, stockTrxId);
 
-                preparedStatement.executeUpdate();
+            preparedStatement.executeUpdate();
+        }
+
+        // Only adds, to a row the select just found, so this shouldn't fail. If it does, throwing rolls the sale and
+        // its StockTrx back to the savepoint rather than committing them gone with the quantity unreturned.
+        if (!changeQuantity(connection, sku, soldQuantity)) {
+            throw new SQLException("No stock " + sku + " to return sale " + param.getSaleId() + " to");
+        }
+
+        SalesRollups.add(
+                connection, day, month, productId, soldBy, category, -soldQuantity,
+                -(long) unitPrice * soldQuantity, -1
+        );
+
+        afterCommit.add(() -> rowCounters.addSales(productId, -1));
+
+        return result;
+    }
+
+    public ResultForGetSalesReport getSalesReport(ParamForGetSalesReport param) throws RemoteException {
+        ResultForGetSalesReport result = new ResultForGetSalesReport();
+
+        try (Connection connection = database.getReadConnection()) {
+            User currentUser = getCurrentUser(connection, param.getSessionId());
+            if (currentUser == null) {
+                result.setStatus(ResultForGetSalesReport.Status.INVALID_SESSION_ID);
+                return result;
+            }
+
+            LocalDate unset = LocalDate.of(1970, 1, 1);
+            int from = param.getFromDate().isEqual(unset) ? 0 : toDayKey(param.getFromDate());
+            int to = param.getToDate().isEqual(unset) ? 99991231 : toDayKey(param.getToDate());
+            boolean monthly = param.getGroupBy() == ParamForGetSalesReport.GroupBy.CATEGORY;
+
+            String sql;
+
+            switch (param.getGroupBy()) {
+                case PRODUCT:
+                    sql = "select R.SoldOnDay, R.ProductID, P.Name, R.Quantity, R.Revenue, R.SaleCount " +
+                            "from SalesByDayProduct as R " +
+                            "inner join Products as P on P.ProductID = R.ProductID " +
+                            "where R.SoldOnDay >= ? and R.SoldOnDay <= ? " +
+                            "order by R.SoldOnDay, R.ProductID";
+                    break;
+                case SELLER:
+                    sql = "select R.SoldOnDay, R.SoldBy, C.FirstName || ' ' || C.LastName, R.Quantity, R.Revenue, " +
+                            "R.SaleCount " +
+                            "from SalesByDaySeller as R " +
+                            "inner join Users as C on C.UserID = R.SoldBy " +
+                            "where R.SoldOnDay >= ? and R.SoldOnDay <= ? " +
+                            "order by R.SoldOnDay, R.SoldBy";
+                    break;
+                default:
+                    sql = "select R.SoldOnMonth, 0, R.Category, R.Quantity, R.Revenue, R.SaleCount " +
+                            "from SalesByMonthCategory as R " +
+                            "where R.SoldOnMonth >= ? and R.SoldOnMonth <= ? " +
+                            "order by R.SoldOnMonth, R.Category";
+                    break;
+            }
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+                preparedStatement.setInt(1, monthly ? from / 100 : from);
+                preparedStatement.setInt(2, monthly ? to / 100 : to);
+
+                try (ResultSet row = preparedStatement.executeQuery()) {
+                    while (row.next()) {
+                        int period = row.getInt(1);
+
+                        SalesReportRow reportRow = new SalesReportRow();
+                        reportRow.setPeriod(monthly ? fromDayKey(period * 100 + 1) : fromDayKey(period));
+                        reportRow.setKeyId(row.getInt(2));
+                        reportRow.setKeyName(row.getString(3));
+                        reportRow.setQuantity(row.getLong(4));
+                        reportRow.setRevenue(BigDecimal.valueOf(row.getLong(5), 2));
+                        reportRow.setSaleCount(row.getInt(6));
+
+                        result.getRows().add(reportRow);
+                    }
+                }
             }
 
         } catch (SQLException throwables) {
             throwables.printStackTrace();
-            result.setStatus(ResultForAddSale.Status.SERVER_ERROR);
+            result.setStatus(ResultForGetSalesReport.Status.SERVER_ERROR);
         }
 
         return result;
     }
 
-    @Override
-    public ResultForDeleteSale deleteSale(ParamForDeleteSale param) throws RemoteException {
-        ResultForDeleteSale result = new ResultForDeleteSale();
+    // Picture by content hash, for clients of the lists when they are set to leave pictures out. A client that already
+    // has the picture gets NOT_MODIFIED without the file being read. With an image server, the result also carries a
+    // URL the client can load the picture from instead.
+    public ResultForGetPicture getPicture(ParamForGetPicture param) {
+        ResultForGetPicture result = new ResultForGetPicture();
 
-        try (Connection connection = database.getConnection()) {
+        try (Connection connection = database.getReadConnection()) {
             User currentUser = getCurrentUser(connection, param.getSessionId());
             if (currentUser == null) {
-                result.setStatus(ResultForDeleteSale.Status.INVALID_SESSION_ID);
+                result.setStatus(ResultForGetPicture.Status.INVALID_SESSION_ID);
                 return result;
             }
 
-            int stockTrxId;
-            int soldQuantity;
-            String sku;
-            int remainingQuantity;
+            String sql;
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "select A.StockTrxID, A.SoldQuantity, T.SKU, O.Quantity " +
-                            "from Sales as A " +
-                            "inner join StockTrx as T on T.StockTrxID = A.StockTrxID " +
-                            "inner join Stock as O on O.SKU = T.SKU " +
-                            "where A.SaleID = ?"
-            )) {
-                preparedStatement.setInt(1, param.getSaleId());
+            if (param.getKind() == ParamForGetPicture.Kind.USER) {
+                if (!currentUser.getRole().equals("Admin") && currentUser.getUserId() != param.getId()) {
+                    result.setStatus(ResultForGetPicture.Status.PERMISSION_DENIED);
+                    return result;
+                }
+
+                sql = "select ProfilePicHash from Users where UserID = ?";
+            } else {
+                sql = "select ProductPicHash from Products where ProductID = ?";
+            }
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+                preparedStatement.setInt(1, param.getId());
 
                 try (ResultSet row = preparedStatement.executeQuery()) {
-                    if (row.next()) {
-                        stockTrxId = row.getInt(1);
-                        soldQuantity = row.getInt(2);
-                        sku = row.getString(3);
-                        remainingQuantity = row.getInt(4);
-                    } else {
-                        result.setStatus(ResultForDeleteSale.Status.NOT_FOUND);
+                    if (!row.next()) {
+                        result.setStatus(ResultForGetPicture.Status.NOT_FOUND);
                         return result;
                     }
+
+                    result.setHash(row.getString(1));
                 }
             }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "delete from Sales where SaleID = ?"
-            )) {
-                preparedStatement.setInt(1, param.getSaleId());
+            result.setHash(thumbnailer.resolve(connection, result.getHash(), param.getSize()));
 
-                preparedStatement.executeUpdate();
+            ImageUrls imageUrls = this.imageUrls;
+            if (imageUrls != null) {
+                result.setUrl(imageUrls.sign(result.getHash(), SessionSweeper.now()));
             }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "delete from StockTrx where StockTrxID = ?"
-            )) {
-                preparedStatement.setInt(1, stockTrxId);
-
-                preparedStatement.executeUpdate();
+            if (!param.getKnownHash().isBlank() && param.getKnownHash().equals(result.getHash())) {
+                result.setStatus(ResultForGetPicture.Status.NOT_MODIFIED);
+                return result;
             }
 
-            try (PreparedStatement preparedStatement = connection.prepareStatement(
-                    "update Stock set Quantity = ? where SKU = ?"
-            )) {
-                preparedStatement.setInt(1, remainingQuantity + soldQuantity);
-                preparedStatement.setString(2, sku);
-
-                preparedStatement.executeUpdate();
-            }
+            result.setPicture(imageStore.read(result.getHash()));
 
         } catch (SQLException throwables) {
             throwables.printStackTrace();
-            result.setStatus(ResultForDeleteSale.Status.SERVER_ERROR);
+            result.setStatus(ResultForGetPicture.Status.SERVER_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            result.setStatus(ResultForGetPicture.Status.SERVER_ERROR);
         }
 
         return result;
     }
 
+    private byte[] readPicture(Connection connection, String hash, int thumbnailSize)
+            throws SQLException, IOException {
+        return imageStore.read(thumbnailer.resolve(connection, hash, thumbnailSize));
+    }
+
+    // Options for the sungro-api list calls
+    private ListOptions newListOptions() {
+        ListOptions options = new ListOptions();
+        options.setWithPictures(withPictures);
+        options.setThumbnailSize(thumbnailSize);
+        return options;
+    }
+
+    // Sales.SoldOnDay, e.g. 20210315
+    private static int toDayKey(LocalDate date) {
+        return date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+    }
+
+    private static LocalDate fromDayKey(int day) {
+        return LocalDate.of(day / 10000, day / 100 % 100, day % 100);
+    }
+
+    // Sales.SoldOnMonth, e.g. 202103
+    private static int toMonthKey(LocalDate date) {
+        return date.getYear() * 100 + date.getMonthValue();
+    }
+
+    // -1 when the shape has no counter and must be counted in the database
+    private int countProducts(int shape, ParamForGetManyProducts param) {
+        switch (shape) {
+            case 0:
+                return rowCounters.getProducts();
+            case PRODUCTS_BY_CATEGORY:
+                return rowCounters.getProductsInCategory(param.getCategory());
+            case PRODUCTS_BY_STATUS:
+                return rowCounters.getProductsWithStatus(param.getStatus());
+            default:
+                return -1;
+        }
+    }
+
+    private int countStock(int shape, ParamForGetManyStock param) {
+        switch (shape) {
+            case 0:
+                return rowCounters.getStock();
+            case STOCK_BY_PRODUCT_ID:
+                return rowCounters.getStockOfProduct(param.getProductId());
+            default:
+                return -1;
+        }
+    }
+
+    private int countSales(int shape, ParamForGetManySales param) {
+        switch (shape) {
+            case 0:
+                return rowCounters.getSales();
+            case SALES_BY_PRODUCT_ID:
+                return rowCounters.getSalesOfProduct(param.getProductId());
+            default:
+                return -1;
+        }
+    }
+
+    private static int count(Connection connection, QueryTemplate query, Object[] values) throws SQLException {
+        try (
+                PreparedStatement preparedStatement = query.prepareCount(connection, values);
+                ResultSet row = preparedStatement.executeQuery()
+        ) {
+            row.next();
+            return row.getInt(1);
+        }
+    }
+
+    private static QueryTemplate compileManyUsersQuery(int shape) {
+        QueryBuilder queryData = new QueryBuilder();
+
+        queryData.appendSelect(
+                "select " +
+                        "U.UserID, " +
+                        "U.FirstName, " +
+                        "U.LastName, " +
+                        "U.Email, " +
+                        "U.IDNumber, " +
+                        "U.IDType, " +
+                        "U.Role, " +
+                        ((shape & USERS_WITHOUT_PICTURES) != 0 ? "'' as ProfilePicHash, " : "U.ProfilePicHash, ") +
+                        "U.Status, " +
+                        "C.UserID as CreatedByUserID, " +
+                        "C.FirstName || ' ' || C.LastName as CreatedByUserName, " +
+                        "U.CreatedOn "
+        );
+
+        queryData.appendFrom(
+                "from Users as U " +
+                        "inner join Users as C " +
+                        "on C.UserID = U.CreatedBy "
+        );
+
+        if ((shape & USERS_BY_NAME) != 0) {
+            queryData.appendWhere("(U.FirstName like ? or U.LastName like ?) ");
+            queryData.addStringToWhere(null);
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & USERS_BY_EMAIL) != 0) {
+            queryData.appendWhere("U.Email like ? ");
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & USERS_BY_ID_NUMBER) != 0) {
+            queryData.appendWhere("U.IDNumber = ? ");
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & USERS_BY_ROLE) != 0) {
+            queryData.appendWhere("U.Role = ? ");
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & USERS_AFTER_ID) != 0) {
+            queryData.appendWhere("U.UserID > ? ");
+            queryData.addIntToWhere(null);
+            queryData.appendRemaining("order by U.UserID limit ? ");
+            queryData.addIntToRemaining(null);
+        } else {
+            queryData.appendRemaining("order by U.UserID limit ? offset ? ");
+            queryData.addIntToRemaining(null);
+            queryData.addIntToRemaining(null);
+        }
+
+        return queryData.compile();
+    }
+
+    private static QueryTemplate compileManyProductsQuery(int shape) {
+        QueryBuilder queryData = new QueryBuilder();
+
+        queryData.appendSelect(
+                "select " +
+                        "P.ProductID, " +
+                        "P.Name, " +
+                        "P.Category, " +
+                        "P.ProductPrice, " +
+                        ((shape & PRODUCTS_WITHOUT_PICTURES) != 0 ? "'' as ProductPicHash, " : "P.ProductPicHash, ") +
+                        "P.Status, " +
+                        "C.UserID as CreatedByUserID, " +
+                        "C.FirstName || ' ' || C.LastName as CreatedByUserName, " +
+                        "P.CreatedOn "
+        );
+
+        queryData.appendFrom(
+                "from Products as P " +
+                        "inner join Users as C " +
+                        "on C.UserID = P.CreatedBy "
+        );
+
+        if ((shape & PRODUCTS_BY_NAME) != 0) {
+            queryData.appendWhere("P.Name like ? ");
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & PRODUCTS_BY_CATEGORY) != 0) {
+            queryData.appendWhere("P.Category = ? ");
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & PRODUCTS_BY_STATUS) != 0) {
+            queryData.appendWhere("P.Status = ? ");
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & PRODUCTS_AFTER_ID) != 0) {
+            queryData.appendWhere("P.ProductID < ? ");
+            queryData.addIntToWhere(null);
+            queryData.appendRemaining("order by P.ProductID desc limit ? ");
+            queryData.addIntToRemaining(null);
+        } else {
+            queryData.appendRemaining("order by P.ProductID desc limit ? offset ? ");
+            queryData.addIntToRemaining(null);
+            queryData.addIntToRemaining(null);
+        }
+
+        return queryData.compile();
+    }
+
+    private static QueryTemplate compileManyStockQuery(int shape) {
+        QueryBuilder queryData = new QueryBuilder();
+
+        queryData.appendSelect(
+                "select " +
+                        "S.SKU, " +
+                        "P.ProductID, " +
+                        "P.Name, " +
+                        "P.Category, " +
+                        "P.ProductPrice, " +
+                        ((shape & STOCK_WITHOUT_PICTURES) != 0 ? "'' as ProductPicHash, " : "P.ProductPicHash, ") +
+                        "S.Quantity, " +
+                        "S.ExpDate, " +
+                        "C.UserID as CreatedByUserID, " +
+                        "C.FirstName || ' ' || C.LastName as CreatedByUserName, " +
+                        "S.CreatedOn "
+        );
+
+        queryData.appendFrom(
+                "from Stock as S " +
+                        "inner join Users as C on C.UserID = S.CreatedBy " +
+                        "inner join Products as P on P.ProductID = S.ProductID "
+        );
+
+        if ((shape & STOCK_BY_SKU) != 0) {
+            queryData.appendWhere("S.SKU = ? ");
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & STOCK_BY_PRODUCT_ID) != 0) {
+            queryData.appendWhere("S.ProductID = ? ");
+            queryData.addIntToWhere(null);
+        }
+
+        if ((shape & STOCK_BY_NAME) != 0) {
+            queryData.appendWhere("P.Name like ? ");
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & STOCK_BY_CATEGORY) != 0) {
+            queryData.appendWhere("P.Category = ? ");
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & STOCK_BY_EXPIRY_DATE_FROM) != 0) {
+            queryData.appendWhere("S.ExpDate >= ? ");
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & STOCK_BY_EXPIRY_DATE_TO) != 0) {
+            queryData.appendWhere("S.ExpDate <= ? ");
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & STOCK_AFTER_SKU) != 0) {
+            queryData.appendWhere("S.SKU > ? ");
+            queryData.addStringToWhere(null);
+            queryData.appendRemaining("order by S.SKU limit ? ");
+            queryData.addIntToRemaining(null);
+        } else {
+            queryData.appendRemaining("order by S.SKU limit ? offset ? ");
+            queryData.addIntToRemaining(null);
+            queryData.addIntToRemaining(null);
+        }
+
+        return queryData.compile();
+    }
+
+    private static QueryTemplate compileManySalesQuery(int shape) {
+        QueryBuilder queryData = new QueryBuilder();
+
+        queryData.appendSelect(
+                "select " +
+                        "A.SaleID, " +
+                        "O.SKU, " +
+                        "P.ProductID, " +
+                        "P.Name, " +
+                        "P.Category, " +
+                        "A.UnitPrice, " +
+                        "A.SoldQuantity, " +
+                        "A.SoldQuantity * A.UnitPrice as SubTotalPrice, " +
+                        "C.UserID as SoldByUserID, " +
+                        "C.FirstName || ' ' || C.LastName as SoldByUserName, " +
+                        "A.SoldOn "
+        );
+
+        queryData.appendFrom(
+                "from Sales as A " +
+                        "inner join StockTrx as T on T.StockTrxID = A.StockTrxID " +
+                        "inner join Stock as O on O.SKU = T.SKU " +
+                        "inner join Products as P on P.ProductID = O.ProductID " +
+                        "inner join Users as C on C.UserID = A.SoldBy "
+        );
+
+        if ((shape & SALES_BY_PRODUCT_ID) != 0) {
+            queryData.appendWhere("P.ProductID = ? ");
+            queryData.addIntToWhere(null);
+        }
+
+        if ((shape & SALES_BY_SKU) != 0) {
+            queryData.appendWhere("T.SKU = ? ");
+            queryData.addStringToWhere(null);
+        }
+
+        if ((shape & SALES_ON_DATE) != 0) {
+            queryData.appendWhere("A.SoldOnDay = ? ");
+            queryData.addIntToWhere(null);
+        }
+
+        if ((shape & SALES_ON_MONTH) != 0) {
+            queryData.appendWhere("A.SoldOnDay >= ? and A.SoldOnDay < ? ");
+            queryData.addIntToWhere(null);
+            queryData.addIntToWhere(null);
+        }
+
+        if ((shape & SALES_AFTER_ID) != 0) {
+            queryData.appendWhere("A.SaleID < ? ");
+            queryData.addIntToWhere(null);
+            queryData.appendRemaining("order by A.SaleID desc limit ? ");
+            queryData.addIntToRemaining(null);
+        } else {
+            queryData.appendRemaining("order by A.SaleID desc limit ? offset ? ");
+            queryData.addIntToRemaining(null);
+            queryData.addIntToRemaining(null);
+        }
+
+        return queryData.compile();
+    }
+
+    // Adds to the quantity in place, unless that would take it below zero, and returns whether it did. Checked by the
+    // database in the same statement, so no change computed from an older read can overwrite another.
+    static boolean changeQuantity(Connection connection, String sku, int quantityVaried) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "update Stock set Quantity = Quantity + ? where SKU = ? and Quantity + ? >= 0"
+        )) {
+            preparedStatement.setInt(1, quantityVaried);
+            preparedStatement.setString(2, sku);
+            preparedStatement.setInt(3, quantityVaried);
+
+            return preparedStatement.executeUpdate() == 1;
+        }
+    }
+
+    // Whether another user than the given one has the value in the column
+    private static boolean isTaken(Connection connection, String column, String value, int userId)
+            throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "select exists(select 1 from Users where " + column + " = ? and UserID <> ?)"
+        )) {
+            preparedStatement.setString(1, value);
+            preparedStatement.setInt(2, userId);
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                row.next();
+                return row.getInt(1) == 1;
+            }
+        }
+    }
+
     private User getCurrentUser(Connection connection, String sessionId) throws SQLException {
+        long now = SessionSweeper.now();
+
+        if (SessionTokens.isToken(sessionId)) {
+            return sessionTokens == null ? null : sessionTokens.verify(sessionId, now);
+        }
+
+        SessionCache.Entry cached = sessionCache.get(sessionId);
+        if (cached != null) {
+            if (sessionSweeper.isExpired(cached.getCreatedOn(), cached.getLastSeenOn(), now)) {
+                sessionCache.invalidate(sessionId);
+                return null;
+            }
+
+            if (sessionSweeper.touch(sessionId, cached.getLastSeenOn(), now)) {
+                cached.setLastSeenOn(now);
+            }
+
+            User user = new User();
+            user.setUserId(cached.getUserId());
+            user.setRole(cached.getRole());
+            return user;
+        }
+
+        long generation = sessionCache.getGeneration();
+
         try (PreparedStatement preparedStatement = connection.prepareStatement(
-                "select U.UserID, U.Role " +
+                "select U.UserID, U.Role, S.CreatedOn, S.LastSeenOn " +
                         "from Sessions as S inner join Users as U on U.UserId = S.UserId " +
                         "where S.SessionID = ?"
         )) {
@@ -1990,12 +3124,26 @@ public class Repo implements sungro.api.Repo {
             try (ResultSet row = preparedStatement.executeQuery()) {
                 if (!row.next()) {
                     return null;
-                } else {
-                    User user = new User();
-                    user.setUserId(row.getInt(1));
-                    user.setRole(row.getString(2));
-                    return user;
                 }
+
+                long createdOn = row.getLong(3);
+                long lastSeenOn = sessionSweeper.getLastSeenOn(sessionId, row.getLong(4));
+
+                // Expired but not swept yet
+                if (sessionSweeper.isExpired(createdOn, lastSeenOn, now)) {
+                    return null;
+                }
+
+                if (sessionSweeper.touch(sessionId, lastSeenOn, now)) {
+                    lastSeenOn = now;
+                }
+
+                User user = new User();
+                user.setUserId(row.getInt(1));
+                user.setRole(row.getString(2));
+
+                sessionCache.put(sessionId, user.getUserId(), user.getRole(), createdOn, lastSeenOn, generation);
+                return user;
             }
         }
     }
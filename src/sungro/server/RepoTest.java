@@ -1,17 +1,44 @@
 package sungro.server;
 
 import sungro.api.*;
+import sungro.server.db.ConnectionPool;
 import sungro.server.db.Database;
+import sungro.server.db.ImageStore;
 import sungro.server.db.Migrator;
-
+import sungro.server.db.PictureCache;
+import sungro.server.db.QueryStats;
+import sungro.server.db.SalesRollups;
+import sungro.server.db.StatementStats;
+import sungro.server.db.WritePipeline;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.rmi.RemoteException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class RepoTest {
     private final Repo repo;
@@ -20,8 +47,9 @@ public class RepoTest {
         this.repo = repo;
     }
 
-    public static void main(String[] args) throws SQLException, IOException {
+    public static void main(String[] args) throws SQLException, IOException, InterruptedException {
         Files.deleteIfExists(Path.of("test.db"));
+        deleteDirectory(Path.of("test.db-images"));
 
         System.out.println("Connecting to database...");
         Database database = new Database("jdbc:sqlite:test.db");
@@ -48,6 +76,8 @@ public class RepoTest {
         repoTest.testLogout();
 
         repoTest.testGetManyProducts();
+        repoTest.testGetManyProductsAfterId();
+        repoTest.testGetManyProductsHasMore();
         repoTest.testGetOneProduct();
         repoTest.testAddProduct();
         repoTest.testDeleteProduct();
@@ -61,12 +91,47 @@ public class RepoTest {
         repoTest.testSetStock();
 
         repoTest.testGetManySales();
+        repoTest.testGetManySalesOnDate();
         repoTest.testAddSale();
         repoTest.testDeleteSale();
 
+        repoTest.testRowCounters(database);
+        repoTest.testGetSalesReport(database);
+        repoTest.testGetQueryStats();
+        repoTest.testSlowQueryLog(database);
+        repoTest.testPreparedSql(database);
+        repoTest.testSessionCache();
+        repoTest.testSessionExpiry(database);
+        repoTest.testSessionTokens(database);
+        repoTest.testPasswordHashing(database);
+        repoTest.testLoginThrottle();
+        repoTest.testGetPicture();
+        repoTest.testImageStore(database);
+        repoTest.testThumbnails(database);
+        repoTest.testImageServer(database);
+        repoTest.testPictureCache(database);
+        repoTest.testWritePipeline(database);
+        repoTest.testStockContention(database);
+        repoTest.testMutationRollback(database);
+        repoTest.testGetManyUsersAfterId();
+        repoTest.testGetManyStockAfterSku();
+        repoTest.testGetManySalesAfterId();
+
         System.out.println("All tests in RepoTest passed");
     }
 
+    private static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.delete(path);
+            }
+        }
+    }
+
     private static void shouldBeTrue(boolean value) {
         if (!value) {
             throw new RuntimeException();
@@ -579,6 +644,60 @@ public class RepoTest {
         System.out.println("Passed");
     }
 
+    void testGetManyProductsAfterId() {
+        System.out.print("Running testGetManyProductsAfterId... ");
+
+        try {
+            ParamForGetManyProducts param = new ParamForGetManyProducts();
+            param.setSessionId("0123456789abcdef");
+
+            ListOptions options = new ListOptions();
+            options.setAfterId(4);
+
+            ResultForGetManyProducts result = repo.getManyProducts(param, options);
+            shouldBeTrue(result.getStatus() == ResultForGetManyProducts.Status.SUCCESS);
+            shouldBeTrue(result.getProducts().size() == 3);
+            shouldBeTrue(result.getProducts().get(0).getProductId() == 3);
+            shouldBeTrue(result.getProducts().get(1).getProductId() == 2);
+            shouldBeTrue(result.getProducts().get(2).getProductId() == 1);
+            shouldBeTrue(result.getMaxPage() == 1);
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testGetManyProductsHasMore() {
+        System.out.print("Running testGetManyProductsHasMore... ");
+
+        try {
+            ParamForGetManyProducts param = new ParamForGetManyProducts();
+            param.setSessionId("0123456789abcdef");
+
+            ListOptions options = new ListOptions();
+            options.setCountMode(ListOptions.CountMode.HAS_MORE);
+
+            ResultForGetManyProducts result = repo.getManyProducts(param, options);
+            shouldBeTrue(result.getStatus() == ResultForGetManyProducts.Status.SUCCESS);
+            shouldBeTrue(result.getProducts().size() == 6);
+            shouldBeTrue(result.getMaxPage() == 1);
+
+            // A page past the end has no rows to carry the window count
+            param.setPage(2);
+            result = repo.getManyProducts(param);
+            shouldBeTrue(result.getStatus() == ResultForGetManyProducts.Status.SUCCESS);
+            shouldBeTrue(result.getProducts().size() == 0);
+            shouldBeTrue(result.getMaxPage() == 1);
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
     void testGetOneProduct() {
         System.out.print("Running testGetOneProduct... ");
 
@@ -993,6 +1112,47 @@ public class RepoTest {
         System.out.println("Passed");
     }
 
+    void testGetManySalesOnDate() {
+        System.out.print("Running testGetManySalesOnDate... ");
+
+        try {
+            // All sales in setUp() were made today
+            LocalDate today = LocalDate.now();
+
+            ParamForGetManySales param = new ParamForGetManySales();
+            param.setSessionId("0123456789abcdef");
+            param.setOnDate(today);
+
+            ResultForGetManySales result = repo.getManySales(param);
+            shouldBeTrue(result.getStatus() == ResultForGetManySales.Status.SUCCESS);
+            shouldBeTrue(result.getSales().size() == 4);
+
+            param.setOnDate(today.minusDays(1));
+
+            result = repo.getManySales(param);
+            shouldBeTrue(result.getStatus() == ResultForGetManySales.Status.SUCCESS);
+            shouldBeTrue(result.getSales().size() == 0);
+
+            param.setOnDate(LocalDate.of(1970, 1, 1));
+            param.setOnMonth(today);
+
+            result = repo.getManySales(param);
+            shouldBeTrue(result.getStatus() == ResultForGetManySales.Status.SUCCESS);
+            shouldBeTrue(result.getSales().size() == 4);
+
+            param.setOnMonth(today.minusMonths(1));
+
+            result = repo.getManySales(param);
+            shouldBeTrue(result.getStatus() == ResultForGetManySales.Status.SUCCESS);
+            shouldBeTrue(result.getSales().size() == 0);
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
     void testAddSale() {
         System.out.print("Running testAddSale... ");
 
@@ -1123,4 +1283,1918 @@ public class RepoTest {
 
         System.out.println("Passed");
     }
+
+    void testRowCounters(Database database) throws SQLException {
+        System.out.print("Running testRowCounters... ");
+
+        // After all the adds, deletes and updates above, the maintained counters must match a fresh count
+        RowCounters expected = new RowCounters();
+
+        try (Connection connection = database.getReadConnection()) {
+            expected.load(connection);
+        }
+
+        RowCounters actual = repo.getRowCounters();
+        shouldBeTrue(actual.getProducts() == expected.getProducts());
+        shouldBeTrue(actual.getProductsInCategory("Chocolate") == expected.getProductsInCategory("Chocolate"));
+        shouldBeTrue(actual.getProductsWithStatus("Available") == expected.getProductsWithStatus("Available"));
+        shouldBeTrue(actual.getProductsWithStatus("Disabled") == expected.getProductsWithStatus("Disabled"));
+        shouldBeTrue(actual.getStock() == expected.getStock());
+        shouldBeTrue(actual.getSales() == expected.getSales());
+
+        for (int productId = 1; productId <= 8; productId++) {
+            shouldBeTrue(actual.getStockOfProduct(productId) == expected.getStockOfProduct(productId));
+            shouldBeTrue(actual.getSalesOfProduct(productId) == expected.getSalesOfProduct(productId));
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testGetQueryStats() {
+        System.out.print("Running testGetQueryStats... ");
+
+        try {
+            ParamForGetQueryStats param = new ParamForGetQueryStats();
+            param.setSessionId("fedcba9876543210");
+
+            ResultForGetQueryStats result = repo.getQueryStats(param);
+            shouldBeTrue(result.getStatus() == ResultForGetQueryStats.Status.INVALID_SESSION_ID);
+
+            param.setSessionId("0123456789abcdef");
+            param.setReset(true);
+
+            result = repo.getQueryStats(param);
+            shouldBeTrue(result.getStatus() == ResultForGetQueryStats.Status.SUCCESS);
+            shouldBeTrue(!result.getStatements().isEmpty());
+
+            for (StatementStats statement : result.getStatements()) {
+                shouldBeTrue(statement.getCalls() > 0);
+                shouldBeTrue(statement.getMaxMicros() <= statement.getTotalMicros());
+                shouldBeTrue(Arrays.stream(statement.getHistogram()).sum() == statement.getCalls());
+            }
+
+            shouldBeTrue(result.getStatements().stream().anyMatch(x -> x.getSql().startsWith("delete from Sales")));
+
+            // After the reset nothing has run, as this call's session comes from the session cache
+            param.setReset(false);
+
+            result = repo.getQueryStats(param);
+            shouldBeTrue(result.getStatus() == ResultForGetQueryStats.Status.SUCCESS);
+            shouldBeTrue(result.getStatements().isEmpty());
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testSlowQueryLog(Database database) throws SQLException {
+        System.out.print("Running testSlowQueryLog... ");
+
+        QueryStats queryStats = database.getQueryStats();
+        long slowThresholdMillis = queryStats.getSlowThresholdMillis();
+        PrintStream out = System.out;
+        ByteArrayOutputStream redacted = new ByteArrayOutputStream();
+        ByteArrayOutputStream logged = new ByteArrayOutputStream();
+
+        try {
+            queryStats.setSlowThresholdMillis(1);
+
+            System.setOut(new PrintStream(redacted, true));
+            runSlowQuery(database, "secret-session-id");
+
+            queryStats.setLogValues(true);
+            System.setOut(new PrintStream(logged, true));
+            runSlowQuery(database, "secret-session-id");
+        } finally {
+            System.setOut(out);
+            queryStats.setLogValues(false);
+            queryStats.setSlowThresholdMillis(slowThresholdMillis);
+        }
+
+        // The statement is logged either way, its values only when asked for
+        shouldBeTrue(redacted.toString().contains("Statement took"));
+        shouldBeTrue(!redacted.toString().contains("secret-session-id"));
+        shouldBeTrue(logged.toString().contains("secret-session-id"));
+
+        System.out.println("Passed");
+    }
+
+    // Counts far enough to take more than a millisecond
+    private static void runSlowQuery(Database database, String value) throws SQLException {
+        try (
+                Connection connection = database.getReadConnection();
+                PreparedStatement preparedStatement = connection.prepareStatement(
+                        "with recursive C(X) as (select 1 union all select X + 1 from C where X < 200000) " +
+                                "select count(*) from C where ? is not null"
+                )
+        ) {
+            preparedStatement.setString(1, value);
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                row.next();
+            }
+        }
+    }
+
+    void testPreparedSql(Database database) throws SQLException {
+        System.out.print("Running testPreparedSql... ");
+
+        // Nothing is recorded unless the index advisor asks for it
+        shouldBeTrue(database.getPreparedSql().isEmpty());
+
+        database.setRecordPreparedSql(true);
+
+        try (Connection connection = database.getReadConnection()) {
+            // And then only so many distinct statements
+            for (int i = 0; i <= ConnectionPool.MAX_PREPARED_SQL; i++) {
+                connection.prepareStatement("select " + i).close();
+            }
+
+            shouldBeTrue(database.getPreparedSql().contains("select 0"));
+            shouldBeTrue(database.getPreparedSql().size() == ConnectionPool.MAX_PREPARED_SQL);
+        } finally {
+            database.setRecordPreparedSql(false);
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testSessionCache() {
+        System.out.print("Running testSessionCache... ");
+
+        try {
+            SessionCache sessionCache = repo.getSessionCache();
+
+            ParamForLogin param = new ParamForLogin();
+            param.setEmail("amina@example.com");
+            param.setPassword("amina123");
+
+            ResultForLogin result = repo.login(param);
+            shouldBeTrue(result.getStatus() == ResultForLogin.Status.SUCCESS);
+
+            // A new session is cached by login, so the first call already hits
+            long hits = sessionCache.getHits();
+
+            ParamForGetQueryStats param1 = new ParamForGetQueryStats();
+            param1.setSessionId(result.getSessionId());
+
+            ResultForGetQueryStats result1 = repo.getQueryStats(param1);
+            shouldBeTrue(result1.getStatus() == ResultForGetQueryStats.Status.PERMISSION_DENIED);
+            shouldBeTrue(sessionCache.getHits() == hits + 1);
+
+            // Promoting the user must not leave the old role cached
+            ParamForGetOneUser param2 = new ParamForGetOneUser();
+            param2.setSessionId("0123456789abcdef");
+            param2.setUserId(result.getUser().getUserId());
+
+            User user = repo.getOneUser(param2).getUser();
+
+            ParamForSetUser param3 = new ParamForSetUser();
+            param3.setSessionId("0123456789abcdef");
+            param3.setUserId(user.getUserId());
+            param3.setFirstName(user.getFirstName());
+            param3.setLastName(user.getLastName());
+            param3.setEmail(user.getEmail());
+            param3.setIdNumber(user.getIdNumber());
+            param3.setIdType(user.getIdType());
+            param3.setRole("Admin");
+            param3.setStatus(user.getStatus());
+
+            shouldBeTrue(repo.setUser(param3).getStatus() == ResultForSetUser.Status.SUCCESS);
+
+            long misses = sessionCache.getMisses();
+
+            result1 = repo.getQueryStats(param1);
+            shouldBeTrue(result1.getStatus() == ResultForGetQueryStats.Status.SUCCESS);
+            shouldBeTrue(sessionCache.getMisses() == misses + 1);
+
+            param3.setRole(user.getRole());
+            shouldBeTrue(repo.setUser(param3).getStatus() == ResultForSetUser.Status.SUCCESS);
+
+            result1 = repo.getQueryStats(param1);
+            shouldBeTrue(result1.getStatus() == ResultForGetQueryStats.Status.PERMISSION_DENIED);
+
+            // A logged out session must not be served from the cache
+            ParamForLogout param4 = new ParamForLogout();
+            param4.setSessionId(result.getSessionId());
+
+            shouldBeTrue(repo.logout(param4).getStatus() == ResultForLogout.Status.SUCCESS);
+
+            result1 = repo.getQueryStats(param1);
+            shouldBeTrue(result1.getStatus() == ResultForGetQueryStats.Status.INVALID_SESSION_ID);
+
+            // Bounded by size and by age
+            SessionCache small = new SessionCache(16, 0);
+            small.put("0123456789abcdef", 1, "Admin", 0, 0, small.getGeneration());
+            shouldBeTrue(small.get("0123456789abcdef") == null);
+            shouldBeTrue(small.getExpirations() == 1);
+
+            small = new SessionCache(16, 60_000);
+
+            for (int i = 0; i < 1000; i++) {
+                small.put(RandomStrGenerator.generateSessionId(), i, "Admin", 0, 0, small.getGeneration());
+            }
+
+            shouldBeTrue(small.getSize() <= 16);
+            shouldBeTrue(small.getEvictions() == 1000 - small.getSize());
+
+            // A lookup that raced an invalidation doesn't put what it read
+            long generation = small.getGeneration();
+            small.invalidateUser(1);
+            small.put("0123456789abcdef", 1, "Admin", 0, 0, generation);
+            shouldBeTrue(small.get("0123456789abcdef") == null);
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testSessionExpiry(Database database) throws SQLException {
+        System.out.print("Running testSessionExpiry... ");
+
+        try {
+            ParamForLogin param = new ParamForLogin();
+            param.setEmail("amina@example.com");
+            param.setPassword("amina123");
+
+            String idle = repo.login(param).getSessionId();
+            String old = repo.login(param).getSessionId();
+            String recent = repo.login(param).getSessionId();
+
+            long now = SessionSweeper.now();
+
+            // Idle for longer than the idle TTL, older than the absolute TTL, and seen a couple of minutes ago
+            try (
+                    Connection connection = database.getWriteConnection();
+                    PreparedStatement preparedStatement = connection.prepareStatement(
+                            "update Sessions set CreatedOn = ?, LastSeenOn = ? where SessionID = ?"
+                    )
+            ) {
+                preparedStatement.setLong(1, now - SessionSweeper.DEFAULT_IDLE_TTL_SECONDS - 1);
+                preparedStatement.setLong(2, now - SessionSweeper.DEFAULT_IDLE_TTL_SECONDS - 1);
+                preparedStatement.setString(3, idle);
+                preparedStatement.executeUpdate();
+
+                preparedStatement.setLong(1, now - SessionSweeper.DEFAULT_ABSOLUTE_TTL_SECONDS - 1);
+                preparedStatement.setLong(2, now);
+                preparedStatement.setString(3, old);
+                preparedStatement.executeUpdate();
+
+                preparedStatement.setLong(1, now - 120);
+                preparedStatement.setLong(2, now - 120);
+                preparedStatement.setString(3, recent);
+                preparedStatement.executeUpdate();
+            }
+
+            repo.getSessionCache().clear();
+
+            ParamForGetCurrentUser param1 = new ParamForGetCurrentUser();
+
+            param1.setSessionId(idle);
+            shouldBeTrue(repo.getCurrentUser(param1).getStatus() == ResultForGetCurrentUser.Status.INVALID_SESSION_ID);
+
+            param1.setSessionId(old);
+            shouldBeTrue(repo.getCurrentUser(param1).getStatus() == ResultForGetCurrentUser.Status.INVALID_SESSION_ID);
+
+            param1.setSessionId(recent);
+            shouldBeTrue(repo.getCurrentUser(param1).getStatus() == ResultForGetCurrentUser.Status.SUCCESS);
+
+            SessionSweeper sessionSweeper = repo.getSessionSweeper();
+            shouldBeTrue(sessionSweeper.getPendingTouches() == 1);
+
+            // A flush that fails keeps what it didn't write for the next
+            setTouchFailureTrigger(database, true);
+
+            boolean failed = false;
+            try {
+                sessionSweeper.sweep();
+            } catch (SQLException e) {
+                failed = true;
+            }
+
+            setTouchFailureTrigger(database, false);
+            shouldBeTrue(failed);
+            shouldBeTrue(sessionSweeper.getPendingTouches() == 1);
+
+            shouldBeTrue(sessionSweeper.sweep() == 2);
+            shouldBeTrue(sessionSweeper.getLastSweepRemoved() == 2);
+            shouldBeTrue(sessionSweeper.getPendingTouches() == 0);
+
+            try (
+                    Connection connection = database.getReadConnection();
+                    PreparedStatement preparedStatement = connection.prepareStatement(
+                            "select SessionID, LastSeenOn from Sessions where SessionID in (?, ?, ?)"
+                    )
+            ) {
+                preparedStatement.setString(1, idle);
+                preparedStatement.setString(2, old);
+                preparedStatement.setString(3, recent);
+
+                try (ResultSet row = preparedStatement.executeQuery()) {
+                    // Only the recent session is left, and the sweep wrote back when it was seen
+                    shouldBeTrue(row.next());
+                    shouldBeTrue(row.getString(1).equals(recent));
+                    shouldBeTrue(row.getLong(2) >= now);
+                    shouldBeTrue(!row.next());
+                }
+            }
+
+            param1.setSessionId("0123456789abcdef");
+            shouldBeTrue(repo.getCurrentUser(param1).getStatus() == ResultForGetCurrentUser.Status.SUCCESS);
+
+            shouldBeTrue(sessionSweeper.sweep() == 0);
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testSessionTokens(Database database) throws SQLException {
+        System.out.print("Running testSessionTokens... ");
+
+        try {
+            SessionCache sessionCache = new SessionCache();
+            Repo tokenRepo = new Repo(
+                    database, sessionCache, new SessionSweeper(database, sessionCache),
+                    new SessionTokens(SessionTokens.generateKey(), SessionSweeper.DEFAULT_ABSOLUTE_TTL_SECONDS)
+            );
+
+            ParamForLogin param = new ParamForLogin();
+            param.setEmail("amina@example.com");
+            param.setPassword("amina123");
+
+            ResultForLogin result = tokenRepo.login(param);
+            shouldBeTrue(result.getStatus() == ResultForLogin.Status.SUCCESS);
+
+            String token = result.getSessionId();
+            shouldBeTrue(SessionTokens.isToken(token));
+
+            ParamForGetCurrentUser param1 = new ParamForGetCurrentUser();
+            param1.setSessionId(token);
+
+            ResultForGetCurrentUser result1 = tokenRepo.getCurrentUser(param1);
+            shouldBeTrue(result1.getStatus() == ResultForGetCurrentUser.Status.SUCCESS);
+            shouldBeTrue(result1.getUser().getUserId() == result.getUser().getUserId());
+
+            // Checked without touching the database
+            shouldBeTrue(sessionCache.getSize() == 0);
+
+            // A tampered token, a token signed with another key, and a token past its age are all refused
+            param1.setSessionId((token.charAt(0) == 'A' ? 'B' : 'A') + token.substring(1));
+            shouldBeTrue(tokenRepo.getCurrentUser(param1).getStatus()
+                    == ResultForGetCurrentUser.Status.INVALID_SESSION_ID);
+
+            param1.setSessionId(token);
+            shouldBeTrue(repo.getCurrentUser(param1).getStatus() == ResultForGetCurrentUser.Status.INVALID_SESSION_ID);
+
+            SessionTokens expired = new SessionTokens(SessionTokens.generateKey(), 60);
+
+            try (Connection connection = database.getReadConnection()) {
+                String oldToken = expired.issue(connection, 4, "Sales Executive", SessionSweeper.now() - 61);
+                shouldBeTrue(expired.verify(oldToken, SessionSweeper.now()) == null);
+            }
+
+            // Legacy session IDs keep working next to tokens
+            param1.setSessionId("0123456789abcdef");
+            shouldBeTrue(tokenRepo.getCurrentUser(param1).getStatus() == ResultForGetCurrentUser.Status.SUCCESS);
+
+            // Editing a name keeps the token, a role change revokes it
+            ParamForGetOneUser param2 = new ParamForGetOneUser();
+            param2.setSessionId("0123456789abcdef");
+            param2.setUserId(result.getUser().getUserId());
+
+            User user = tokenRepo.getOneUser(param2).getUser();
+
+            ParamForSetUser param3 = new ParamForSetUser();
+            param3.setSessionId("0123456789abcdef");
+            param3.setUserId(user.getUserId());
+            param3.setFirstName(user.getFirstName());
+            param3.setLastName(user.getLastName());
+            param3.setEmail(user.getEmail());
+            param3.setIdNumber(user.getIdNumber());
+            param3.setIdType(user.getIdType());
+            param3.setRole(user.getRole());
+            param3.setStatus(user.getStatus());
+
+            shouldBeTrue(tokenRepo.setUser(param3).getStatus() == ResultForSetUser.Status.SUCCESS);
+
+            param1.setSessionId(token);
+            shouldBeTrue(tokenRepo.getCurrentUser(param1).getStatus() == ResultForGetCurrentUser.Status.SUCCESS);
+
+            param3.setRole("Admin");
+            shouldBeTrue(tokenRepo.setUser(param3).getStatus() == ResultForSetUser.Status.SUCCESS);
+            shouldBeTrue(tokenRepo.getCurrentUser(param1).getStatus()
+                    == ResultForGetCurrentUser.Status.INVALID_SESSION_ID);
+
+            param3.setRole(user.getRole());
+            shouldBeTrue(tokenRepo.setUser(param3).getStatus() == ResultForSetUser.Status.SUCCESS);
+
+            // A new login gets a token in the new epoch, and logging out revokes it
+            token = tokenRepo.login(param).getSessionId();
+            param1.setSessionId(token);
+            shouldBeTrue(tokenRepo.getCurrentUser(param1).getStatus() == ResultForGetCurrentUser.Status.SUCCESS);
+
+            ParamForLogout param4 = new ParamForLogout();
+            param4.setSessionId(token);
+            shouldBeTrue(tokenRepo.logout(param4).getStatus() == ResultForLogout.Status.SUCCESS);
+            shouldBeTrue(tokenRepo.getCurrentUser(param1).getStatus()
+                    == ResultForGetCurrentUser.Status.INVALID_SESSION_ID);
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testPasswordHashing(Database database) throws SQLException {
+        System.out.print("Running testPasswordHashing... ");
+
+        try {
+            ParamForLogin param = new ParamForLogin();
+            param.setEmail("amina@example.com");
+            param.setPassword("amina123");
+
+            // A login after the settings change upgrades the stored hash, and the upgraded hash still verifies
+            PasswordEncoder.configure(PasswordEncoder.SHA256, 10_000);
+
+            shouldBeTrue(repo.login(param).getStatus() == ResultForLogin.Status.SUCCESS);
+            shouldBeTrue(getPwHash(database, param.getEmail()).startsWith("sha256:10000:"));
+
+            shouldBeTrue(repo.login(param).getStatus() == ResultForLogin.Status.SUCCESS);
+            shouldBeTrue(!PasswordEncoder.needsRehash(getPwHash(database, param.getEmail())));
+
+            PasswordEncoder.configure(PasswordEncoder.SHA1, 8192);
+
+            shouldBeTrue(repo.login(param).getStatus() == ResultForLogin.Status.SUCCESS);
+            shouldBeTrue(getPwHash(database, param.getEmail()).startsWith("8192:"));
+
+            param.setPassword("amina124");
+            shouldBeTrue(repo.login(param).getStatus() == ResultForLogin.Status.INVALID_CREDENTIAL);
+
+            // Calibration never goes below the original cost
+            shouldBeTrue(PasswordEncoder.calibrate(PasswordEncoder.SHA1, 1) == 8192);
+
+            // A password change that lands between the check and the session insert beats the old password. The
+            // writer is held so the login waits for it right after checking.
+            param.setPassword("amina123");
+            String pwHash = getPwHash(database, param.getEmail());
+            CompletableFuture<ResultForLogin> login;
+
+            try (Connection connection = database.getWriteConnection()) {
+                login = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return repo.login(param);
+                    } catch (RemoteException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+
+                while (database.getWritePool().getWaitingCount() == 0) {
+                    Thread.sleep(10);
+                }
+
+                setPwHash(connection, param.getEmail(), PasswordEncoder.encode("amina456"));
+            }
+
+            shouldBeTrue(login.join().getStatus() == ResultForLogin.Status.INVALID_CREDENTIAL);
+
+            try (Connection connection = database.getWriteConnection()) {
+                setPwHash(connection, param.getEmail(), pwHash);
+            }
+
+            shouldBeTrue(repo.login(param).getStatus() == ResultForLogin.Status.SUCCESS);
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+
+        // One thread and one queued task, so a burst has to be turned away
+        PasswordHasher hasher = new PasswordHasher(1, 1);
+        PasswordEncoder.configure(PasswordEncoder.SHA1, 200_000);
+
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    hasher.encode("burst");
+                } catch (PasswordHasher.BusyException ignored) {
+                }
+            }));
+        }
+
+        threads.forEach(Thread::start);
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        PasswordEncoder.configure(PasswordEncoder.SHA1, 8192);
+        hasher.shutdown();
+
+        shouldBeTrue(hasher.getRejected() > 0);
+        shouldBeTrue(hasher.getCompleted() + hasher.getRejected() == 8);
+
+        System.out.println("Passed");
+    }
+
+    void testLoginThrottle() {
+        System.out.print("Running testLoginThrottle... ");
+
+        try {
+            LoginThrottle loginThrottle = repo.getLoginThrottle();
+            long throttled = loginThrottle.getThrottledByEmail();
+
+            ParamForLogin param = new ParamForLogin();
+            param.setEmail("josie@example.com");
+            param.setPassword("wrong");
+
+            // Failures use up the email's bucket, then further attempts are refused without checking the password
+            for (int i = 0; i < LoginThrottle.DEFAULT_EMAIL_CAPACITY; i++) {
+                shouldBeTrue(repo.login(param).getStatus() == ResultForLogin.Status.INVALID_CREDENTIAL);
+            }
+
+            long completed = repo.getPasswordHasher().getCompleted();
+
+            param.setPassword("josie123");
+            shouldBeTrue(repo.login(param).getStatus() == ResultForLogin.Status.SERVER_ERROR);
+            shouldBeTrue(loginThrottle.getThrottledByEmail() == throttled + 1);
+            shouldBeTrue(repo.getPasswordHasher().getCompleted() == completed);
+
+            // Other emails are unaffected, and a successful login doesn't use up a token
+            param.setEmail("amina@example.com");
+            param.setPassword("amina123");
+
+            for (int i = 0; i < LoginThrottle.DEFAULT_EMAIL_CAPACITY + 1; i++) {
+                shouldBeTrue(repo.login(param).getStatus() == ResultForLogin.Status.SUCCESS);
+            }
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        // The global bucket caps attempts across emails, and every attempt is counted once
+        LoginThrottle loginThrottle = new LoginThrottle(2, 1, 3, 1);
+
+        for (int i = 0; i < 10; i++) {
+            loginThrottle.tryAcquire("user" + i + "@example.com");
+        }
+
+        shouldBeTrue(!loginThrottle.tryAcquire("user0@example.com"));
+        shouldBeTrue(loginThrottle.getAllowed() == 3);
+        shouldBeTrue(loginThrottle.getThrottledGlobally() == 8);
+
+        // Attempts refused globally hand their email token back, so none of them counts against an email, and they
+        // leave no bucket behind
+        shouldBeTrue(loginThrottle.getThrottledByEmail() == 0);
+        shouldBeTrue(loginThrottle.getTrackedEmails() == 3);
+
+        // Once the map is full, a new email is still held to a bucket of its own size, just a shared one
+        loginThrottle = new LoginThrottle(2, 1, 100, 1, 2);
+
+        for (int i = 0; i < 10; i++) {
+            shouldBeTrue(loginThrottle.tryAcquire("spray" + i + "@example.com"));
+        }
+
+        shouldBeTrue(loginThrottle.getTrackedEmails() == 2);
+        shouldBeTrue(loginThrottle.tryAcquire("target@example.com"));
+        shouldBeTrue(loginThrottle.tryAcquire("Target@example.com"));
+        shouldBeTrue(!loginThrottle.tryAcquire("target@example.com"));
+        shouldBeTrue(loginThrottle.getTrackedEmails() == 2);
+
+        System.out.println("Passed");
+    }
+
+    void testGetPicture() {
+        System.out.print("Running testGetPicture... ");
+
+        try {
+            String sessionId = "0123456789abcdef";
+            byte[] picture = {1, 2, 3, 4};
+
+            ParamForGetOneProduct param = new ParamForGetOneProduct();
+            param.setSessionId(sessionId);
+            param.setProductId(1);
+
+            Product product = repo.getOneProduct(param).getProduct();
+
+            ParamForSetProduct param1 = new ParamForSetProduct();
+            param1.setSessionId(sessionId);
+            param1.setProductId(product.getProductId());
+            param1.setName(product.getName());
+            param1.setCategory(product.getCategory());
+            param1.setProductPrice(product.getProductPrice());
+            param1.setProductPic(picture);
+            param1.setStatus(product.getStatus());
+            shouldBeTrue(repo.setProduct(param1).getStatus() == ResultForSetProduct.Status.SUCCESS);
+
+            // Lists can leave pictures out
+            ParamForGetManyProducts param2 = new ParamForGetManyProducts();
+            param2.setSessionId(sessionId);
+
+            ListOptions options = new ListOptions();
+            options.setWithPictures(false);
+
+            ResultForGetManyProducts result2 = repo.getManyProducts(param2, options);
+            shouldBeTrue(result2.getStatus() == ResultForGetManyProducts.Status.SUCCESS);
+            shouldBeTrue(result2.getProducts().stream().allMatch(p -> p.getProductPic().length == 0));
+
+            result2 = repo.getManyProducts(param2);
+            shouldBeTrue(result2.getProducts().stream().anyMatch(p -> Arrays.equals(p.getProductPic(), picture)));
+
+            // And the picture is fetched by ID, or not at all when the client already has it
+            ParamForGetPicture param3 = new ParamForGetPicture();
+            param3.setSessionId(sessionId);
+            param3.setKind(ParamForGetPicture.Kind.PRODUCT);
+            param3.setId(product.getProductId());
+
+            ResultForGetPicture result3 = repo.getPicture(param3);
+            shouldBeTrue(result3.getStatus() == ResultForGetPicture.Status.SUCCESS);
+            shouldBeTrue(Arrays.equals(result3.getPicture(), picture));
+            shouldBeTrue(result3.getHash().equals(PictureHash.of(picture)));
+
+            param3.setKnownHash(result3.getHash());
+            result3 = repo.getPicture(param3);
+            shouldBeTrue(result3.getStatus() == ResultForGetPicture.Status.NOT_MODIFIED);
+            shouldBeTrue(result3.getPicture().length == 0);
+
+            param3.setId(1000);
+            shouldBeTrue(repo.getPicture(param3).getStatus() == ResultForGetPicture.Status.NOT_FOUND);
+
+            // Profile pictures are only for admins and the user themself
+            ParamForLogin param4 = new ParamForLogin();
+            param4.setEmail("amina@example.com");
+            param4.setPassword("amina123");
+
+            ParamForGetCurrentUser param5 = new ParamForGetCurrentUser();
+            param5.setSessionId(repo.login(param4).getSessionId());
+
+            ParamForGetPicture param6 = new ParamForGetPicture();
+            param6.setSessionId(param5.getSessionId());
+            param6.setKind(ParamForGetPicture.Kind.USER);
+            param6.setId(repo.getCurrentUser(param5).getUser().getUserId());
+            shouldBeTrue(repo.getPicture(param6).getStatus() == ResultForGetPicture.Status.SUCCESS);
+            shouldBeTrue(repo.getPicture(param6).getHash().isEmpty());
+
+            param6.setId(1);
+            shouldBeTrue(repo.getPicture(param6).getStatus() == ResultForGetPicture.Status.PERMISSION_DENIED);
+
+            param6.setSessionId(sessionId);
+            shouldBeTrue(repo.getPicture(param6).getStatus() == ResultForGetPicture.Status.SUCCESS);
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testImageStore(Database database) throws SQLException, IOException {
+        System.out.print("Running testImageStore... ");
+
+        try {
+            String sessionId = "0123456789abcdef";
+            byte[] picture = {5, 6, 7, 8};
+            String hash = PictureHash.of(picture);
+
+            // The same picture twice is one file with two references
+            ParamForAddProduct param = new ParamForAddProduct();
+            param.setSessionId(sessionId);
+            param.setCategory("Pictures");
+            param.setProductPrice(BigDecimal.valueOf(100, 2));
+            param.setProductPic(picture);
+            param.setStatus("Available");
+
+            param.setName("Picture 1");
+            int productId1 = repo.addProduct(param).getNewProductId();
+
+            param.setName("Picture 2");
+            int productId2 = repo.addProduct(param).getNewProductId();
+
+            shouldBeTrue(getRefCount(database, hash) == 2);
+            shouldBeTrue(Files.exists(Path.of("test.db-images", hash.substring(0, 2), hash)));
+
+            // Only the hash is in the row
+            try (
+                    Connection connection = database.getReadConnection();
+                    PreparedStatement preparedStatement = connection.prepareStatement(
+                            "select length(ProductPic), ProductPicHash from Products where ProductID = ?"
+                    )
+            ) {
+                preparedStatement.setInt(1, productId1);
+
+                try (ResultSet row = preparedStatement.executeQuery()) {
+                    row.next();
+                    shouldBeTrue(row.getInt(1) == 0);
+                    shouldBeTrue(row.getString(2).equals(hash));
+                }
+            }
+
+            ParamForGetOneProduct param1 = new ParamForGetOneProduct();
+            param1.setSessionId(sessionId);
+            param1.setProductId(productId1);
+            shouldBeTrue(Arrays.equals(repo.getOneProduct(param1).getProduct().getProductPic(), picture));
+
+            // A picture larger than the mapping threshold is read back the same
+            byte[] largePicture = new byte[256 * 1024];
+            for (int i = 0; i < largePicture.length; i++) {
+                largePicture[i] = (byte) i;
+            }
+
+            Product product = repo.getOneProduct(param1).getProduct();
+
+            ParamForSetProduct param2 = new ParamForSetProduct();
+            param2.setSessionId(sessionId);
+            param2.setProductId(productId1);
+            param2.setName(product.getName());
+            param2.setCategory(product.getCategory());
+            param2.setProductPrice(product.getProductPrice());
+            param2.setProductPic(largePicture);
+            param2.setStatus(product.getStatus());
+            shouldBeTrue(repo.setProduct(param2).getStatus() == ResultForSetProduct.Status.SUCCESS);
+
+            shouldBeTrue(getRefCount(database, hash) == 1);
+            shouldBeTrue(Arrays.equals(repo.getOneProduct(param1).getProduct().getProductPic(), largePicture));
+
+            // The file outlives its last reference until it is collected
+            ParamForDeleteProduct param3 = new ParamForDeleteProduct();
+            param3.setSessionId(sessionId);
+            param3.setProductId(productId2);
+            shouldBeTrue(repo.deleteProduct(param3).getStatus() == ResultForDeleteProduct.Status.SUCCESS);
+
+            shouldBeTrue(getRefCount(database, hash) == 0);
+            shouldBeTrue(Files.exists(Path.of("test.db-images", hash.substring(0, 2), hash)));
+
+            shouldBeTrue(database.getImageStore().collect(database) == 1);
+            shouldBeTrue(getRefCount(database, hash) == -1);
+            shouldBeTrue(!Files.exists(Path.of("test.db-images", hash.substring(0, 2), hash)));
+
+            // Adding it again after collection stores it again
+            param.setName("Picture 3");
+            param.setProductPic(picture);
+            param1.setProductId(repo.addProduct(param).getNewProductId());
+            shouldBeTrue(Arrays.equals(repo.getOneProduct(param1).getProduct().getProductPic(), picture));
+
+            // A picture whose transaction rolled back leaves a file with no row, swept once past the grace period
+            byte[] rolledBack = {9, 10, 11, 12};
+            String rolledBackHash = PictureHash.of(rolledBack);
+
+            try (Connection connection = database.getWriteConnection()) {
+                connection.setAutoCommit(false);
+                database.getImageStore().acquire(connection, rolledBack);
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+
+            Path rolledBackPath = Path.of("test.db-images", rolledBackHash.substring(0, 2), rolledBackHash);
+            shouldBeTrue(getRefCount(database, rolledBackHash) == -1);
+            shouldBeTrue(Files.exists(rolledBackPath));
+
+            shouldBeTrue(database.getImageStore().collect(database) == 0);
+            shouldBeTrue(Files.exists(rolledBackPath));
+
+            shouldBeTrue(database.getImageStore().collect(database, 0) == 1);
+            shouldBeTrue(!Files.exists(rolledBackPath));
+
+            // Files that still have a row are left alone
+            shouldBeTrue(Files.exists(Path.of("test.db-images", hash.substring(0, 2), hash)));
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testThumbnails(Database database) throws SQLException, IOException, InterruptedException {
+        System.out.print("Running testThumbnails... ");
+
+        try {
+            String sessionId = "0123456789abcdef";
+            Thumbnailer thumbnailer = repo.getThumbnailer();
+            long completed = thumbnailer.getCompleted();
+
+            BufferedImage image = new BufferedImage(600, 400, BufferedImage.TYPE_INT_RGB);
+            for (int x = 0; x < image.getWidth(); x++) {
+                for (int y = 0; y < image.getHeight(); y++) {
+                    image.setRGB(x, y, x * 0x100 + y);
+                }
+            }
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", output);
+            byte[] picture = output.toByteArray();
+
+            ParamForAddProduct param = new ParamForAddProduct();
+            param.setSessionId(sessionId);
+            param.setName("Thumbnail");
+            param.setCategory("Pictures");
+            param.setProductPrice(BigDecimal.valueOf(100, 2));
+            param.setProductPic(picture);
+            param.setStatus("Available");
+
+            int productId = repo.addProduct(param).getNewProductId();
+
+            shouldBeTrue(thumbnailer.awaitIdle(10000));
+            shouldBeTrue(thumbnailer.getCompleted() == completed + 1);
+
+            // Each size fits the longer side and keeps the aspect ratio
+            ParamForGetPicture param1 = new ParamForGetPicture();
+            param1.setSessionId(sessionId);
+            param1.setId(productId);
+
+            for (int size : Thumbnailer.SIZES) {
+                param1.setSize(size);
+
+                ResultForGetPicture result1 = repo.getPicture(param1);
+                shouldBeTrue(result1.getStatus() == ResultForGetPicture.Status.SUCCESS);
+                shouldBeTrue(!result1.getHash().equals(PictureHash.of(picture)));
+
+                BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(result1.getPicture()));
+                shouldBeTrue(thumbnail.getWidth() == size);
+                shouldBeTrue(thumbnail.getHeight() == Math.round(size * 2 / 3.0));
+            }
+
+            // Lists can return them instead of the originals
+            ParamForGetManyProducts param2 = new ParamForGetManyProducts();
+            param2.setSessionId(sessionId);
+            param2.setCategory("Pictures");
+
+            ListOptions options = new ListOptions();
+            options.setThumbnailSize(64);
+
+            param1.setSize(64);
+            byte[] thumbnail = repo.getPicture(param1).getPicture();
+
+            ResultForGetManyProducts result2 = repo.getManyProducts(param2, options);
+            shouldBeTrue(result2.getProducts().stream()
+                    .anyMatch(product -> Arrays.equals(product.getProductPic(), thumbnail)));
+
+            // A picture that isn't an image has no thumbnails and stands in for them
+            String hash = PictureHash.of(new byte[]{1, 2, 3, 4});
+            try (Connection connection = database.getReadConnection()) {
+                shouldBeTrue(thumbnailer.resolve(connection, hash, 64).equals(hash));
+            }
+
+            // Thumbnails go with their original
+            ParamForDeleteProduct param3 = new ParamForDeleteProduct();
+            param3.setSessionId(sessionId);
+            param3.setProductId(productId);
+            shouldBeTrue(repo.deleteProduct(param3).getStatus() == ResultForDeleteProduct.Status.SUCCESS);
+
+            shouldBeTrue(database.getImageStore().collect(database) == 1 + Thumbnailer.SIZES.length);
+            shouldBeTrue(getRefCount(database, PictureHash.of(picture)) == -1);
+            shouldBeTrue(getRefCount(database, PictureHash.of(thumbnail)) == -1);
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        // One thread and one queued picture, so a burst of uploads has some turned away, which the retry catches up on
+        Thumbnailer thumbnailer = new Thumbnailer(database, 1, 1);
+        List<String> hashes = new ArrayList<>();
+
+        try (Connection connection = database.getWriteConnection()) {
+            connection.setAutoCommit(false);
+
+            for (int i = 0; i < 8; i++) {
+                BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+                image.setRGB(0, 0, i + 1);
+
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                ImageIO.write(image, "png", output);
+                hashes.add(database.getImageStore().acquire(connection, output.toByteArray()));
+            }
+
+            connection.commit();
+            connection.setAutoCommit(true);
+        }
+
+        hashes.forEach(thumbnailer::submit);
+        shouldBeTrue(thumbnailer.awaitIdle(10000));
+        shouldBeTrue(thumbnailer.getRejected() > 0);
+        shouldBeTrue(thumbnailer.getRetrying() == thumbnailer.getRejected());
+
+        shouldBeTrue(thumbnailer.retry() == thumbnailer.getRejected());
+        shouldBeTrue(thumbnailer.getRetrying() == 0);
+
+        try (Connection connection = database.getWriteConnection()) {
+            for (String hash : hashes) {
+                shouldBeTrue(!thumbnailer.resolve(connection, hash, 64).equals(hash));
+            }
+
+            connection.setAutoCommit(false);
+
+            for (String hash : hashes) {
+                database.getImageStore().release(connection, hash);
+            }
+
+            connection.commit();
+            connection.setAutoCommit(true);
+        }
+
+        thumbnailer.shutdown();
+        database.getImageStore().collect(database);
+
+        for (String hash : hashes) {
+            shouldBeTrue(getRefCount(database, hash) == -1);
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testImageServer(Database database) throws SQLException, IOException {
+        System.out.print("Running testImageServer... ");
+
+        String sessionId = "0123456789abcdef";
+        byte[] picture = {(byte) 0x89, 'P', 'N', 'G', 9, 10, 11, 12};
+        String hash = PictureHash.of(picture);
+
+        ParamForGetOneProduct param = new ParamForGetOneProduct();
+        param.setSessionId(sessionId);
+        param.setProductId(1);
+
+        Product product = repo.getOneProduct(param).getProduct();
+
+        ParamForSetProduct param1 = new ParamForSetProduct();
+        param1.setSessionId(sessionId);
+        param1.setProductId(product.getProductId());
+        param1.setName(product.getName());
+        param1.setCategory(product.getCategory());
+        param1.setProductPrice(product.getProductPrice());
+        param1.setProductPic(picture);
+        param1.setStatus(product.getStatus());
+        shouldBeTrue(repo.setProduct(param1).getStatus() == ResultForSetProduct.Status.SUCCESS);
+
+        ParamForGetPicture param2 = new ParamForGetPicture();
+        param2.setSessionId(sessionId);
+        param2.setKind(ParamForGetPicture.Kind.PRODUCT);
+        param2.setId(product.getProductId());
+
+        // No image server, no URL
+        shouldBeTrue(repo.getPicture(param2).getUrl().isEmpty());
+
+        ImageUrls imageUrls = new ImageUrls(SessionTokens.generateKey(), ImageUrls.DEFAULT_TTL_SECONDS);
+        repo.setImageUrls(imageUrls);
+
+        ImageServer imageServer = new ImageServer(
+                database, imageUrls, new InetSocketAddress(ImageServer.DEFAULT_BIND_ADDRESS, 0)
+        );
+        imageServer.start();
+
+        try {
+            String url = "http://localhost:" + imageServer.getPort();
+
+            // The URL comes from getPicture, after its session check
+            String path = repo.getPicture(param2).getUrl();
+            shouldBeTrue(path.startsWith("/images/" + hash + "?"));
+
+            HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+            shouldBeTrue(connection.getResponseCode() == 200);
+            shouldBeTrue(connection.getHeaderField("ETag").equals("\"" + hash + "\""));
+            shouldBeTrue(connection.getHeaderField("Cache-Control").startsWith("private"));
+            shouldBeTrue(connection.getContentType().equals("image/png"));
+
+            try (InputStream body = connection.getInputStream()) {
+                shouldBeTrue(Arrays.equals(body.readAllBytes(), picture));
+            }
+
+            // A client holding the picture gets nothing but the status
+            connection = (HttpURLConnection) new URL(url + path).openConnection();
+            connection.setRequestProperty("If-None-Match", "\"" + hash + "\"");
+            shouldBeTrue(connection.getResponseCode() == 304);
+
+            // Knowing the hash isn't enough
+            connection = (HttpURLConnection) new URL(url + "/images/" + hash).openConnection();
+            shouldBeTrue(connection.getResponseCode() == 403);
+
+            connection = (HttpURLConnection) new URL(url + path.replace("sig=", "sig=x")).openConnection();
+            shouldBeTrue(connection.getResponseCode() == 403);
+
+            // Nor is a signature for another hash
+            String other = PictureHash.of(new byte[]{0});
+            connection = (HttpURLConnection) new URL(url + path.replace(hash, other)).openConnection();
+            shouldBeTrue(connection.getResponseCode() == 403);
+
+            String expired = imageUrls.sign(hash, SessionSweeper.now() - 3 * ImageUrls.DEFAULT_TTL_SECONDS);
+            connection = (HttpURLConnection) new URL(url + expired).openConnection();
+            shouldBeTrue(connection.getResponseCode() == 403);
+
+            connection = (HttpURLConnection) new URL(url + imageUrls.sign(other, SessionSweeper.now())).openConnection();
+            shouldBeTrue(connection.getResponseCode() == 404);
+
+            connection = (HttpURLConnection) new URL(url + path).openConnection();
+            connection.setRequestMethod("DELETE");
+            shouldBeTrue(connection.getResponseCode() == 405);
+
+            // Once the product lets go of it, the picture isn't served even though its file waits for collect
+            param1.setProductPic(product.getProductPic());
+            shouldBeTrue(repo.setProduct(param1).getStatus() == ResultForSetProduct.Status.SUCCESS);
+            shouldBeTrue(getRefCount(database, hash) == 0);
+
+            connection = (HttpURLConnection) new URL(url + path).openConnection();
+            shouldBeTrue(connection.getResponseCode() == 404);
+        } finally {
+            imageServer.stop();
+            repo.setImageUrls(null);
+        }
+
+        System.out.println("Passed");
+    }
+
+    // -1 when the image has no row
+    private static int getRefCount(Database database, String hash) throws SQLException {
+        try (
+                Connection connection = database.getReadConnection();
+                PreparedStatement preparedStatement = connection.prepareStatement(
+                        "select RefCount from Images where Hash = ?"
+                )
+        ) {
+            preparedStatement.setString(1, hash);
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                return row.next() ? row.getInt(1) : -1;
+            }
+        }
+    }
+
+    private static String getPwHash(Database database, String email) throws SQLException {
+        try (
+                Connection connection = database.getReadConnection();
+                PreparedStatement preparedStatement = connection.prepareStatement(
+                        "select PwHash from Users where Email = ?"
+                )
+        ) {
+            preparedStatement.setString(1, email);
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                row.next();
+                return row.getString(1);
+            }
+        }
+    }
+
+    private static void setPwHash(Connection connection, String email, String pwHash) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "update Users set PwHash = ? where Email = ?"
+        )) {
+            preparedStatement.setString(1, pwHash);
+            preparedStatement.setString(2, email);
+
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    void testPictureCache(Database database) throws SQLException, IOException {
+        System.out.print("Running testPictureCache... ");
+
+        ImageStore imageStore = database.getImageStore();
+        PictureCache original = imageStore.getPictureCache();
+
+        try {
+            PictureCache pictureCache = new PictureCache();
+            imageStore.setPictureCache(pictureCache);
+
+            byte[] picture = new byte[10_000];
+            for (int i = 0; i < picture.length; i++) {
+                picture[i] = (byte) (i * 7);
+            }
+
+            String hash;
+
+            try (Connection connection = database.getWriteConnection()) {
+                connection.setAutoCommit(false);
+                hash = imageStore.acquire(connection, picture);
+                connection.commit();
+            }
+
+            // The first read goes to the file, the next ones to the cache, spread over several blocks
+            shouldBeTrue(Arrays.equals(imageStore.read(hash), picture));
+            shouldBeTrue(pictureCache.getMisses() == 1 && pictureCache.getHits() == 0);
+            shouldBeTrue(Arrays.equals(imageStore.read(hash), picture));
+            shouldBeTrue(Arrays.equals(imageStore.read(hash), picture));
+            shouldBeTrue(pictureCache.getHits() == 2);
+            shouldBeTrue(pictureCache.getSize() == 1 && pictureCache.getResidentBytes() == picture.length);
+
+            // A picture too large for a stripe is read, but not kept
+            byte[] largePicture = new byte[(int) (pictureCache.getCapacityBytes() / 16)];
+            String largeHash = PictureHash.of(largePicture);
+            pictureCache.put(largeHash, largePicture);
+            shouldBeTrue(pictureCache.get(largeHash) == null);
+
+            pictureCache.invalidate(hash);
+            shouldBeTrue(pictureCache.getSize() == 0 && pictureCache.getResidentBytes() == 0);
+
+            // Past its capacity the cache evicts and never holds more than it was given
+            PictureCache smallCache = new PictureCache(16 * 4 * 4096);
+            for (int i = 0; i < 200; i++) {
+                byte[] block = new byte[4096];
+                block[0] = (byte) i;
+                block[1] = (byte) (i >> 8);
+                smallCache.put(PictureHash.of(block), block);
+            }
+
+            shouldBeTrue(smallCache.getEvictions() > 0);
+            shouldBeTrue(smallCache.getSize() <= 64);
+            shouldBeTrue(smallCache.getResidentBytes() <= smallCache.getCapacityBytes());
+
+            // The most recent picture is still there, and the first ones went
+            byte[] last = new byte[4096];
+            last[0] = (byte) 199;
+            shouldBeTrue(Arrays.equals(smallCache.get(PictureHash.of(last)), last));
+            shouldBeTrue(smallCache.get(PictureHash.of(new byte[4096])) == null);
+
+            smallCache.clear();
+            shouldBeTrue(smallCache.getSize() == 0 && smallCache.getResidentBytes() == 0);
+
+            // With no capacity nothing is cached and reads still work
+            PictureCache disabled = new PictureCache(0);
+            imageStore.setPictureCache(disabled);
+            shouldBeTrue(Arrays.equals(imageStore.read(hash), picture));
+            shouldBeTrue(disabled.getSize() == 0);
+        } finally {
+            imageStore.setPictureCache(original);
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testWritePipeline(Database database) throws SQLException, IOException, InterruptedException {
+        System.out.print("Running testWritePipeline... ");
+
+        WritePipeline writePipeline = database.getWritePipeline();
+
+        try (
+                Connection connection = database.getWriteConnection();
+                PreparedStatement preparedStatement = connection.prepareStatement(
+                        "create table PipelineTest (X integer)"
+                )
+        ) {
+            preparedStatement.executeUpdate();
+        }
+
+        // A linger long enough for everything below to land in one batch
+        writePipeline.setMaxLingerMillis(200);
+
+        try {
+            long batches = writePipeline.getBatches();
+
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int i = 1; i <= 3; i++) {
+                int x = i;
+
+                futures.add(writePipeline.submit((connection, afterCommit) -> {
+                    try (PreparedStatement preparedStatement = connection.prepareStatement(
+                            "insert into PipelineTest (X) values (?)"
+                    )) {
+                        preparedStatement.setInt(1, x);
+                        preparedStatement.executeUpdate();
+                    }
+
+                    if (x == 2) {
+                        throw new SQLException("Failed on purpose");
+                    }
+
+                    return x;
+                }));
+            }
+
+            shouldBeTrue(futures.get(0).join() == 1);
+            shouldBeTrue(futures.get(1).isCompletedExceptionally());
+            shouldBeTrue(futures.get(2).join() == 3);
+            shouldBeTrue(writePipeline.getBatches() == batches + 1);
+
+            // Only the failed operation was rolled back
+            try (
+                    Connection connection = database.getReadConnection();
+                    PreparedStatement preparedStatement = connection.prepareStatement(
+                            "select group_concat(X) from (select X from PipelineTest order by X)"
+                    );
+                    ResultSet row = preparedStatement.executeQuery()
+            ) {
+                row.next();
+                shouldBeTrue(row.getString(1).equals("1,3"));
+            }
+
+            // Sales in one batch see each other's stock, so only as many succeed as there are to sell
+            ParamForAddStock param = new ParamForAddStock();
+            param.setSessionId("0123456789abcdef");
+            param.setProductId(6);
+            param.setQuantity(3);
+            param.setExpiryDate(LocalDate.of(2099, 12, 31));
+            String sku = repo.addStock(param).getNewSku();
+
+            ParamForAddSale param1 = new ParamForAddSale();
+            param1.setSessionId("0123456789abcdef");
+            param1.setSku(sku);
+            param1.setSoldQuantity(1);
+
+            List<ResultForAddSale> results = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> threads = new ArrayList<>();
+            batches = writePipeline.getBatches();
+
+            for (int i = 0; i < 5; i++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        results.add(repo.addSale(param1));
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                    }
+                });
+
+                threads.add(thread);
+                thread.start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            shouldBeTrue(results.stream().filter(x -> x.getStatus() == ResultForAddSale.Status.SUCCESS).count() == 3);
+            shouldBeTrue(results.stream().filter(
+                    x -> x.getStatus() == ResultForAddSale.Status.INVALID_QUANTITY
+            ).count() == 2);
+            shouldBeTrue(writePipeline.getBatches() - batches < 5);
+
+            ParamForGetOneStock param2 = new ParamForGetOneStock();
+            param2.setSessionId("0123456789abcdef");
+            param2.setSku(sku);
+            shouldBeTrue(repo.getOneStock(param2).getStock().getQuantity() == 0);
+
+            writePipeline.setMaxLingerMillis(WritePipeline.DEFAULT_MAX_LINGER_MILLIS);
+
+            // An Error fails its own operation and leaves the writer running
+            CompletableFuture<Integer> overflowed = writePipeline.submit((connection, afterCommit) -> {
+                throw new StackOverflowError();
+            });
+            shouldBeTrue(overflowed.handle((x, e) -> e instanceof StackOverflowError).join());
+            shouldBeTrue(writePipeline.execute((connection, afterCommit) -> 4) == 4);
+
+            // A caller stuck behind a slow operation gives up, and its operation is skipped
+            writePipeline.setTimeoutMillis(50);
+            CompletableFuture<Integer> slow = writePipeline.submit((connection, afterCommit) -> {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return 0;
+            });
+
+            boolean timedOut = false;
+            try {
+                writePipeline.execute((connection, afterCommit) -> {
+                    try (PreparedStatement preparedStatement = connection.prepareStatement(
+                            "insert into PipelineTest (X) values (5)"
+                    )) {
+                        preparedStatement.executeUpdate();
+                    }
+
+                    return 5;
+                });
+            } catch (SQLException e) {
+                timedOut = true;
+            }
+
+            shouldBeTrue(timedOut);
+
+            // But one the writer has already started is waited for, so its caller isn't told it failed when it commits
+            slow.join();
+
+            shouldBeTrue(writePipeline.execute((connection, afterCommit) -> {
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "insert into PipelineTest (X) values (7)"
+                )) {
+                    preparedStatement.executeUpdate();
+                }
+
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return 7;
+            }) == 7);
+
+            writePipeline.setTimeoutMillis(WritePipeline.DEFAULT_TIMEOUT_MILLIS);
+            shouldBeTrue(writePipeline.execute((connection, afterCommit) -> 6) == 6);
+
+            try (
+                    Connection connection = database.getReadConnection();
+                    PreparedStatement preparedStatement = connection.prepareStatement(
+                            "select group_concat(X) from (select X from PipelineTest order by X)"
+                    );
+                    ResultSet row = preparedStatement.executeQuery()
+            ) {
+                row.next();
+                shouldBeTrue(row.getString(1).equals("1,3,7"));
+            }
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        } finally {
+            writePipeline.setMaxLingerMillis(WritePipeline.DEFAULT_MAX_LINGER_MILLIS);
+            writePipeline.setTimeoutMillis(WritePipeline.DEFAULT_TIMEOUT_MILLIS);
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testStockContention(Database database) throws SQLException, InterruptedException {
+        System.out.print("Running testStockContention... ");
+
+        try {
+            String sessionId = "0123456789abcdef";
+
+            ParamForAddStock param = new ParamForAddStock();
+            param.setSessionId(sessionId);
+            param.setProductId(6);
+            param.setQuantity(50);
+            param.setExpiryDate(LocalDate.of(2099, 12, 31));
+            String sku = repo.addStock(param).getNewSku();
+
+            // Far more is sold and taken out than there is, with some put back along the way. As the pipeline runs these
+            // one after another, this only guards against regressions. The interleaving below is what shows the
+            // difference between the update paths.
+            AtomicInteger sold = new AtomicInteger();
+            AtomicInteger varied = new AtomicInteger();
+            AtomicInteger refused = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+
+            for (int i = 0; i < 8; i++) {
+                Thread thread = new Thread(() -> {
+                    ParamForAddSale param1 = new ParamForAddSale();
+                    param1.setSessionId(sessionId);
+                    param1.setSku(sku);
+                    param1.setSoldQuantity(1);
+
+                    ParamForSetStock param2 = new ParamForSetStock();
+                    param2.setSessionId(sessionId);
+                    param2.setSku(sku);
+                    param2.setRemark("Contention");
+
+                    try {
+                        for (int j = 0; j < 40; j++) {
+                            if (j % 4 == 0) {
+                                param2.setQuantityVaried(j % 8 == 0 ? 1 : -3);
+                                ResultForSetStock result = repo.setStock(param2);
+
+                                if (result.getStatus() == ResultForSetStock.Status.SUCCESS) {
+                                    varied.addAndGet(param2.getQuantityVaried());
+                                } else if (result.getStatus() == ResultForSetStock.Status.INVALID_QUANTITY_VARIED) {
+                                    refused.incrementAndGet();
+                                }
+                            } else {
+                                ResultForAddSale result = repo.addSale(param1);
+
+                                if (result.getStatus() == ResultForAddSale.Status.SUCCESS) {
+                                    sold.incrementAndGet();
+                                } else if (result.getStatus() == ResultForAddSale.Status.INVALID_QUANTITY) {
+                                    refused.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                    }
+                });
+
+                threads.add(thread);
+                thread.start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            // The stock ran out at least once
+            shouldBeTrue(refused.get() > 0);
+
+            // No change was lost and none took the stock below zero
+            ParamForGetOneStock param3 = new ParamForGetOneStock();
+            param3.setSessionId(sessionId);
+            param3.setSku(sku);
+            int quantity = repo.getOneStock(param3).getStock().getQuantity();
+            shouldBeTrue(quantity >= 0);
+            shouldBeTrue(quantity == 50 + varied.get() - sold.get());
+
+            try (
+                    Connection connection = database.getReadConnection();
+                    PreparedStatement preparedStatement = connection.prepareStatement(
+                            "select " +
+                                    "(select sum(QuantityVaried) from StockTrx where SKU = ?), " +
+                                    "(select count(*) from Sales as A " +
+                                    "inner join StockTrx as T on T.StockTrxID = A.StockTrxID where T.SKU = ?)"
+                    )
+            ) {
+                preparedStatement.setString(1, sku);
+                preparedStatement.setString(2, sku);
+
+                try (ResultSet row = preparedStatement.executeQuery()) {
+                    row.next();
+                    shouldBeTrue(row.getInt(1) == quantity);
+                    shouldBeTrue(row.getInt(2) == sold.get());
+                }
+            }
+
+            // Two sales of the last unit, each reading the quantity before either writes, on the writer connection
+            try (Connection connection = database.getWriteConnection()) {
+                connection.setAutoCommit(false);
+
+                // The read-modify-write this replaced sells the unit twice, as the second write is computed from a
+                // read the first one made stale
+                setQuantity(connection, sku, 1);
+                int first = getQuantity(connection, sku);
+                int second = getQuantity(connection, sku);
+                shouldBeTrue(first >= 1 && second >= 1);
+                setQuantity(connection, sku, first - 1);
+                setQuantity(connection, sku, second - 1);
+                shouldBeTrue(getQuantity(connection, sku) == 0);
+
+                // The conditional update sells it once, whatever either sale read
+                setQuantity(connection, sku, 1);
+                shouldBeTrue(getQuantity(connection, sku) == 1 && getQuantity(connection, sku) == 1);
+                shouldBeTrue(Repo.changeQuantity(connection, sku, -1));
+                shouldBeTrue(!Repo.changeQuantity(connection, sku, -1));
+                shouldBeTrue(getQuantity(connection, sku) == 0);
+
+                // Nor does a change for a missing SKU claim to have happened
+                shouldBeTrue(!Repo.changeQuantity(connection, "missing", 1));
+
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    // A page is 20 rows, so 22 make two pages, and a row added between fetching them shows what offsets would do
+    void testGetManyUsersAfterId() {
+        System.out.print("Running testGetManyUsersAfterId... ");
+
+        try {
+            String sessionId = "0123456789abcdef";
+
+            ParamForAddUser param = new ParamForAddUser();
+            param.setSessionId(sessionId);
+            param.setLastName("Cursor");
+            param.setIdType("IC");
+            param.setRole("Sales Executive");
+            param.setPassword("cursor123");
+            param.setStatus("Active");
+
+            for (int i = 0; i < 22; i++) {
+                param.setFirstName("User" + i);
+                param.setEmail("cursor" + i + "@example.com");
+                param.setIdNumber("70000000" + i);
+                shouldBeTrue(repo.addUser(param).getStatus() == ResultForAddUser.Status.SUCCESS);
+            }
+
+            ParamForGetManyUsers param1 = new ParamForGetManyUsers();
+            param1.setSessionId(sessionId);
+            param1.setName("Cursor");
+
+            List<Integer> page1 = getUserIds(repo.getManyUsers(param1));
+            param1.setPage(2);
+            List<Integer> rest = getUserIds(repo.getManyUsers(param1));
+            param1.setPage(1);
+            shouldBeTrue(page1.size() == 20 && rest.size() == 2);
+
+            param.setFirstName("User22");
+            param.setEmail("cursor22@example.com");
+            param.setIdNumber("7000000022");
+            shouldBeTrue(repo.addUser(param).getStatus() == ResultForAddUser.Status.SUCCESS);
+
+            // The page after the last row seen picks up exactly where the first left off, the new row last
+            ListOptions options = new ListOptions();
+            options.setAfterId(page1.get(19));
+
+            ResultForGetManyUsers result = repo.getManyUsers(param1, options);
+            shouldBeTrue(result.getStatus() == ResultForGetManyUsers.Status.SUCCESS);
+
+            List<Integer> page2 = getUserIds(result);
+            shouldBeTrue(page2.size() == 3);
+            shouldBeTrue(page2.subList(0, 2).equals(rest));
+            shouldBeTrue(page2.get(2) > rest.get(1));
+
+            // And a cursor in the middle of a page seeks to there
+            List<Integer> expected = new ArrayList<>(page1.subList(5, 20));
+            expected.addAll(page2);
+
+            options.setAfterId(page1.get(4));
+            shouldBeTrue(getUserIds(repo.getManyUsers(param1, options)).equals(expected));
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testGetManyStockAfterSku() {
+        System.out.print("Running testGetManyStockAfterSku... ");
+
+        try {
+            String sessionId = "0123456789abcdef";
+
+            ParamForAddProduct param = new ParamForAddProduct();
+            param.setSessionId(sessionId);
+            param.setName("Cursor");
+            param.setCategory("Cursor");
+            param.setProductPrice(BigDecimal.valueOf(100, 2));
+            param.setStatus("Available");
+            int productId = repo.addProduct(param).getNewProductId();
+
+            ParamForAddStock param1 = new ParamForAddStock();
+            param1.setSessionId(sessionId);
+            param1.setProductId(productId);
+            param1.setQuantity(1);
+            param1.setExpiryDate(LocalDate.of(2099, 12, 31));
+
+            for (int i = 0; i < 22; i++) {
+                shouldBeTrue(repo.addStock(param1).getStatus() == ResultForAddStock.Status.SUCCESS);
+            }
+
+            ParamForGetManyStock param2 = new ParamForGetManyStock();
+            param2.setSessionId(sessionId);
+            param2.setProductId(productId);
+
+            List<String> page1 = getSkus(repo.getManyStock(param2));
+            shouldBeTrue(page1.size() == 20);
+
+            // SKUs are random, so new stock can sort anywhere, before the cursor as well as after it. With an offset,
+            // one before it would push a row already seen onto the next page.
+            List<String> added = new ArrayList<>();
+
+            for (int i = 0; i < 10; i++) {
+                added.add(repo.addStock(param1).getNewSku());
+            }
+
+            String cursor = page1.get(19);
+            ListOptions options = new ListOptions();
+            options.setAfterSku(cursor);
+
+            ResultForGetManyStock result = repo.getManyStock(param2, options);
+            shouldBeTrue(result.getStatus() == ResultForGetManyStock.Status.SUCCESS);
+
+            List<String> page2 = getSkus(result);
+            shouldBeTrue(page2.stream().noneMatch(page1::contains));
+
+            // Exactly the stock after the cursor, old and new, in order
+            List<String> all = new ArrayList<>(page1);
+            all.addAll(added);
+
+            param2.setPage(2);
+            all.addAll(getSkus(repo.getManyStock(param2)));
+            param2.setPage(3);
+            all.addAll(getSkus(repo.getManyStock(param2)));
+
+            List<String> expected = all.stream()
+                    .filter(sku -> sku.compareTo(cursor) > 0)
+                    .distinct()
+                    .sorted()
+                    .limit(20)
+                    .collect(Collectors.toList());
+            shouldBeTrue(page2.equals(expected));
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    void testGetManySalesAfterId() {
+        System.out.print("Running testGetManySalesAfterId... ");
+
+        try {
+            String sessionId = "0123456789abcdef";
+
+            ParamForAddStock param = new ParamForAddStock();
+            param.setSessionId(sessionId);
+            param.setProductId(6);
+            param.setQuantity(100);
+            param.setExpiryDate(LocalDate.of(2099, 12, 31));
+            String sku = repo.addStock(param).getNewSku();
+
+            ParamForAddSale param1 = new ParamForAddSale();
+            param1.setSessionId(sessionId);
+            param1.setSku(sku);
+            param1.setSoldQuantity(1);
+
+            for (int i = 0; i < 22; i++) {
+                shouldBeTrue(repo.addSale(param1).getStatus() == ResultForAddSale.Status.SUCCESS);
+            }
+
+            ParamForGetManySales param2 = new ParamForGetManySales();
+            param2.setSessionId(sessionId);
+            param2.setSku(sku);
+
+            // Newest first, so a sale made between the pages goes to the top of the first
+            List<Integer> page1 = getSaleIds(repo.getManySales(param2));
+            shouldBeTrue(page1.size() == 20);
+
+            shouldBeTrue(repo.addSale(param1).getStatus() == ResultForAddSale.Status.SUCCESS);
+
+            // Which pushes the last row of the first page onto the second by offset
+            param2.setPage(2);
+            List<Integer> offsetPage2 = getSaleIds(repo.getManySales(param2));
+            shouldBeTrue(offsetPage2.size() == 3);
+            shouldBeTrue(offsetPage2.get(0).equals(page1.get(19)));
+            param2.setPage(1);
+
+            // But not by cursor
+            ListOptions options = new ListOptions();
+            options.setAfterId(page1.get(19));
+
+            ResultForGetManySales result = repo.getManySales(param2, options);
+            shouldBeTrue(result.getStatus() == ResultForGetManySales.Status.SUCCESS);
+            shouldBeTrue(getSaleIds(result).equals(offsetPage2.subList(1, 3)));
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    private static List<Integer> getUserIds(ResultForGetManyUsers result) {
+        return result.getUsers().stream().map(User::getUserId).collect(Collectors.toList());
+    }
+
+    private static List<String> getSkus(ResultForGetManyStock result) {
+        return result.getStock().stream().map(Stock::getSku).collect(Collectors.toList());
+    }
+
+    private static List<Integer> getSaleIds(ResultForGetManySales result) {
+        return result.getSales().stream().map(Sale::getSaleId).collect(Collectors.toList());
+    }
+
+    void testMutationRollback(Database database) throws SQLException, IOException {
+        System.out.print("Running testMutationRollback... ");
+
+        try {
+            String sessionId = "0123456789abcdef";
+
+            ParamForAddStock param = new ParamForAddStock();
+            param.setSessionId(sessionId);
+            param.setProductId(6);
+            param.setQuantity(10);
+            param.setExpiryDate(LocalDate.of(2099, 12, 31));
+            String sku = repo.addStock(param).getNewSku();
+
+            byte[] picture = {13, 14, 15, 16};
+            String before = getWriteSnapshot(database, sku);
+            long sales = repo.getRowCounters().getSales();
+
+            // Triggers fail a statement halfway through each mutation, after earlier ones have written
+            setFailureTriggers(database, true);
+
+            try {
+                // After the StockTrx insert and the quantity update, in the write pipeline
+                ParamForAddSale param1 = new ParamForAddSale();
+                param1.setSessionId(sessionId);
+                param1.setSku(sku);
+                param1.setSoldQuantity(3);
+                shouldBeTrue(repo.addSale(param1).getStatus() == ResultForAddSale.Status.SERVER_ERROR);
+
+                // After the picture is acquired, in a transaction of its own
+                ParamForAddProduct param2 = new ParamForAddProduct();
+                param2.setSessionId(sessionId);
+                param2.setName("Rolled back");
+                param2.setCategory("Pictures");
+                param2.setProductPrice(BigDecimal.valueOf(100, 2));
+                param2.setProductPic(picture);
+                param2.setStatus("Available");
+                shouldBeTrue(repo.addProduct(param2).getStatus() == ResultForAddProduct.Status.SERVER_ERROR);
+            } finally {
+                setFailureTriggers(database, false);
+            }
+
+            shouldBeTrue(getWriteSnapshot(database, sku).equals(before));
+            shouldBeTrue(repo.getRowCounters().getSales() == sales);
+
+            // Only the picture's file is left, for collect to sweep
+            String hash = PictureHash.of(picture);
+            Path path = Path.of("test.db-images", hash.substring(0, 2), hash);
+            shouldBeTrue(Files.exists(path));
+            database.getImageStore().collect(database, 0);
+            shouldBeTrue(!Files.exists(path));
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    private static void setTouchFailureTrigger(Database database, boolean enabled) throws SQLException {
+        try (Connection connection = database.getWriteConnection()) {
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "drop trigger if exists FailSessions"
+            )) {
+                preparedStatement.executeUpdate();
+            }
+
+            if (enabled) {
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "create trigger FailSessions before update on Sessions " +
+                                "begin select raise(abort, 'Forced failure'); end"
+                )) {
+                    preparedStatement.executeUpdate();
+                }
+            }
+        }
+    }
+
+    private static void setFailureTriggers(Database database, boolean enabled) throws SQLException {
+        List<String> sqls = new ArrayList<>();
+
+        for (String table : List.of("Sales", "Products")) {
+            sqls.add("drop trigger if exists Fail" + table);
+
+            if (enabled) {
+                sqls.add("create trigger Fail" + table + " before insert on " + table + " " +
+                        "begin select raise(abort, 'Forced failure'); end");
+            }
+        }
+
+        try (Connection connection = database.getWriteConnection()) {
+            for (String sql : sqls) {
+                try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+                    preparedStatement.executeUpdate();
+                }
+            }
+        }
+    }
+
+    // Everything the failing mutations would have written to
+    private static String getWriteSnapshot(Database database, String sku) throws SQLException {
+        try (
+                Connection connection = database.getReadConnection();
+                PreparedStatement preparedStatement = connection.prepareStatement(
+                        "select " +
+                                "(select Quantity from Stock where SKU = ?), " +
+                                "(select count(*) from StockTrx), " +
+                                "(select count(*) from Sales), " +
+                                "(select total(SaleCount) from SalesByDayProduct), " +
+                                "(select count(*) from Products), " +
+                                "(select count(*) from Images)"
+                )
+        ) {
+            preparedStatement.setString(1, sku);
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                row.next();
+
+                StringBuilder snapshot = new StringBuilder();
+                for (int i = 1; i <= 6; i++) {
+                    snapshot.append(row.getString(i)).append(' ');
+                }
+
+                return snapshot.toString();
+            }
+        }
+    }
+
+    private static int getQuantity(Connection connection, String sku) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "select Quantity from Stock where SKU = ?"
+        )) {
+            preparedStatement.setString(1, sku);
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                row.next();
+                return row.getInt(1);
+            }
+        }
+    }
+
+    private static void setQuantity(Connection connection, String sku, int quantity) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "update Stock set Quantity = ? where SKU = ?"
+        )) {
+            preparedStatement.setInt(1, quantity);
+            preparedStatement.setString(2, sku);
+
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    void testGetSalesReport(Database database) throws SQLException {
+        System.out.print("Running testGetSalesReport... ");
+
+        try {
+            ParamForGetSalesReport param = new ParamForGetSalesReport();
+            param.setSessionId("0123456789abcdef");
+
+            ArrayList<ArrayList<SalesReportRow>> reports = new ArrayList<>();
+
+            for (ParamForGetSalesReport.GroupBy groupBy : ParamForGetSalesReport.GroupBy.values()) {
+                param.setGroupBy(groupBy);
+
+                ResultForGetSalesReport result = repo.getSalesReport(param);
+                shouldBeTrue(result.getStatus() == ResultForGetSalesReport.Status.SUCCESS);
+
+                // Every grouping adds up to the same sales
+                shouldBeTrue(result.getRows().stream().mapToInt(SalesReportRow::getSaleCount).sum()
+                        == repo.getRowCounters().getSales());
+
+                if (!reports.isEmpty()) {
+                    shouldBeTrue(sumRevenue(result.getRows()).compareTo(sumRevenue(reports.get(0))) == 0);
+                }
+
+                reports.add(result.getRows());
+            }
+
+            // What addSale and deleteSale maintained must match a rebuild from scratch
+            try (Connection connection = database.getWriteConnection()) {
+                SalesRollups.rebuild(connection);
+            }
+
+            for (ParamForGetSalesReport.GroupBy groupBy : ParamForGetSalesReport.GroupBy.values()) {
+                param.setGroupBy(groupBy);
+
+                ArrayList<SalesReportRow> expected = repo.getSalesReport(param).getRows();
+                ArrayList<SalesReportRow> actual = reports.get(groupBy.ordinal());
+                shouldBeTrue(expected.size() == actual.size());
+
+                for (int i = 0; i < expected.size(); i++) {
+                    shouldBeTrue(expected.get(i).getPeriod().isEqual(actual.get(i).getPeriod()));
+                    shouldBeTrue(expected.get(i).getKeyName().equals(actual.get(i).getKeyName()));
+                    shouldBeTrue(expected.get(i).getQuantity() == actual.get(i).getQuantity());
+                    shouldBeTrue(expected.get(i).getRevenue().compareTo(actual.get(i).getRevenue()) == 0);
+                    shouldBeTrue(expected.get(i).getSaleCount() == actual.get(i).getSaleCount());
+                }
+            }
+
+            // Moving a sold product to another category moves its totals with it
+            ParamForGetOneProduct param1 = new ParamForGetOneProduct();
+            param1.setSessionId("0123456789abcdef");
+            param1.setProductId(reports.get(0).get(0).getKeyId());
+
+            Product product = repo.getOneProduct(param1).getProduct();
+
+            ParamForSetProduct param2 = new ParamForSetProduct();
+            param2.setSessionId("0123456789abcdef");
+            param2.setProductId(product.getProductId());
+            param2.setName(product.getName());
+            param2.setCategory("Moved " + product.getCategory());
+            param2.setProductPrice(product.getProductPrice());
+            param2.setStatus(product.getStatus());
+            shouldBeTrue(repo.setProduct(param2).getStatus() == ResultForSetProduct.Status.SUCCESS);
+
+            param.setGroupBy(ParamForGetSalesReport.GroupBy.CATEGORY);
+            ArrayList<SalesReportRow> moved = repo.getSalesReport(param).getRows();
+            shouldBeTrue(moved.stream().anyMatch(x -> x.getKeyName().equals(param2.getCategory())));
+
+            try (Connection connection = database.getWriteConnection()) {
+                SalesRollups.rebuild(connection);
+            }
+
+            ArrayList<SalesReportRow> rebuilt = repo.getSalesReport(param).getRows();
+            shouldBeTrue(rebuilt.size() == moved.size());
+
+            for (int i = 0; i < rebuilt.size(); i++) {
+                shouldBeTrue(rebuilt.get(i).getKeyName().equals(moved.get(i).getKeyName()));
+                shouldBeTrue(rebuilt.get(i).getRevenue().compareTo(moved.get(i).getRevenue()) == 0);
+                shouldBeTrue(rebuilt.get(i).getSaleCount() == moved.get(i).getSaleCount());
+            }
+
+            param.setGroupBy(ParamForGetSalesReport.GroupBy.PRODUCT);
+            param.setFromDate(LocalDate.now().plusDays(1));
+
+            ResultForGetSalesReport result = repo.getSalesReport(param);
+            shouldBeTrue(result.getStatus() == ResultForGetSalesReport.Status.SUCCESS);
+            shouldBeTrue(result.getRows().isEmpty());
+
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Passed");
+    }
+
+    private static BigDecimal sumRevenue(ArrayList<SalesReportRow> rows) {
+        return rows.stream().map(SalesReportRow::getRevenue).reduce(BigDecimal.ZERO, BigDecimal::add);
+    }
 }
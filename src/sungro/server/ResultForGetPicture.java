@@ -0,0 +1,56 @@
+package sungro.server;
+
+import java.io.Serializable;
+
+// Server-side until sungro-api has a matching result class
+public class ResultForGetPicture implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private Status status = Status.SUCCESS;
+    private String hash = "";
+    private byte[] picture = new byte[0];
+    private String url = "";
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    // Empty when there is no picture
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public byte[] getPicture() {
+        return picture;
+    }
+
+    public void setPicture(byte[] picture) {
+        this.picture = picture;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    // A signed path on the image server, good for an hour or two. Empty when there is no picture or no image server.
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public enum Status {
+        INVALID_SESSION_ID,
+        PERMISSION_DENIED,
+        NOT_FOUND,
+        NOT_MODIFIED,
+        SERVER_ERROR,
+        SUCCESS
+    }
+}
@@ -0,0 +1,37 @@
+package sungro.server;
+
+import sungro.server.db.StatementStats;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+// Server-side until sungro-api has a matching result class
+public class ResultForGetQueryStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private Status status = Status.SUCCESS;
+    private ArrayList<StatementStats> statements = new ArrayList<>();
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public ArrayList<StatementStats> getStatements() {
+        return statements;
+    }
+
+    public void setStatements(ArrayList<StatementStats> statements) {
+        this.statements = statements;
+    }
+
+    public enum Status {
+        INVALID_SESSION_ID,
+        PERMISSION_DENIED,
+        SERVER_ERROR,
+        SUCCESS
+    }
+}
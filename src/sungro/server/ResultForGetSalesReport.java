@@ -0,0 +1,34 @@
+package sungro.server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+// Server-side until sungro-api has a matching result class
+public class ResultForGetSalesReport implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private Status status = Status.SUCCESS;
+    private ArrayList<SalesReportRow> rows = new ArrayList<>();
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public ArrayList<SalesReportRow> getRows() {
+        return rows;
+    }
+
+    public void setRows(ArrayList<SalesReportRow> rows) {
+        this.rows = rows;
+    }
+
+    public enum Status {
+        INVALID_SESSION_ID,
+        SERVER_ERROR,
+        SUCCESS
+    }
+}
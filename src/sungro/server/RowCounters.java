@@ -0,0 +1,116 @@
+package sungro.server;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Row totals for the list shapes clients ask for most: no filter, or a single equality filter on products, stock and
+// sales. They are seeded from the tables when the Repo starts and kept up to date by the Repo's own writes, so
+// getMany* can answer maxPage for those shapes without a count(*) scan.
+public class RowCounters {
+    private final AtomicInteger products = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicInteger> productsByCategory = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> productsByStatus = new ConcurrentHashMap<>();
+
+    private final AtomicInteger stock = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, AtomicInteger> stockByProductId = new ConcurrentHashMap<>();
+
+    private final AtomicInteger sales = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, AtomicInteger> salesByProductId = new ConcurrentHashMap<>();
+
+    public void load(Connection connection) throws SQLException {
+        products.set(0);
+        productsByCategory.clear();
+        productsByStatus.clear();
+        stock.set(0);
+        stockByProductId.clear();
+        sales.set(0);
+        salesByProductId.clear();
+
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet row = statement.executeQuery(
+                    "select Category, Status, count(*) from Products group by Category, Status"
+            )) {
+                while (row.next()) {
+                    addProducts(row.getString(1), row.getString(2), row.getInt(3));
+                }
+            }
+
+            try (ResultSet row = statement.executeQuery(
+                    "select ProductID, count(*) from Stock group by ProductID"
+            )) {
+                while (row.next()) {
+                    addStock(row.getInt(1), row.getInt(2));
+                }
+            }
+
+            try (ResultSet row = statement.executeQuery(
+                    "select O.ProductID, count(*) " +
+                            "from Sales as A " +
+                            "inner join StockTrx as T on T.StockTrxID = A.StockTrxID " +
+                            "inner join Stock as O on O.SKU = T.SKU " +
+                            "group by O.ProductID"
+            )) {
+                while (row.next()) {
+                    addSales(row.getInt(1), row.getInt(2));
+                }
+            }
+        }
+    }
+
+    public void addProducts(String category, String status, int delta) {
+        products.addAndGet(delta);
+        add(productsByCategory, category, delta);
+        add(productsByStatus, status, delta);
+    }
+
+    public void addStock(int productId, int delta) {
+        stock.addAndGet(delta);
+        add(stockByProductId, productId, delta);
+    }
+
+    public void addSales(int productId, int delta) {
+        sales.addAndGet(delta);
+        add(salesByProductId, productId, delta);
+    }
+
+    public int getProducts() {
+        return products.get();
+    }
+
+    public int getProductsInCategory(String category) {
+        return get(productsByCategory, category);
+    }
+
+    public int getProductsWithStatus(String status) {
+        return get(productsByStatus, status);
+    }
+
+    public int getStock() {
+        return stock.get();
+    }
+
+    public int getStockOfProduct(int productId) {
+        return get(stockByProductId, productId);
+    }
+
+    public int getSales() {
+        return sales.get();
+    }
+
+    public int getSalesOfProduct(int productId) {
+        return get(salesByProductId, productId);
+    }
+
+    private static <K> void add(ConcurrentHashMap<K, AtomicInteger> counters, K key, int delta) {
+        counters.computeIfAbsent(key, k -> new AtomicInteger()).addAndGet(delta);
+    }
+
+    private static <K> int get(ConcurrentHashMap<K, AtomicInteger> counters, K key) {
+        AtomicInteger counter = counters.get(key);
+        return counter == null ? 0 : counter.get();
+    }
+}
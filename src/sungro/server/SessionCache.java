@@ -0,0 +1,302 @@
+package sungro.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Session ID -> (UserID, Role), so the permission check at the top of every Repo method doesn't have to run the
+// Sessions/Users join. The map is split into stripes, each with an access-ordered LinkedHashMap of its share of the
+// entries, so lookups on different stripes don't contend and the least recently used entry of a full stripe is evicted.
+// Entries also expire after a fixed time, which bounds how stale they get if the database is changed from outside.
+public class SessionCache implements SessionCacheMXBean {
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+    private static final int STRIPES = 16;
+    private static final String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final int ID_LENGTH = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long ttlNanos;
+
+    // Bumped by every invalidation. A lookup that raced one doesn't put what it read, as it may predate the change.
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public SessionCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS);
+    }
+
+    public SessionCache(int maxSize, long ttlMillis) {
+        int stripeSize = Math.max(1, maxSize / STRIPES);
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(stripeSize);
+        }
+
+        this.ttlNanos = ttlMillis * 1_000_000;
+    }
+
+    // Null when the session isn't cached or its entry has expired
+    public Entry get(String sessionId) {
+        Key key = Key.of(sessionId);
+        if (key == null) {
+            misses.increment();
+            return null;
+        }
+
+        Stripe stripe = stripeOf(key);
+        Entry entry;
+
+        synchronized (stripe) {
+            entry = stripe.get(key);
+
+            if (entry != null && System.nanoTime() - entry.loadedAt > ttlNanos) {
+                stripe.remove(key);
+                expirations.increment();
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        return entry;
+    }
+
+    // Read before looking the session up in the database, and handed back to put
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    public void put(String sessionId, int userId, String role, long createdOn, long lastSeenOn, long generation) {
+        Key key = Key.of(sessionId);
+        if (key == null) {
+            return;
+        }
+
+        Stripe stripe = stripeOf(key);
+
+        synchronized (stripe) {
+            if (this.generation.get() == generation) {
+                stripe.put(key, new Entry(userId, role, createdOn, lastSeenOn, System.nanoTime()));
+            }
+        }
+    }
+
+    public void invalidate(String sessionId) {
+        generation.incrementAndGet();
+        invalidations.increment();
+
+        Key key = Key.of(sessionId);
+        if (key == null) {
+            return;
+        }
+
+        Stripe stripe = stripeOf(key);
+
+        synchronized (stripe) {
+            stripe.remove(key);
+        }
+    }
+
+    // For role changes and deleted users, whose sessions aren't known by ID
+    public void invalidateUser(int userId) {
+        generation.incrementAndGet();
+        invalidations.increment();
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.removeUser(userId);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        generation.incrementAndGet();
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    @Override
+    public int getSize() {
+        int result = 0;
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                result += stripe.size();
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    private Stripe stripeOf(Key key) {
+        // The top bits, as each stripe's own table indexes by the bottom ones
+        return stripes[key.hashCode() >>> 28];
+    }
+
+    public static class Entry {
+        private final int userId;
+        private final String role;
+        private final long createdOn;
+        private final long loadedAt;
+
+        // Moved forward by requests, and written back to Sessions by the SessionSweeper
+        private volatile long lastSeenOn;
+
+        Entry(int userId, String role, long createdOn, long lastSeenOn, long loadedAt) {
+            this.userId = userId;
+            this.role = role;
+            this.createdOn = createdOn;
+            this.lastSeenOn = lastSeenOn;
+            this.loadedAt = loadedAt;
+        }
+
+        public int getUserId() {
+            return userId;
+        }
+
+        public String getRole() {
+            return role;
+        }
+
+        public long getCreatedOn() {
+            return createdOn;
+        }
+
+        public long getLastSeenOn() {
+            return lastSeenOn;
+        }
+
+        void setLastSeenOn(long lastSeenOn) {
+            this.lastSeenOn = lastSeenOn;
+        }
+    }
+
+    // The 16 characters of a session ID at 6 bits each, 8 to a long, instead of a String and its char array
+    private static class Key {
+        private final long high;
+        private final long low;
+
+        private Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        // Null for anything that can't be a session ID, which then always goes to the database
+        static Key of(String sessionId) {
+            if (sessionId == null || sessionId.length() != ID_LENGTH) {
+                return null;
+            }
+
+            long[] halves = new long[2];
+
+            for (int i = 0; i < ID_LENGTH; i++) {
+                int digit = ALPHABET.indexOf(sessionId.charAt(i));
+                if (digit < 0) {
+                    return null;
+                }
+
+                halves[i / 8] = halves[i / 8] << 6 | digit;
+            }
+
+            return new Key(halves[0], halves[1]);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) o;
+            return high == key.high && low == key.low;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = high * 0x9E3779B97F4A7C15L ^ low;
+            return (int) (hash ^ hash >>> 32);
+        }
+    }
+
+    private class Stripe {
+        private final int maxSize;
+        private final LinkedHashMap<Key, SessionCache.Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        Stripe(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        SessionCache.Entry get(Key key) {
+            return entries.get(key);
+        }
+
+        void put(Key key, SessionCache.Entry entry) {
+            entries.put(key, entry);
+
+            if (entries.size() > maxSize) {
+                Iterator<Key> eldest = entries.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+
+        void remove(Key key) {
+            entries.remove(key);
+        }
+
+        void removeUser(int userId) {
+            entries.values().removeIf(entry -> entry.userId == userId);
+        }
+
+        void clear() {
+            entries.clear();
+        }
+
+        int size() {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package sungro.server;
+
+public interface SessionCacheMXBean {
+    int getSize();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getExpirations();
+
+    long getInvalidations();
+
+    void clear();
+}
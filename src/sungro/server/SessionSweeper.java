@@ -0,0 +1,263 @@
+package sungro.server;
+
+import sungro.server.db.Database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides when a session has expired, either idle for too long or simply too old, and deletes expired sessions from
+// a background thread. Each batch is its own short transaction on the write connection, so a large sweep interleaves
+// with the Repo's writes instead of holding them up.
+//
+// Requests don't write LastSeenOn themselves, which would turn every read into a write. They record it here at most
+// once per TOUCH_INTERVAL_SECONDS, and each sweep writes the recorded times back before looking for expired sessions.
+public class SessionSweeper implements SessionSweeperMXBean {
+    public static final long DEFAULT_IDLE_TTL_SECONDS = 8 * 60 * 60;
+    public static final long DEFAULT_ABSOLUTE_TTL_SECONDS = 7 * 24 * 60 * 60;
+    public static final long DEFAULT_INTERVAL_SECONDS = 60;
+
+    private static final long TOUCH_INTERVAL_SECONDS = 60;
+    private static final int BATCH_SIZE = 500;
+
+    private final Database database;
+    private final SessionCache sessionCache;
+    private final long idleTtlSeconds;
+    private final long absoluteTtlSeconds;
+
+    // Session ID -> LastSeenOn not yet written to Sessions
+    private final ConcurrentHashMap<String, Long> touches = new ConcurrentHashMap<>();
+
+    private final AtomicLong sweeps = new AtomicLong();
+    private final AtomicLong totalRemoved = new AtomicLong();
+    private volatile int lastRemoved;
+    private volatile long lastMillis;
+
+    private ScheduledExecutorService executor;
+
+    public SessionSweeper(Database database, SessionCache sessionCache) {
+        this(database, sessionCache, DEFAULT_IDLE_TTL_SECONDS, DEFAULT_ABSOLUTE_TTL_SECONDS);
+    }
+
+    public SessionSweeper(
+            Database database, SessionCache sessionCache, long idleTtlSeconds, long absoluteTtlSeconds
+    ) {
+        this.database = database;
+        this.sessionCache = sessionCache;
+        this.idleTtlSeconds = idleTtlSeconds;
+        this.absoluteTtlSeconds = absoluteTtlSeconds;
+    }
+
+    public static long now() {
+        return Instant.now().getEpochSecond();
+    }
+
+    public boolean isExpired(long createdOn, long lastSeenOn, long now) {
+        return lastSeenOn < now - idleTtlSeconds || createdOn < now - absoluteTtlSeconds;
+    }
+
+    // The later of the stored LastSeenOn and one still waiting to be written
+    public long getLastSeenOn(String sessionId, long storedLastSeenOn) {
+        Long touched = touches.get(sessionId);
+        return touched == null ? storedLastSeenOn : Math.max(touched, storedLastSeenOn);
+    }
+
+    // Returns whether the session was recorded as seen now, i.e. whether the caller's copy should move forward
+    public boolean touch(String sessionId, long lastSeenOn, long now) {
+        if (now - lastSeenOn < TOUCH_INTERVAL_SECONDS) {
+            return false;
+        }
+
+        touches.merge(sessionId, now, Math::max);
+        return true;
+    }
+
+    public synchronized void start(long intervalSeconds) {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                int removed = sweep();
+
+                if (removed > 0) {
+                    System.out.println("Swept " + removed + " expired sessions in " + lastMillis + " ms");
+                }
+            } catch (SQLException throwables) {
+                throwables.printStackTrace();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Waits for a running sweep, then writes back whatever was seen since
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        executor = null;
+
+        try {
+            flushTouches();
+        } catch (SQLException throwables) {
+            throwables.printStackTrace();
+        }
+    }
+
+    // Returns the number of sessions removed
+    public int sweep() throws SQLException {
+        long started = System.nanoTime();
+
+        flushTouches();
+
+        long now = now();
+        int removed = 0;
+
+        while (true) {
+            List<String> batch = new ArrayList<>();
+
+            try (Connection connection = database.getWriteConnection()) {
+                connection.setAutoCommit(false);
+
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "select SessionID from Sessions where LastSeenOn < ? or CreatedOn < ? limit ?"
+                )) {
+                    preparedStatement.setLong(1, now - idleTtlSeconds);
+                    preparedStatement.setLong(2, now - absoluteTtlSeconds);
+                    preparedStatement.setInt(3, BATCH_SIZE);
+
+                    try (ResultSet row = preparedStatement.executeQuery()) {
+                        while (row.next()) {
+                            batch.add(row.getString(1));
+                        }
+                    }
+                }
+
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "delete from Sessions where SessionID = ?"
+                )) {
+                    for (String sessionId : batch) {
+                        preparedStatement.setString(1, sessionId);
+                        preparedStatement.executeUpdate();
+                    }
+                }
+
+                connection.commit();
+            }
+
+            // A request may have seen the session between the flush above and the delete
+            for (String sessionId : batch) {
+                sessionCache.invalidate(sessionId);
+                touches.remove(sessionId);
+            }
+
+            removed += batch.size();
+
+            if (batch.size() < BATCH_SIZE) {
+                break;
+            }
+        }
+
+        lastRemoved = removed;
+        lastMillis = (System.nanoTime() - started) / 1_000_000;
+        sweeps.incrementAndGet();
+        totalRemoved.addAndGet(removed);
+
+        return removed;
+    }
+
+    private void flushTouches() throws SQLException {
+        List<Map.Entry<String, Long>> pending = new ArrayList<>();
+
+        for (Map.Entry<String, Long> touch : touches.entrySet()) {
+            pending.add(Map.entry(touch.getKey(), touch.getValue()));
+        }
+
+        for (int from = 0; from < pending.size(); from += BATCH_SIZE) {
+            List<Map.Entry<String, Long>> batch = pending.subList(from, Math.min(from + BATCH_SIZE, pending.size()));
+
+            try (Connection connection = database.getWriteConnection()) {
+                connection.setAutoCommit(false);
+
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "update Sessions set LastSeenOn = ? where SessionID = ? and LastSeenOn < ?"
+                )) {
+                    for (Map.Entry<String, Long> touch : batch) {
+                        preparedStatement.setLong(1, touch.getValue());
+                        preparedStatement.setString(2, touch.getKey());
+                        preparedStatement.setLong(3, touch.getValue());
+                        preparedStatement.executeUpdate();
+                    }
+                }
+
+                connection.commit();
+            }
+
+            // Only once committed, so a failed flush leaves them for the next. A touch that landed meanwhile is newer
+            // and stays too.
+            for (Map.Entry<String, Long> touch : batch) {
+                touches.remove(touch.getKey(), touch.getValue());
+            }
+        }
+    }
+
+    @Override
+    public long getIdleTtlSeconds() {
+        return idleTtlSeconds;
+    }
+
+    @Override
+    public long getAbsoluteTtlSeconds() {
+        return absoluteTtlSeconds;
+    }
+
+    @Override
+    public int getPendingTouches() {
+        return touches.size();
+    }
+
+    @Override
+    public long getSweeps() {
+        return sweeps.get();
+    }
+
+    @Override
+    public long getTotalRemoved() {
+        return totalRemoved.get();
+    }
+
+    @Override
+    public int getLastSweepRemoved() {
+        return lastRemoved;
+    }
+
+    @Override
+    public long getLastSweepMillis() {
+        return lastMillis;
+    }
+}
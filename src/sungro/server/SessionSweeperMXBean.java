@@ -0,0 +1,17 @@
+package sungro.server;
+
+public interface SessionSweeperMXBean {
+    long getIdleTtlSeconds();
+
+    long getAbsoluteTtlSeconds();
+
+    int getPendingTouches();
+
+    long getSweeps();
+
+    long getTotalRemoved();
+
+    int getLastSweepRemoved();
+
+    long getLastSweepMillis();
+}
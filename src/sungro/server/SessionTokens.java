@@ -0,0 +1,195 @@
+package sungro.server;
+
+import sungro.api.User;
+import sungro.server.db.Database;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Signed session tokens carrying UserID, Role, issue time and the user's revocation epoch, so a session can be checked
+// with an HMAC and no database access, and any number of servers sharing the key accept each other's tokens.
+//
+// A token can't be revoked on its own. Instead every user has an epoch in UserEpochs, and bumping it on logout, role or
+// status changes and deletion revokes all of that user's tokens. The epochs are held in memory and reloaded
+// periodically, which is how a revocation made by one server reaches the others.
+//
+// A token is "<payload>.<mac>", both base64url, so it can't be mistaken for a legacy session ID.
+public class SessionTokens {
+    public static final int KEY_LENGTH = 32;
+    public static final long DEFAULT_RELOAD_SECONDS = 10;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+    private final long maxAgeSeconds;
+
+    // UserID -> revocation epoch, absent meaning 0
+    private final ConcurrentHashMap<Integer, Integer> epochs = new ConcurrentHashMap<>();
+
+    // Mac instances aren't thread-safe, and creating one per request is the slow part of signing
+    private final ThreadLocal<Mac> macs;
+
+    private ScheduledExecutorService executor;
+
+    public SessionTokens(byte[] key, long maxAgeSeconds) {
+        if (key.length < KEY_LENGTH) {
+            throw new IllegalArgumentException("Session token key must be at least " + KEY_LENGTH + " bytes");
+        }
+
+        this.key = new SecretKeySpec(key, ALGORITHM);
+        this.maxAgeSeconds = maxAgeSeconds;
+
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(this.key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    public static byte[] generateKey() {
+        byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    public static boolean isToken(String sessionId) {
+        return sessionId != null && sessionId.indexOf('.') >= 0;
+    }
+
+    public void load(Connection connection) throws SQLException {
+        try (
+                Statement statement = connection.createStatement();
+                ResultSet row = statement.executeQuery("select UserID, Epoch from UserEpochs")
+        ) {
+            while (row.next()) {
+                // Epochs only move forward, so a reload racing a local revoke can't undo it
+                epochs.merge(row.getInt(1), row.getInt(2), Math::max);
+            }
+        }
+    }
+
+    // The epoch is read from UserEpochs rather than memory, as another server may have revoked since the last reload
+    public String issue(Connection connection, int userId, String role, long issuedOn) throws SQLException {
+        byte[] roleBytes = role.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer payload = ByteBuffer.allocate(4 + 8 + 4 + roleBytes.length);
+        payload.putInt(userId);
+        payload.putLong(issuedOn);
+        payload.putInt(loadEpoch(connection, userId));
+        payload.put(roleBytes);
+
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payload.array()) + "." + encoder.encodeToString(sign(payload.array()));
+    }
+
+    // Null unless the token is well-formed, correctly signed, not too old and issued in the user's current epoch
+    public User verify(String token, long now) {
+        int dot = token.indexOf('.');
+
+        byte[] payload;
+        byte[] mac;
+
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            payload = decoder.decode(token.substring(0, dot));
+            mac = decoder.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        if (payload.length < 4 + 8 + 4 || !MessageDigest.isEqual(mac, sign(payload))) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int userId = buffer.getInt();
+        long issuedOn = buffer.getLong();
+        int epoch = buffer.getInt();
+
+        if (now - issuedOn > maxAgeSeconds || epoch != epochs.getOrDefault(userId, 0)) {
+            return null;
+        }
+
+        User user = new User();
+        user.setUserId(userId);
+        user.setRole(new String(payload, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8));
+        return user;
+    }
+
+    // Revokes every token issued to the user so far
+    public void revoke(Connection connection, int userId) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "insert into UserEpochs (UserID, Epoch) values (?, 1) " +
+                        "on conflict (UserID) do update set Epoch = Epoch + 1"
+        )) {
+            preparedStatement.setInt(1, userId);
+
+            preparedStatement.executeUpdate();
+        }
+
+        loadEpoch(connection, userId);
+    }
+
+    public synchronized void start(Database database, long intervalSeconds) {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-epochs");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleWithFixedDelay(() -> {
+            try (Connection connection = database.getReadConnection()) {
+                load(connection);
+            } catch (SQLException throwables) {
+                throwables.printStackTrace();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private int loadEpoch(Connection connection, int userId) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "select Epoch from UserEpochs where UserID = ?"
+        )) {
+            preparedStatement.setInt(1, userId);
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                int epoch = row.next() ? row.getInt(1) : 0;
+                return epochs.merge(userId, epoch, Math::max);
+            }
+        }
+    }
+
+    private byte[] sign(byte[] payload) {
+        return macs.get().doFinal(payload);
+    }
+}
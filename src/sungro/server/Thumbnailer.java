@@ -0,0 +1,467 @@
+package sungro.server;
+
+import sungro.server.db.Database;
+import sungro.server.db.ImageStore;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Scales uploaded pictures down to thumbnails on a few background threads, so an upload returns as soon as the original
+// is stored and grids can show small pictures instead of full-size ones. Thumbnails go into the image store like any
+// other picture, with a row in Thumbnails per original and size. Until they are ready, resolve answers the original.
+//
+// The queue is bounded and an upload never waits for it. A picture turned away when it is full is kept for the next
+// retry, which runs every minute on a thread of its own. Should too many pile up, or the server restart, backfill
+// finds them instead.
+public class Thumbnailer implements ThumbnailerMXBean {
+    public static final int[] SIZES = {64, 256};
+    public static final int DEFAULT_QUEUE_LIMIT = 256;
+    public static final long DEFAULT_RETRY_INTERVAL_SECONDS = 60;
+
+    // Refused before decoding, as a few kilobytes of upload can decode to gigabytes of pixels
+    private static final long MAX_PIXELS = 40_000_000;
+    private static final int BACKFILL_BATCH_SIZE = 100;
+    private static final int MAX_RETRYING = 10_000;
+
+    private final Database database;
+    private final ImageStore imageStore;
+    private final ThreadPoolExecutor executor;
+
+    // Queued or running, so a picture uploaded twice in a row is only scaled once
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    // Turned away by a full queue. Past MAX_RETRYING, the next retry is a whole backfill instead.
+    private final Set<String> retrying = ConcurrentHashMap.newKeySet();
+    private volatile boolean overflowed;
+
+    private ScheduledExecutorService retryExecutor;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalMillis = new LongAdder();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    public Thumbnailer(Database database) {
+        this(database, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), DEFAULT_QUEUE_LIMIT);
+    }
+
+    public Thumbnailer(Database database, int threads, int queueLimit) {
+        this.database = database;
+        this.imageStore = database.getImageStore();
+
+        AtomicInteger count = new AtomicInteger();
+
+        executor = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueLimit),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "thumbnailer-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+
+    // Call after the transaction storing the picture has committed, so the worker can find it
+    public void submit(String hash) {
+        if (hash.isEmpty() || !pending.add(hash)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    generate(hash);
+                } finally {
+                    pending.remove(hash);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(hash);
+            rejected.increment();
+
+            if (retrying.size() < MAX_RETRYING) {
+                retrying.add(hash);
+            } else {
+                overflowed = true;
+            }
+        }
+    }
+
+    // The hash of the thumbnail of that size, or of the original while there is none. Size 0 is the original.
+    public String resolve(Connection connection, String hash, int size) throws SQLException {
+        if (size == 0 || hash.isEmpty()) {
+            return hash;
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "select ThumbnailHash from Thumbnails where Hash = ? and Size = ?"
+        )) {
+            preparedStatement.setString(1, hash);
+            preparedStatement.setInt(2, size);
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                return row.next() ? row.getString(1) : hash;
+            }
+        }
+    }
+
+    // Makes the thumbnails missing for stored pictures, one at a time on the calling thread, and returns how many
+    // pictures it went through. Pictures that can't be decoded have no thumbnails and are tried again every time.
+    public int backfill() throws SQLException {
+        int count = 0;
+        String after = "";
+
+        while (true) {
+            List<String> hashes = new ArrayList<>();
+
+            try (
+                    Connection connection = database.getReadConnection();
+                    PreparedStatement preparedStatement = connection.prepareStatement(
+                            "select I.Hash from Images as I " +
+                                    "where I.Hash > ? " +
+                                    "and not exists (select 1 from Thumbnails as T where T.Hash = I.Hash) " +
+                                    "and not exists (select 1 from Thumbnails as T where T.ThumbnailHash = I.Hash) " +
+                                    "order by I.Hash " +
+                                    "limit ?"
+                    )
+            ) {
+                preparedStatement.setString(1, after);
+                preparedStatement.setInt(2, BACKFILL_BATCH_SIZE);
+
+                try (ResultSet row = preparedStatement.executeQuery()) {
+                    while (row.next()) {
+                        hashes.add(row.getString(1));
+                    }
+                }
+            }
+
+            if (hashes.isEmpty()) {
+                return count;
+            }
+
+            for (String hash : hashes) {
+                if (pending.add(hash)) {
+                    try {
+                        generate(hash);
+                    } finally {
+                        pending.remove(hash);
+                    }
+                }
+
+                count++;
+            }
+
+            after = hashes.get(hashes.size() - 1);
+        }
+    }
+
+    // Makes the thumbnails of the pictures the queue turned away, one at a time on the calling thread, and returns how
+    // many it went through
+    public int retry() throws SQLException {
+        if (overflowed) {
+            overflowed = false;
+            retrying.clear();
+            return backfill();
+        }
+
+        int count = 0;
+
+        for (String hash : retrying) {
+            retrying.remove(hash);
+
+            if (pending.add(hash)) {
+                try {
+                    generate(hash);
+                } finally {
+                    pending.remove(hash);
+                }
+            }
+
+            count++;
+        }
+
+        return count;
+    }
+
+    // Backfills once, for pictures stored before thumbnails existed or turned away before the last restart, then
+    // retries periodically
+    public synchronized void start(long intervalSeconds) {
+        if (retryExecutor != null) {
+            return;
+        }
+
+        retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "thumbnail-backfill");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        retryExecutor.execute(() -> {
+            try {
+                backfill();
+            } catch (SQLException throwables) {
+                throwables.printStackTrace();
+            }
+        });
+
+        retryExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                retry();
+            } catch (SQLException throwables) {
+                throwables.printStackTrace();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (retryExecutor != null) {
+            retryExecutor.shutdownNow();
+            retryExecutor = null;
+        }
+    }
+
+    // Whether everything submitted so far was done within the timeout
+    public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (!pending.isEmpty()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+
+            Thread.sleep(10);
+        }
+
+        return true;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    @Override
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public int getQueueLimit() {
+        return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+    }
+
+    @Override
+    public int getRetrying() {
+        return retrying.size();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public double getAverageMillis() {
+        long count = completed.sum();
+        return count == 0 ? 0 : (double) totalMillis.sum() / count;
+    }
+
+    @Override
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    private void generate(String hash) {
+        long started = System.nanoTime();
+
+        try {
+            BufferedImage image = decode(imageStore.read(hash));
+
+            if (image == null) {
+                failed.increment();
+                return;
+            }
+
+            // Null for a size the original already fits in, which is then its own thumbnail
+            Map<Integer, byte[]> thumbnails = new LinkedHashMap<>();
+
+            for (int size : SIZES) {
+                if (Math.max(image.getWidth(), image.getHeight()) <= size) {
+                    thumbnails.put(size, null);
+                } else {
+                    thumbnails.put(size, encode(scale(image, size)));
+                }
+            }
+
+            store(hash, thumbnails);
+        } catch (IOException | SQLException | RuntimeException e) {
+            e.printStackTrace();
+            failed.increment();
+            return;
+        }
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        completed.increment();
+        totalMillis.add(millis);
+        maxMillis.accumulateAndGet(millis, Math::max);
+    }
+
+    private void store(String hash, Map<Integer, byte[]> thumbnails) throws SQLException, IOException {
+        try (Connection connection = database.getWriteConnection()) {
+            connection.setAutoCommit(false);
+
+            // The original may have been released and collected while it was being scaled
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "select 1 from Images where Hash = ?"
+            )) {
+                preparedStatement.setString(1, hash);
+
+                try (ResultSet row = preparedStatement.executeQuery()) {
+                    if (!row.next()) {
+                        return;
+                    }
+                }
+            }
+
+            for (Map.Entry<Integer, byte[]> thumbnail : thumbnails.entrySet()) {
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "select 1 from Thumbnails where Hash = ? and Size = ?"
+                )) {
+                    preparedStatement.setString(1, hash);
+                    preparedStatement.setInt(2, thumbnail.getKey());
+
+                    try (ResultSet row = preparedStatement.executeQuery()) {
+                        if (row.next()) {
+                            continue;
+                        }
+                    }
+                }
+
+                // An original standing in for its own thumbnail isn't counted, or it could never be collected
+                String thumbnailHash = thumbnail.getValue() == null
+                        ? hash
+                        : imageStore.acquire(connection, thumbnail.getValue());
+
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "insert into Thumbnails (Hash, Size, ThumbnailHash) values (?, ?, ?)"
+                )) {
+                    preparedStatement.setString(1, hash);
+                    preparedStatement.setInt(2, thumbnail.getKey());
+                    preparedStatement.setString(3, thumbnailHash);
+
+                    preparedStatement.executeUpdate();
+                }
+            }
+
+            connection.commit();
+        }
+    }
+
+    private static BufferedImage decode(byte[] picture) throws IOException {
+        // A memory cache, where ImageIO.read would spill the stream to a temporary file
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(picture))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+
+            try {
+                reader.setInput(input, true, true);
+
+                if ((long) reader.getWidth(0) * reader.getHeight(0) > MAX_PIXELS) {
+                    return null;
+                }
+
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Halves the picture until it is within twice the size, then scales the rest of the way. One bilinear step from
+    // far above the size would skip most of the pixels and alias.
+    private static BufferedImage scale(BufferedImage image, int size) {
+        double ratio = (double) size / Math.max(image.getWidth(), image.getHeight());
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        BufferedImage current = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+
+            BufferedImage next = new BufferedImage(width, height, type);
+            Graphics2D graphics = next.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(current, 0, 0, width, height, null);
+            graphics.dispose();
+
+            current = next;
+        } while (width != targetWidth || height != targetHeight);
+
+        return current;
+    }
+
+    // PNG keeps transparency. Anything opaque is a JPEG, a fraction of the size for photos.
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        if (!ImageIO.write(image, image.getColorModel().hasAlpha() ? "png" : "jpg", output)) {
+            throw new IOException("No image writer for thumbnail");
+        }
+
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,21 @@
+package sungro.server;
+
+public interface ThumbnailerMXBean {
+    int getThreads();
+
+    int getQueued();
+
+    int getQueueLimit();
+
+    int getRetrying();
+
+    long getCompleted();
+
+    long getFailed();
+
+    long getRejected();
+
+    double getAverageMillis();
+
+    long getMaxMillis();
+}
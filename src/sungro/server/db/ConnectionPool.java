@@ -0,0 +1,390 @@
+package sungro.server.db;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ConnectionPool {
+    // Distinct SQL texts recorded at most, so a client building statements on the fly can't grow the set without end
+    public static final int MAX_PREPARED_SQL = 10_000;
+
+    private final String url;
+    private final Properties properties;
+    private final InitProfile profile;
+    private final int minIdle;
+    private final int maxSize;
+    private final long maxWaitMillis;
+    private final long leakThresholdMillis;
+    private final int statementCacheSize;
+    private final QueryStats queryStats;
+
+    private final ReentrantLock lock;
+    private final Condition available;
+    private final ArrayDeque<Connection> idle;
+    private final Set<PooledConnection> active;
+    private final Map<Connection, StatementCache> statementCaches;
+    private final Set<String> preparedSql;
+    private volatile boolean recordPreparedSql;
+    private int size;
+    private int waiting;
+    private boolean closed;
+
+    private final AtomicLong checkoutCount;
+    private final AtomicLong checkoutNanos;
+    private final AtomicLong maxCheckoutNanos;
+    private final AtomicLong timeoutCount;
+    private final AtomicLong leakCount;
+    private final AtomicLong statementCacheHits;
+    private final AtomicLong statementCacheMisses;
+
+    private final ScheduledExecutorService leakDetector;
+
+    public ConnectionPool(
+            String url, InitProfile profile, int minIdle, int maxSize, long maxWaitMillis, long leakThresholdMillis,
+            int statementCacheSize, QueryStats queryStats
+    ) {
+        this(url, new Properties(), profile, minIdle, maxSize, maxWaitMillis, leakThresholdMillis, statementCacheSize,
+                queryStats);
+    }
+
+    // The properties go to the driver with every physical connection, for settings that aren't pragmas
+    public ConnectionPool(
+            String url, Properties properties, InitProfile profile, int minIdle, int maxSize, long maxWaitMillis,
+            long leakThresholdMillis, int statementCacheSize, QueryStats queryStats
+    ) {
+        this.url = url;
+        this.properties = properties;
+        this.profile = profile;
+        this.minIdle = minIdle;
+        this.maxSize = maxSize;
+        this.maxWaitMillis = maxWaitMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.queryStats = queryStats;
+
+        lock = new ReentrantLock(true);
+        available = lock.newCondition();
+        idle = new ArrayDeque<>();
+        active = ConcurrentHashMap.newKeySet();
+        statementCaches = new ConcurrentHashMap<>();
+        preparedSql = ConcurrentHashMap.newKeySet();
+
+        checkoutCount = new AtomicLong();
+        checkoutNanos = new AtomicLong();
+        maxCheckoutNanos = new AtomicLong();
+        timeoutCount = new AtomicLong();
+        leakCount = new AtomicLong();
+        statementCacheHits = new AtomicLong();
+        statementCacheMisses = new AtomicLong();
+
+        leakDetector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ConnectionPool-leak-detector");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // A threshold of 0 disables leak detection, which also skips capturing checkout stack traces
+        if (leakThresholdMillis > 0) {
+            long period = Math.max(leakThresholdMillis / 2, 1);
+            leakDetector.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void warmUp() throws SQLException {
+        lock.lock();
+        try {
+            while (size < minIdle) {
+                idle.push(openPhysical());
+                size++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        Connection physical = null;
+        boolean mustOpen = false;
+
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+
+                if (!idle.isEmpty()) {
+                    physical = idle.pop();
+                    break;
+                }
+
+                if (size < maxSize) {
+                    size++;
+                    mustOpen = true;
+                    break;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timeoutCount.incrementAndGet();
+                    throw new SQLException("Timed out after " + maxWaitMillis + " ms waiting for a connection");
+                }
+
+                waiting++;
+                try {
+                    available.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a connection", e);
+                } finally {
+                    waiting--;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (mustOpen) {
+            try {
+                physical = openPhysical();
+            } catch (SQLException e) {
+                discard();
+                throw e;
+            }
+        }
+
+        PooledConnection pooled = new PooledConnection(
+                this, physical, statementCaches.get(physical), leakThresholdMillis > 0
+        );
+        active.add(pooled);
+
+        long elapsed = System.nanoTime() - start;
+        checkoutCount.incrementAndGet();
+        checkoutNanos.addAndGet(elapsed);
+        maxCheckoutNanos.accumulateAndGet(elapsed, Math::max);
+
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                pooled
+        );
+    }
+
+    void release(PooledConnection pooled) {
+        active.remove(pooled);
+        Connection physical = pooled.getPhysical();
+
+        try {
+            if (physical.isClosed()) {
+                closeQuietly(physical);
+                discard();
+                return;
+            }
+
+            if (!physical.getAutoCommit()) {
+                physical.rollback();
+                physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            closeQuietly(physical);
+            discard();
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (closed) {
+                closeQuietly(physical);
+                size--;
+                return;
+            }
+
+            idle.push(physical);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        leakDetector.shutdownNow();
+
+        lock.lock();
+        try {
+            closed = true;
+
+            while (!idle.isEmpty()) {
+                closeQuietly(idle.pop());
+                size--;
+            }
+
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaitingCount() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCheckoutCount() {
+        return checkoutCount.get();
+    }
+
+    public long getAverageCheckoutMicros() {
+        long count = checkoutCount.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(checkoutNanos.get() / count);
+    }
+
+    public long getMaxCheckoutMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxCheckoutNanos.get());
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "active=%d idle=%d waiting=%d checkouts=%d avgCheckout=%dus maxCheckout=%dus timeouts=%d leaks=%d " +
+                        "statementCacheHits=%d statementCacheMisses=%d",
+                getActiveCount(), getIdleCount(), getWaitingCount(), getCheckoutCount(),
+                getAverageCheckoutMicros(), getMaxCheckoutMicros(), getTimeoutCount(), getLeakCount(),
+                getStatementCacheHits(), getStatementCacheMisses()
+        );
+    }
+
+    // Every distinct SQL text prepared through this pool while recording, for tools that inspect the workload
+    public Set<String> getPreparedSql() {
+        return Collections.unmodifiableSet(preparedSql);
+    }
+
+    public boolean isRecordPreparedSql() {
+        return recordPreparedSql;
+    }
+
+    // Off by default, as only the index advisor reads the set
+    public void setRecordPreparedSql(boolean recordPreparedSql) {
+        this.recordPreparedSql = recordPreparedSql;
+    }
+
+    public InitProfile getProfile() {
+        return profile;
+    }
+
+    // Only on a statement cache miss, so the common path pays for neither the check nor the set
+    private void recordPreparedSql(String sql) {
+        if (recordPreparedSql && preparedSql.size() < MAX_PREPARED_SQL) {
+            preparedSql.add(sql);
+        }
+    }
+
+    private Connection openPhysical() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, properties);
+
+        try {
+            profile.apply(connection);
+        } catch (SQLException e) {
+            try {
+                connection.close();
+            } catch (SQLException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+
+        statementCaches.put(
+                connection,
+                new StatementCache(
+                        connection, statementCacheSize, statementCacheHits, statementCacheMisses, this::recordPreparedSql,
+                        queryStats
+                )
+        );
+
+        return connection;
+    }
+
+    private void discard() {
+        lock.lock();
+        try {
+            size--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void detectLeaks() {
+        long now = System.currentTimeMillis();
+
+        for (PooledConnection pooled : active) {
+            if (!pooled.isLeakReported() && now - pooled.getCheckedOutAt() > leakThresholdMillis) {
+                pooled.setLeakReported();
+                leakCount.incrementAndGet();
+                System.out.println("Connection held for more than " + leakThresholdMillis + " ms, possible leak:");
+                pooled.getCheckoutTrace().printStackTrace(System.out);
+            }
+        }
+    }
+
+    private void closeQuietly(Connection connection) {
+        StatementCache statementCache = statementCaches.remove(connection);
+        if (statementCache != null) {
+            statementCache.close();
+        }
+
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,17 +1,120 @@
 package sungro.server.db;
 
+import java.nio.file.Path;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class Database {
-    private final String url;
+    private static final int MIN_IDLE = 4;
+    private static final int MAX_SIZE = 16;
+    private static final long MAX_WAIT_MILLIS = 5000;
+    private static final long LEAK_THRESHOLD_MILLIS = 30000;
+    private static final int STATEMENT_CACHE_SIZE = 64;
+    private static final long SLOW_THRESHOLD_MILLIS = 200;
 
-    public Database(String url) {
-        this.url = url;
+    // SQLite allows only one writer at a time, so writes queue up on a single connection instead of
+    // fighting over the database lock and getting SQLITE_BUSY
+    private static final long WRITER_MAX_WAIT_MILLIS = 10000;
+
+    // setAutoCommit(false) on the writer sends BEGIN IMMEDIATE, which takes the write lock up front. A deferred
+    // transaction that reads first and writes later can fail with SQLITE_BUSY at the first write, after its reads.
+    // Anything not committed is rolled back when the connection goes back to the pool.
+    private static final String WRITER_TRANSACTION_MODE = "IMMEDIATE";
+
+    private final ConnectionPool writePool;
+    private final ConnectionPool readPool;
+    private final QueryStats queryStats;
+    private final ImageStore imageStore;
+    private final WritePipeline writePipeline;
+
+    public Database(String url) throws SQLException {
+        this(url, InitProfile.SAFE);
+    }
+
+    public Database(String url, InitProfile profile) throws SQLException {
+        this(url, profile, MIN_IDLE, MAX_SIZE, MAX_WAIT_MILLIS, LEAK_THRESHOLD_MILLIS);
+    }
+
+    public Database(
+            String url, InitProfile profile, int minIdle, int maxSize, long maxWaitMillis, long leakThresholdMillis
+    ) throws SQLException {
+        queryStats = new QueryStats(SLOW_THRESHOLD_MILLIS);
+        imageStore = new ImageStore(getImageRoot(url));
+        Properties writerProperties = new Properties();
+        writerProperties.setProperty("transaction_mode", WRITER_TRANSACTION_MODE);
+
+        writePool = new ConnectionPool(
+                url, writerProperties, profile, 1, 1, WRITER_MAX_WAIT_MILLIS, leakThresholdMillis,
+                STATEMENT_CACHE_SIZE, queryStats
+        );
+        readPool = new ConnectionPool(
+                url, profile.readOnly(), minIdle, maxSize, maxWaitMillis, leakThresholdMillis, STATEMENT_CACHE_SIZE,
+                queryStats
+        );
+
+        // The writer goes first so that it is the one switching the journal mode
+        writePool.warmUp();
+        readPool.warmUp();
+
+        writePipeline = new WritePipeline(writePool);
     }
 
     public Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(url);
+        return getWriteConnection();
+    }
+
+    public Connection getWriteConnection() throws SQLException {
+        return writePool.getConnection();
+    }
+
+    public Connection getReadConnection() throws SQLException {
+        return readPool.getConnection();
+    }
+
+    public ConnectionPool getWritePool() {
+        return writePool;
+    }
+
+    public ConnectionPool getReadPool() {
+        return readPool;
+    }
+
+    public QueryStats getQueryStats() {
+        return queryStats;
+    }
+
+    public ImageStore getImageStore() {
+        return imageStore;
+    }
+
+    public WritePipeline getWritePipeline() {
+        return writePipeline;
+    }
+
+    // For the index advisor, which is the only reader of getPreparedSql
+    public void setRecordPreparedSql(boolean recordPreparedSql) {
+        writePool.setRecordPreparedSql(recordPreparedSql);
+        readPool.setRecordPreparedSql(recordPreparedSql);
+    }
+
+    public Set<String> getPreparedSql() {
+        Set<String> result = new TreeSet<>(writePool.getPreparedSql());
+        result.addAll(readPool.getPreparedSql());
+        return result;
+    }
+
+    public void close() {
+        writePipeline.stop();
+        readPool.close();
+        writePool.close();
+    }
+
+    // Next to the database file, like its -wal and -shm files, e.g. sample.db-images
+    private static Path getImageRoot(String url) {
+        String file = url.substring(url.indexOf(':', "jdbc:".length()) + 1);
+        return Path.of(file + "-images");
     }
 }
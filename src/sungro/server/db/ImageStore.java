@@ -0,0 +1,370 @@
+package sungro.server.db;
+
+import sungro.server.PictureHash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Pictures as files named by their SHA-256, so Users and Products only hold a hash and identical pictures are stored
+// once. Images counts the rows referring to each file. Counts only change in the caller's write transaction, so they
+// are as atomic as the row they belong to.
+//
+// A count that drops to 0 leaves the file in place until collect, which deletes it under the write lock. acquire checks
+// for the file after taking that lock, so it either sees the file or writes it again, and never refers to a file
+// collect is about to delete. A reader that got a hash just before it was released may still find the file gone, which
+// is why collect only runs every few minutes.
+//
+// acquire writes the file before the caller commits, so a rolled back transaction leaves a file with no row. collect
+// sweeps those up too, once they are older than a grace period far beyond any transaction.
+public class ImageStore {
+    public static final long DEFAULT_COLLECT_INTERVAL_SECONDS = 600;
+    public static final long DEFAULT_SWEEP_GRACE_MILLIS = 60 * 60 * 1000;
+
+    // Below this a plain read is cheaper than setting up a mapping
+    private static final int MAP_THRESHOLD = 64 * 1024;
+    private static final int COLLECT_BATCH_SIZE = 100;
+
+    private final Path root;
+
+    // Replaced rather than resized, as the capacity is fixed when it is made
+    private volatile PictureCache pictureCache = new PictureCache();
+
+    private ScheduledExecutorService executor;
+
+    public ImageStore(Path root) {
+        this.root = root;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public PictureCache getPictureCache() {
+        return pictureCache;
+    }
+
+    public void setPictureCache(PictureCache pictureCache) {
+        this.pictureCache = pictureCache;
+    }
+
+    // Adds a reference to the picture, storing it first if it is new, and returns its hash. The caller must have
+    // autocommit off and commit along with the row that holds the hash. No picture is an empty hash with no count.
+    public String acquire(Connection connection, byte[] picture) throws SQLException, IOException {
+        String hash = PictureHash.of(picture);
+
+        if (hash.isEmpty()) {
+            return hash;
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "insert into Images (Hash, Size, RefCount) values (?, ?, 1) " +
+                        "on conflict (Hash) do update set RefCount = RefCount + 1"
+        )) {
+            preparedStatement.setString(1, hash);
+            preparedStatement.setInt(2, picture.length);
+
+            preparedStatement.executeUpdate();
+        }
+
+        if (!Files.exists(path(hash))) {
+            write(hash, picture);
+        }
+
+        return hash;
+    }
+
+    // Drops a reference. The file stays until collect.
+    public void release(Connection connection, String hash) throws SQLException {
+        if (hash.isEmpty()) {
+            return;
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "update Images set RefCount = RefCount - 1 where Hash = ?"
+        )) {
+            preparedStatement.setString(1, hash);
+
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    // Whether any row still refers to the picture. A released one is only waiting for collect.
+    public boolean isReferenced(Connection connection, String hash) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "select 1 from Images where Hash = ? and RefCount > 0"
+        )) {
+            preparedStatement.setString(1, hash);
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                return row.next();
+            }
+        }
+    }
+
+    public byte[] read(String hash) throws IOException {
+        if (hash.isEmpty()) {
+            return new byte[0];
+        }
+
+        PictureCache pictureCache = this.pictureCache;
+        byte[] picture = pictureCache.get(hash);
+
+        if (picture != null) {
+            return picture;
+        }
+
+        try (FileChannel channel = FileChannel.open(path(hash), StandardOpenOption.READ)) {
+            picture = new byte[(int) channel.size()];
+
+            if (picture.length >= MAP_THRESHOLD) {
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, picture.length).get(picture);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(picture);
+
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // Files are never changed in place, so this only loops on short reads
+                }
+            }
+        }
+
+        pictureCache.put(hash, picture);
+        return picture;
+    }
+
+    // For callers that send the file on without reading it into the heap. Throws NoSuchFileException for a hash that
+    // isn't stored and IllegalArgumentException for one that isn't a hash at all.
+    public FileChannel open(String hash) throws IOException {
+        return FileChannel.open(path(hash), StandardOpenOption.READ);
+    }
+
+    // Deletes the files no row refers to any more, in short write transactions, and returns how many were deleted
+    public int collect(Database database) throws SQLException, IOException {
+        return collect(database, DEFAULT_SWEEP_GRACE_MILLIS);
+    }
+
+    // The same, sweeping files with no row at all once they are older than the grace period
+    public int collect(Database database, long sweepGraceMillis) throws SQLException, IOException {
+        int collected = 0;
+
+        try (Connection connection = database.getWriteConnection()) {
+            while (true) {
+                List<String> hashes = new ArrayList<>();
+
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "select Hash from Images where RefCount <= 0 limit ?"
+                )) {
+                    preparedStatement.setInt(1, COLLECT_BATCH_SIZE);
+
+                    try (ResultSet row = preparedStatement.executeQuery()) {
+                        while (row.next()) {
+                            hashes.add(row.getString(1));
+                        }
+                    }
+                }
+
+                if (hashes.isEmpty()) {
+                    break;
+                }
+
+                connection.setAutoCommit(false);
+
+                // Rechecked by the delete, which holds the write lock until commit, so a file acquired again since
+                // the select is kept
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "delete from Images where Hash = ? and RefCount <= 0"
+                )) {
+                    for (String hash : hashes) {
+                        preparedStatement.setString(1, hash);
+
+                        if (preparedStatement.executeUpdate() == 1) {
+                            releaseThumbnails(connection, hash);
+
+                            Files.deleteIfExists(path(hash));
+                            pictureCache.invalidate(hash);
+                            collected++;
+                        }
+                    }
+                }
+
+                connection.commit();
+                connection.setAutoCommit(true);
+            }
+        }
+
+        return collected + sweep(database, sweepGraceMillis);
+    }
+
+    public synchronized void start(Database database, long intervalSeconds) {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "image-collector");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                collect(database);
+            } catch (SQLException | IOException e) {
+                e.printStackTrace();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    // Walks the store on a read connection, as statting every file under the write lock would hold up all writes. Only
+    // the deletes take the write connection, a batch at a time, and recheck the row there, as an acquire may have
+    // committed one for an old file since.
+    private int sweep(Database database, long graceMillis) throws SQLException, IOException {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        List<Path> orphans = new ArrayList<>();
+
+        try (
+                Connection connection = database.getReadConnection();
+                DirectoryStream<Path> directories = Files.newDirectoryStream(root, Files::isDirectory)
+        ) {
+            for (Path directory : directories) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                    for (Path file : files) {
+                        if (Files.getLastModifiedTime(file).toMillis() <= cutoff && !hasRow(connection, file)) {
+                            orphans.add(file);
+                        }
+                    }
+                }
+            }
+        }
+
+        int swept = 0;
+
+        for (int i = 0; i < orphans.size(); i += COLLECT_BATCH_SIZE) {
+            try (Connection connection = database.getWriteConnection()) {
+                for (Path file : orphans.subList(i, Math.min(i + COLLECT_BATCH_SIZE, orphans.size()))) {
+                    if (hasRow(connection, file)) {
+                        continue;
+                    }
+
+                    pictureCache.invalidate(file.getFileName().toString());
+
+                    if (Files.deleteIfExists(file)) {
+                        swept++;
+                    }
+                }
+            }
+        }
+
+        return swept;
+    }
+
+    // Anything but a temporary file left by a crashed write is named by its hash
+    private static boolean hasRow(Connection connection, Path file) throws SQLException {
+        String name = file.getFileName().toString();
+
+        if (name.endsWith(".tmp")) {
+            return false;
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "select 1 from Images where Hash = ?"
+        )) {
+            preparedStatement.setString(1, name);
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                return row.next();
+            }
+        }
+    }
+
+    // Thumbnails are counted references of their own, dropped along with the original. They are collected by a later
+    // pass of the same loop.
+    private void releaseThumbnails(Connection connection, String hash) throws SQLException {
+        List<String> thumbnailHashes = new ArrayList<>();
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "select ThumbnailHash from Thumbnails where Hash = ?"
+        )) {
+            preparedStatement.setString(1, hash);
+
+            try (ResultSet row = preparedStatement.executeQuery()) {
+                while (row.next()) {
+                    thumbnailHashes.add(row.getString(1));
+                }
+            }
+        }
+
+        for (String thumbnailHash : thumbnailHashes) {
+            // An original that is its own thumbnail holds no reference to itself
+            if (!thumbnailHash.equals(hash)) {
+                release(connection, thumbnailHash);
+            }
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "delete from Thumbnails where Hash = ?"
+        )) {
+            preparedStatement.setString(1, hash);
+
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    // Files are spread over 256 directories by the first two hex digits of their hash
+    private Path path(String hash) {
+        if (hash.length() != 64 || !hash.chars().allMatch(c -> c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+            throw new IllegalArgumentException("Invalid image hash: " + hash);
+        }
+
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    // Written to a temporary file in the same directory and renamed over, so a reader never sees a partial picture
+    private void write(String hash, byte[] picture) throws IOException {
+        Path path = path(hash);
+        Files.createDirectories(path.getParent());
+
+        Path temporary = Files.createTempFile(path.getParent(), hash, ".tmp");
+
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(picture);
+
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+
+                channel.force(true);
+            }
+
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package sungro.server.db;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Runs EXPLAIN QUERY PLAN over a set of statements and reports full table scans and temp b-trees. Where the statement
+// filters, joins or sorts the offending table on a column without an index, it proposes the index DDL, which can then
+// be accepted by copying it into a new migration in Migrator.
+public class IndexAdvisor {
+    private static final Pattern SCAN = Pattern.compile("^SCAN (?:TABLE )?(\\w+)(?: AS (\\w+))?");
+    private static final Pattern TEMP_B_TREE = Pattern.compile("^USE TEMP B-TREE FOR (.*)$");
+    private static final Pattern TABLE = Pattern.compile(
+            "\\b(?:from|join)\\s+(\\w+)(?:\\s+as\\s+(\\w+))?", Pattern.CASE_INSENSITIVE
+    );
+    private static final Pattern FILTER = Pattern.compile(
+            "(?:\\b(\\w+)\\.)?\\b(\\w+)\\s*(?:=|>=|<=|>|<|\\blike)\\s*\\?", Pattern.CASE_INSENSITIVE
+    );
+    private static final Pattern JOIN = Pattern.compile("\\b(\\w+)\\.(\\w+)\\s*=\\s*(\\w+)\\.(\\w+)");
+    private static final Pattern ORDER_BY = Pattern.compile(
+            "\\border by\\s+(?:(\\w+)\\.)?(\\w+)", Pattern.CASE_INSENSITIVE
+    );
+
+    private final Database database;
+
+    public IndexAdvisor(Database database) {
+        this.database = database;
+    }
+
+    public List<Finding> advise(Collection<String> sqls) throws SQLException {
+        List<Finding> result = new ArrayList<>();
+
+        try (Connection connection = database.getReadConnection(); Statement statement = connection.createStatement()) {
+            for (String sql : sqls) {
+                List<String> details = new ArrayList<>();
+
+                // Unbound parameters are null, which is fine for planning. The plan is read in full first, because
+                // SQLite refuses the pragmas below while another statement is still stepping.
+                try (ResultSet row = statement.executeQuery("explain query plan " + sql)) {
+                    while (row.next()) {
+                        details.add(row.getString(4));
+                    }
+                }
+
+                for (String detail : details) {
+                    Matcher scan = SCAN.matcher(detail);
+                    Matcher tempBTree = TEMP_B_TREE.matcher(detail);
+                    String ddl;
+
+                    if (scan.find()) {
+                        String alias = scan.group(2) != null ? scan.group(2) : scan.group(1);
+                        ddl = proposeForScan(connection, sql, scan.group(1), alias, scan.group(2) == null);
+                    } else if (tempBTree.find()) {
+                        ddl = proposeForSort(connection, sql);
+                    } else {
+                        continue;
+                    }
+
+                    result.add(new Finding(sql, detail, ddl));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public void report(List<Finding> findings, PrintStream out) throws SQLException {
+        Set<String> proposals = new TreeSet<>();
+
+        for (Finding finding : findings) {
+            out.println(finding.getDetail());
+            out.println("    " + finding.getSql());
+
+            if (finding.getDdl() != null) {
+                out.println("    -> " + finding.getDdl());
+                proposals.add(finding.getDdl());
+            }
+        }
+
+        if (proposals.isEmpty()) {
+            out.println("No indexes to propose");
+            return;
+        }
+
+        int next;
+
+        try (
+                Connection connection = database.getReadConnection();
+                Statement statement = connection.createStatement();
+                ResultSet row = statement.executeQuery("select count(*) from Migrations")
+        ) {
+            row.next();
+            next = row.getInt(1);
+        }
+
+        String name = String.format("m%02d_add_advised_index", next);
+
+        out.println();
+        out.println("Proposed migration:");
+        out.println();
+        out.println("    private void " + name + "(Connection connection) throws SQLException {");
+        out.println("        try (Statement statement = connection.createStatement()) {");
+
+        for (String ddl : proposals) {
+            out.println("            statement.executeUpdate(\"" + ddl + "\");");
+        }
+
+        out.println();
+        out.println("            statement.executeUpdate(\"insert into Migrations (Name) values ('" + name + "')\");");
+        out.println("        }");
+        out.println("    }");
+    }
+
+    private String proposeForScan(Connection connection, String sql, String table, String alias, boolean unaliased)
+            throws SQLException {
+        Set<String> columns = getColumns(connection, table);
+        if (columns.isEmpty()) {
+            // Not a table, e.g. SCAN CONSTANT ROW or SCAN SUBQUERY
+            return null;
+        }
+
+        Set<String> indexed = getIndexedColumns(connection, table);
+
+        boolean filteredElsewhere = false;
+
+        // Filters on the table come first
+        Matcher filter = FILTER.matcher(sql);
+        while (filter.find()) {
+            String qualifier = filter.group(1);
+            String column = filter.group(2);
+
+            boolean ours = qualifier == null ? unaliased : qualifier.equalsIgnoreCase(alias);
+            if (ours && columns.contains(column) && !indexed.contains(column)) {
+                return ddl(table, column);
+            }
+
+            filteredElsewhere |= !ours;
+        }
+
+        // Then the columns it is joined on, which only matter when the rows are narrowed down through another table.
+        // An unfiltered list has to read every row of its main table whatever the indexes.
+        if (!filteredElsewhere) {
+            return null;
+        }
+
+        Matcher join = JOIN.matcher(sql);
+        while (join.find()) {
+            for (int i = 1; i <= 3; i += 2) {
+                String column = join.group(i + 1);
+
+                if (join.group(i).equalsIgnoreCase(alias) && columns.contains(column) && !indexed.contains(column)) {
+                    return ddl(table, column);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private String proposeForSort(Connection connection, String sql) throws SQLException {
+        Matcher orderBy = ORDER_BY.matcher(sql);
+        if (!orderBy.find()) {
+            return null;
+        }
+
+        String qualifier = orderBy.group(1);
+        String column = orderBy.group(2);
+
+        Matcher table = TABLE.matcher(sql);
+        while (table.find()) {
+            boolean ours = qualifier == null || qualifier.equalsIgnoreCase(table.group(2));
+            if (ours && getColumns(connection, table.group(1)).contains(column)) {
+                return getIndexedColumns(connection, table.group(1)).contains(column)
+                        ? null
+                        : ddl(table.group(1), column);
+            }
+        }
+
+        return null;
+    }
+
+    private static String ddl(String table, String column) {
+        return String.format("create index IX_%s_%s on %s (%s)", table, column, table, column);
+    }
+
+    private static Set<String> getColumns(Connection connection, String table) throws SQLException {
+        Set<String> result = new HashSet<>();
+
+        try (
+                Statement statement = connection.createStatement();
+                ResultSet row = statement.executeQuery("pragma table_info(" + table + ")")
+        ) {
+            while (row.next()) {
+                result.add(row.getString("name"));
+            }
+        }
+
+        return result;
+    }
+
+    // Columns that lead an index, plus an INTEGER PRIMARY KEY, which is the rowid itself
+    private static Set<String> getIndexedColumns(Connection connection, String table) throws SQLException {
+        Set<String> result = new HashSet<>();
+        List<String> indexes = new ArrayList<>();
+
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet row = statement.executeQuery("pragma table_info(" + table + ")")) {
+                while (row.next()) {
+                    if (row.getInt("pk") == 1 && row.getString("type").equalsIgnoreCase("integer")) {
+                        result.add(row.getString("name"));
+                    }
+                }
+            }
+
+            try (ResultSet row = statement.executeQuery("pragma index_list(" + table + ")")) {
+                while (row.next()) {
+                    indexes.add(row.getString("name"));
+                }
+            }
+
+            for (String index : indexes) {
+                try (ResultSet row = statement.executeQuery("pragma index_info(" + index + ")")) {
+                    while (row.next()) {
+                        if (row.getInt("seqno") == 0) {
+                            result.add(row.getString("name"));
+                        }
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public static class Finding {
+        private final String sql;
+        private final String detail;
+        private final String ddl;
+
+        Finding(String sql, String detail, String ddl) {
+            this.sql = sql;
+            this.detail = detail;
+            this.ddl = ddl;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        // Null when nothing obvious would help, e.g. an unfiltered list that has to read every row anyway
+        public String getDdl() {
+            return ddl;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package sungro.server.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+public class InitProfile {
+    // Rollback journal with full fsync, close to SQLite's own defaults
+    public static final InitProfile SAFE = new InitProfile("safe", List.of(
+            "pragma journal_mode = DELETE",
+            "pragma synchronous = FULL",
+            "pragma busy_timeout = 5000",
+            "pragma foreign_keys = ON",
+            "pragma case_sensitive_like = ON"
+    ));
+
+    // WAL with fsync only at checkpoints, plus a larger page cache and memory-mapped reads
+    public static final InitProfile WAL = new InitProfile("wal", List.of(
+            "pragma journal_mode = WAL",
+            "pragma synchronous = NORMAL",
+            "pragma cache_size = -16384",
+            "pragma mmap_size = 268435456",
+            "pragma temp_store = MEMORY",
+            "pragma busy_timeout = 5000",
+            "pragma foreign_keys = ON",
+            "pragma case_sensitive_like = ON"
+    ));
+
+    public static final List<InitProfile> ALL = List.of(SAFE, WAL);
+
+    private final String name;
+    private final List<String> statements;
+
+    public InitProfile(String name, List<String> statements) {
+        this.name = name;
+        this.statements = List.copyOf(statements);
+    }
+
+    public static InitProfile of(String name) {
+        for (InitProfile profile : ALL) {
+            if (profile.getName().equals(name)) {
+                return profile;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown init profile: " + name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getStatements() {
+        return statements;
+    }
+
+    public InitProfile readOnly() {
+        List<String> readOnlyStatements = new ArrayList<>(statements);
+        readOnlyStatements.add("pragma query_only = ON");
+
+        return new InitProfile(name + "-read", readOnlyStatements);
+    }
+
+    public void apply(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : statements) {
+                // Some pragmas, such as journal_mode, return a row, so execute() rather than executeUpdate()
+                statement.execute(sql);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
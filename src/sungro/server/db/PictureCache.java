@@ -0,0 +1,256 @@
+package sungro.server.db;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Hash -> picture bytes, held outside the Java heap so that caching many pictures doesn't lengthen GC pauses. Keys are
+// content hashes, so an entry is never stale: a changed picture has a new hash, and the old entry ages out.
+//
+// The cache is split into stripes like SessionCache. Each stripe owns one direct buffer carved into fixed-size blocks,
+// with a free list, and an access-ordered map of the blocks each picture occupies. A put that finds too few free
+// blocks evicts the least recently used pictures of its stripe. The memory never grows past the capacity.
+public class PictureCache implements PictureCacheMXBean {
+    public static final long DEFAULT_CAPACITY_BYTES = 64L * 1024 * 1024;
+
+    private static final int STRIPES = 16;
+    private static final int BLOCK_SIZE = 4096;
+
+    // Larger pictures would evict too much of their stripe, and are read from the store each time
+    private static final int MAX_ENTRY_FRACTION = 4;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long capacityBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public PictureCache() {
+        this(DEFAULT_CAPACITY_BYTES);
+    }
+
+    public PictureCache(long capacityBytes) {
+        int blocks = (int) Math.min(Integer.MAX_VALUE / BLOCK_SIZE, capacityBytes / STRIPES / BLOCK_SIZE);
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(blocks);
+        }
+
+        this.capacityBytes = (long) blocks * BLOCK_SIZE * STRIPES;
+    }
+
+    // A copy on the heap, or null when the picture isn't cached
+    public byte[] get(String hash) {
+        Stripe stripe = stripeOf(hash);
+        byte[] picture;
+
+        synchronized (stripe) {
+            picture = stripe.read(hash);
+        }
+
+        if (picture == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        return picture;
+    }
+
+    public void put(String hash, byte[] picture) {
+        Stripe stripe = stripeOf(hash);
+
+        if (picture.length == 0 || blocksFor(picture.length) > stripe.blockCount / MAX_ENTRY_FRACTION) {
+            return;
+        }
+
+        synchronized (stripe) {
+            stripe.write(hash, picture);
+        }
+    }
+
+    // For pictures deleted from the store, so the memory goes to pictures that can still be asked for
+    public void invalidate(String hash) {
+        Stripe stripe = stripeOf(hash);
+
+        synchronized (stripe) {
+            stripe.free(hash);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                while (!stripe.entries.isEmpty()) {
+                    stripe.free(stripe.entries.keySet().iterator().next());
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getSize() {
+        int size = 0;
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+
+        return size;
+    }
+
+    @Override
+    public long getResidentBytes() {
+        long residentBytes = 0;
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                residentBytes += stripe.residentBytes;
+            }
+        }
+
+        return residentBytes;
+    }
+
+    @Override
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = this.hits.sum();
+        long total = hits + misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private Stripe stripeOf(String hash) {
+        return stripes[(hash.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    private static int blocksFor(int length) {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    // Only used under its own lock
+    private class Stripe {
+        private final int blockCount;
+
+        // Allocated by the first write, so a cache that is replaced or never used costs nothing
+        private ByteBuffer arena;
+
+        // A stack of the indexes of the free blocks
+        private final int[] freeBlocks;
+        private int freeCount;
+
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long residentBytes;
+
+        Stripe(int blockCount) {
+            this.blockCount = blockCount;
+            freeBlocks = new int[blockCount];
+
+            for (int i = 0; i < blockCount; i++) {
+                freeBlocks[freeCount++] = blockCount - 1 - i;
+            }
+        }
+
+        byte[] read(String hash) {
+            Entry entry = entries.get(hash);
+
+            if (entry == null) {
+                return null;
+            }
+
+            byte[] picture = new byte[entry.length];
+
+            for (int i = 0; i < entry.blocks.length; i++) {
+                int offset = i * BLOCK_SIZE;
+                arena.position(entry.blocks[i] * BLOCK_SIZE);
+                arena.get(picture, offset, Math.min(BLOCK_SIZE, picture.length - offset));
+            }
+
+            return picture;
+        }
+
+        void write(String hash, byte[] picture) {
+            if (entries.containsKey(hash)) {
+                return;
+            }
+
+            if (arena == null) {
+                arena = ByteBuffer.allocateDirect(blockCount * BLOCK_SIZE);
+            }
+
+            int needed = blocksFor(picture.length);
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+
+            while (freeCount < needed) {
+                Entry entry = eldest.next().getValue();
+                eldest.remove();
+                release(entry);
+                evictions.increment();
+            }
+
+            int[] blocks = new int[needed];
+
+            for (int i = 0; i < needed; i++) {
+                blocks[i] = freeBlocks[--freeCount];
+
+                int offset = i * BLOCK_SIZE;
+                arena.position(blocks[i] * BLOCK_SIZE);
+                arena.put(picture, offset, Math.min(BLOCK_SIZE, picture.length - offset));
+            }
+
+            entries.put(hash, new Entry(blocks, picture.length));
+            residentBytes += picture.length;
+        }
+
+        void free(String hash) {
+            Entry entry = entries.remove(hash);
+
+            if (entry != null) {
+                release(entry);
+            }
+        }
+
+        private void release(Entry entry) {
+            for (int block : entry.blocks) {
+                freeBlocks[freeCount++] = block;
+            }
+
+            residentBytes -= entry.length;
+        }
+    }
+
+    private static class Entry {
+        private final int[] blocks;
+        private final int length;
+
+        Entry(int[] blocks, int length) {
+            this.blocks = blocks;
+            this.length = length;
+        }
+    }
+}
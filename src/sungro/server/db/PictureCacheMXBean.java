@@ -0,0 +1,19 @@
+package sungro.server.db;
+
+public interface PictureCacheMXBean {
+    int getSize();
+
+    long getResidentBytes();
+
+    long getCapacityBytes();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    long getEvictions();
+
+    void clear();
+}
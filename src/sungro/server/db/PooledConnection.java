@@ -0,0 +1,81 @@
+package sungro.server.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+class PooledConnection implements InvocationHandler {
+    private final ConnectionPool pool;
+    private final Connection physical;
+    private final StatementCache statementCache;
+    private final long checkedOutAt;
+    private final Throwable checkoutTrace;
+    private volatile boolean leakReported;
+    private boolean closed;
+
+    PooledConnection(ConnectionPool pool, Connection physical, StatementCache statementCache, boolean traceCheckout) {
+        this.pool = pool;
+        this.physical = physical;
+        this.statementCache = statementCache;
+        this.checkedOutAt = System.currentTimeMillis();
+        this.checkoutTrace = traceCheckout
+                ? new Throwable("Checked out by " + Thread.currentThread().getName())
+                : null;
+    }
+
+    Connection getPhysical() {
+        return physical;
+    }
+
+    long getCheckedOutAt() {
+        return checkedOutAt;
+    }
+
+    Throwable getCheckoutTrace() {
+        return checkoutTrace;
+    }
+
+    boolean isLeakReported() {
+        return leakReported;
+    }
+
+    void setLeakReported() {
+        leakReported = true;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "close":
+                if (!closed) {
+                    closed = true;
+                    pool.release(this);
+                }
+                return null;
+            case "isClosed":
+                return closed || physical.isClosed();
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "Pooled" + physical;
+        }
+
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+
+        if (method.getName().equals("prepareStatement") && args.length == 1) {
+            return statementCache.prepare((String) args[0]);
+        }
+
+        try {
+            return method.invoke(physical, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -110,69 +110,130 @@ public class QueryBuilder {
     }
 
     public PreparedStatement prepare(Connection connection) throws SQLException {
-        StringBuilder sql = new StringBuilder(selectClause);
-        sql.append(fromClause);
-
-        if (whereClause.length() != 0) {
-            sql.append("where ");
-        }
+        PreparedStatement preparedStatement = connection.prepareStatement(buildSql());
 
-        sql.append(whereClause);
-        sql.append(remainingClause);
+        int index = 1;
+        index = bind(preparedStatement, selectParams, index);
+        index = bind(preparedStatement, fromParams, index);
+        index = bind(preparedStatement, whereParams, index);
+        bind(preparedStatement, remainingParams, index);
 
-        PreparedStatement preparedStatement = connection.prepareStatement(sql.toString());
+        return preparedStatement;
+    }
 
+    // Builds an immutable template of this query for reuse across calls. Only the parameter types are kept;
+    // values passed to the add*To* methods are ignored and supplied later to QueryTemplate.prepare().
+    public QueryTemplate compile() {
         ArrayList<Parameter> params = new ArrayList<>();
         params.addAll(selectParams);
         params.addAll(fromParams);
         params.addAll(whereParams);
         params.addAll(remainingParams);
 
-        for (int i = 0; i < params.size(); i++) {
-            Parameter p = params.get(i);
+        DataType[] types = new DataType[params.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = params.get(i).getDataType();
+        }
 
-            switch (p.getDataType()) {
-                case INT:
-                    preparedStatement.setInt(i + 1, (Integer) p.getValue());
-                    break;
-                case STRING:
-                    preparedStatement.setString(i + 1, (String) p.getValue());
-                    break;
-            }
+        StringBuilder countSql = new StringBuilder("select count(*) ");
+        countSql.append(fromClause);
+
+        if (whereClause.length() != 0) {
+            countSql.append("where ");
         }
 
-        return preparedStatement;
-    }
+        countSql.append(whereClause);
 
-    @Override
-    public String toString() {
-        StringBuilder result = new StringBuilder("SQL:\n");
-        result.append(selectClause);
-        result.append(fromClause);
+        StringBuilder totalSql = new StringBuilder(selectClause);
+        totalSql.append(", count(*) over () ");
+        totalSql.append(fromClause);
 
         if (whereClause.length() != 0) {
-            result.append("where ");
+            totalSql.append("where ");
         }
 
-        result.append(whereClause);
-        result.append(remainingClause);
-        result.append("\n\nParams:\n");
+        totalSql.append(whereClause);
+        totalSql.append(remainingClause);
+
+        return new QueryTemplate(
+                buildSql(),
+                totalSql.toString(),
+                countSql.toString(),
+                types,
+                selectParams.size(),
+                fromParams.size() + whereParams.size()
+        );
+    }
 
+    @Override
+    public String toString() {
         ArrayList<Parameter> params = new ArrayList<>();
         params.addAll(selectParams);
         params.addAll(fromParams);
         params.addAll(whereParams);
         params.addAll(remainingParams);
 
+        Object[] types = new Object[params.size()];
+        Object[] values = new Object[params.size()];
+
         for (int i = 0; i < params.size(); i++) {
-            Parameter p = params.get(i);
-            result.append(String.format("%2d %10s %s\n", i + 1, p.getDataType(), p.getValue()));
+            types[i] = params.get(i).getDataType();
+            values[i] = params.get(i).getValue();
+        }
+
+        return format(buildSql(), types, values);
+    }
+
+    // Also used by QueryTemplate and by the slow statement log in QueryStats
+    // Without values, only the types are listed
+    static String format(String sql, Object[] types, Object[] values) {
+        StringBuilder result = new StringBuilder("SQL:\n");
+        result.append(sql);
+        result.append("\n\nParams:\n");
+
+        for (int i = 0; i < types.length; i++) {
+            Object value = values == null
+                    ? "(not logged)"
+                    : values[i] instanceof byte[] ? ((byte[]) values[i]).length + " bytes" : values[i];
+            result.append(String.format("%2d %10s %s\n", i + 1, types[i], value));
         }
 
         return result.toString();
     }
 
-    private enum DataType {INT, STRING}
+    private String buildSql() {
+        StringBuilder sql = new StringBuilder(selectClause);
+        sql.append(fromClause);
+
+        if (whereClause.length() != 0) {
+            sql.append("where ");
+        }
+
+        sql.append(whereClause);
+        sql.append(remainingClause);
+
+        return sql.toString();
+    }
+
+    private static int bind(PreparedStatement preparedStatement, ArrayList<Parameter> params, int index)
+            throws SQLException {
+        for (Parameter p : params) {
+            switch (p.getDataType()) {
+                case INT:
+                    preparedStatement.setInt(index, (Integer) p.getValue());
+                    break;
+                case STRING:
+                    preparedStatement.setString(index, (String) p.getValue());
+                    break;
+            }
+
+            index++;
+        }
+
+        return index;
+    }
+
+    enum DataType {INT, STRING}
 
     private static class Parameter {
         private final DataType dataType;
@@ -0,0 +1,111 @@
+package sungro.server.db;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Execution statistics per statement, in the spirit of pg_stat_statements. Statements are keyed by their SQL text,
+// which is already a fingerprint because every value is bound through a parameter. Recording is a handful of
+// lock-free adds, so it stays on for every statement prepared through the pools.
+public class QueryStats implements QueryStatsMXBean {
+    public static final int HISTOGRAM_BUCKETS = 24;
+
+    private final ConcurrentHashMap<String, Entry> entries;
+    private volatile long slowThresholdMillis;
+
+    // Bound values include session IDs, password hashes and emails, so the slow statement log leaves them out unless
+    // this is turned on for debugging
+    private volatile boolean logValues;
+
+    public QueryStats(long slowThresholdMillis) {
+        this.entries = new ConcurrentHashMap<>();
+        this.slowThresholdMillis = slowThresholdMillis;
+    }
+
+    void record(String sql, long nanos, long rows, Object[] types, Object[] values) {
+        Entry entry = entries.get(sql);
+        if (entry == null) {
+            entry = entries.computeIfAbsent(sql, key -> new Entry());
+        }
+
+        entry.record(nanos, rows);
+
+        long threshold = slowThresholdMillis;
+        if (threshold > 0 && nanos >= threshold * 1_000_000) {
+            System.out.println(
+                    "Statement took " + nanos / 1000 + " us:\n" +
+                            QueryBuilder.format(sql, types, logValues ? values : null)
+            );
+        }
+    }
+
+    // Slowest in total first
+    @Override
+    public List<StatementStats> getStatements() {
+        List<StatementStats> result = new ArrayList<>();
+
+        entries.forEach((sql, entry) -> result.add(entry.snapshot(sql)));
+        result.sort(Comparator.comparingLong(StatementStats::getTotalMicros).reversed());
+
+        return result;
+    }
+
+    @Override
+    public long getSlowThresholdMillis() {
+        return slowThresholdMillis;
+    }
+
+    // 0 turns slow statement logging off
+    @Override
+    public void setSlowThresholdMillis(long slowThresholdMillis) {
+        this.slowThresholdMillis = slowThresholdMillis;
+    }
+
+    @Override
+    public boolean isLogValues() {
+        return logValues;
+    }
+
+    @Override
+    public void setLogValues(boolean logValues) {
+        this.logValues = logValues;
+    }
+
+    @Override
+    public void reset() {
+        entries.clear();
+    }
+
+    private static class Entry {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        void record(long nanos, long rowCount) {
+            calls.increment();
+            totalNanos.add(nanos);
+            rows.add(rowCount);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+
+            int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+            histogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+        }
+
+        StatementStats snapshot(String sql) {
+            long[] buckets = new long[HISTOGRAM_BUCKETS];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = histogram.get(i);
+            }
+
+            return new StatementStats(
+                    sql, calls.sum(), totalNanos.sum() / 1000, maxNanos.get() / 1000, rows.sum(), buckets
+            );
+        }
+    }
+}
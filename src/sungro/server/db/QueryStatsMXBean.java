@@ -0,0 +1,17 @@
+package sungro.server.db;
+
+import java.util.List;
+
+public interface QueryStatsMXBean {
+    List<StatementStats> getStatements();
+
+    long getSlowThresholdMillis();
+
+    void setSlowThresholdMillis(long slowThresholdMillis);
+
+    boolean isLogValues();
+
+    void setLogValues(boolean logValues);
+
+    void reset();
+}
@@ -0,0 +1,85 @@
+package sungro.server.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+public class QueryTemplate {
+    private final String sql;
+    private final String totalSql;
+    private final String countSql;
+    private final QueryBuilder.DataType[] types;
+    private final int countOffset;
+    private final int countLength;
+
+    QueryTemplate(
+            String sql, String totalSql, String countSql, QueryBuilder.DataType[] types, int countOffset, int countLength
+    ) {
+        this.sql = sql;
+        this.totalSql = totalSql;
+        this.countSql = countSql;
+        this.types = types;
+        this.countOffset = countOffset;
+        this.countLength = countLength;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public String getTotalSql() {
+        return totalSql;
+    }
+
+    public String getCountSql() {
+        return countSql;
+    }
+
+    public int getParamCount() {
+        return types.length;
+    }
+
+    public PreparedStatement prepare(Connection connection, Object[] values) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        bind(preparedStatement, values, 0, types.length);
+        return preparedStatement;
+    }
+
+    // Same as prepare(), with "count(*) over ()" appended to the selected columns, so every row also carries the
+    // number of rows matching the WHERE clause before LIMIT and OFFSET apply
+    public PreparedStatement prepareWithTotal(Connection connection, Object[] values) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(totalSql);
+        bind(preparedStatement, values, 0, types.length);
+        return preparedStatement;
+    }
+
+    // Same FROM and WHERE as the full query, so only the parameters of those two clauses are bound
+    public PreparedStatement prepareCount(Connection connection, Object[] values) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(countSql);
+        bind(preparedStatement, values, countOffset, countLength);
+        return preparedStatement;
+    }
+
+    public String toString(Object[] values) {
+        return QueryBuilder.format(sql, types, values);
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+
+    private void bind(PreparedStatement preparedStatement, Object[] values, int offset, int length)
+            throws SQLException {
+        for (int i = 0; i < length; i++) {
+            switch (types[offset + i]) {
+                case INT:
+                    preparedStatement.setInt(i + 1, (Integer) values[offset + i]);
+                    break;
+                case STRING:
+                    preparedStatement.setString(i + 1, (String) values[offset + i]);
+                    break;
+            }
+        }
+    }
+}
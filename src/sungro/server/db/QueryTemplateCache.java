@@ -0,0 +1,39 @@
+package sungro.server.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+// Compiles one QueryTemplate per combination of optional filters. A shape is a bit mask with one bit per filter.
+public class QueryTemplateCache {
+    private final AtomicReferenceArray<QueryTemplate> templates;
+    private final IntFunction<QueryTemplate> compiler;
+
+    public QueryTemplateCache(int filterCount, IntFunction<QueryTemplate> compiler) {
+        this.templates = new AtomicReferenceArray<>(1 << filterCount);
+        this.compiler = compiler;
+    }
+
+    public QueryTemplate get(int shape) {
+        QueryTemplate template = templates.get(shape);
+
+        if (template == null) {
+            // Templates are immutable, so a racing thread compiling the same shape is harmless
+            template = compiler.apply(shape);
+            templates.set(shape, template);
+        }
+
+        return template;
+    }
+
+    public List<QueryTemplate> getAll() {
+        List<QueryTemplate> result = new ArrayList<>();
+
+        for (int shape = 0; shape < templates.length(); shape++) {
+            result.add(get(shape));
+        }
+
+        return result;
+    }
+}
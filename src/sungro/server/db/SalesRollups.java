@@ -0,0 +1,153 @@
+package sungro.server.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// Sales totals per day x product, day x seller and month x category. addSale and deleteSale adjust them in the same
+// transaction as the sale itself, so reports read a few rollup rows instead of scanning Sales. The category of a sale
+// is its product's current category, so setProduct moves a product's totals when the category changes.
+public class SalesRollups {
+    private static final String[] TABLES = {"SalesByDayProduct", "SalesByDaySeller", "SalesByMonthCategory"};
+
+    private SalesRollups() {
+    }
+
+    // A negative quantity, revenue and count reverse an earlier sale
+    public static void add(
+            Connection connection, int day, int month, int productId, int soldBy, String category,
+            int quantity, long revenue, int count
+    ) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "insert into SalesByDayProduct (SoldOnDay, ProductID, Quantity, Revenue, SaleCount) " +
+                        "values (?, ?, ?, ?, ?) " +
+                        "on conflict (SoldOnDay, ProductID) do update set " +
+                        "Quantity = Quantity + excluded.Quantity, " +
+                        "Revenue = Revenue + excluded.Revenue, " +
+                        "SaleCount = SaleCount + excluded.SaleCount"
+        )) {
+            preparedStatement.setInt(1, day);
+            preparedStatement.setInt(2, productId);
+            preparedStatement.setInt(3, quantity);
+            preparedStatement.setLong(4, revenue);
+            preparedStatement.setInt(5, count);
+
+            preparedStatement.executeUpdate();
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "insert into SalesByDaySeller (SoldOnDay, SoldBy, Quantity, Revenue, SaleCount) " +
+                        "values (?, ?, ?, ?, ?) " +
+                        "on conflict (SoldOnDay, SoldBy) do update set " +
+                        "Quantity = Quantity + excluded.Quantity, " +
+                        "Revenue = Revenue + excluded.Revenue, " +
+                        "SaleCount = SaleCount + excluded.SaleCount"
+        )) {
+            preparedStatement.setInt(1, day);
+            preparedStatement.setInt(2, soldBy);
+            preparedStatement.setInt(3, quantity);
+            preparedStatement.setLong(4, revenue);
+            preparedStatement.setInt(5, count);
+
+            preparedStatement.executeUpdate();
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "insert into SalesByMonthCategory (SoldOnMonth, Category, Quantity, Revenue, SaleCount) " +
+                        "values (?, ?, ?, ?, ?) " +
+                        "on conflict (SoldOnMonth, Category) do update set " +
+                        "Quantity = Quantity + excluded.Quantity, " +
+                        "Revenue = Revenue + excluded.Revenue, " +
+                        "SaleCount = SaleCount + excluded.SaleCount"
+        )) {
+            preparedStatement.setInt(1, month);
+            preparedStatement.setString(2, category);
+            preparedStatement.setInt(3, quantity);
+            preparedStatement.setLong(4, revenue);
+            preparedStatement.setInt(5, count);
+
+            preparedStatement.executeUpdate();
+        }
+
+        if (count < 0) {
+            deleteEmpty(connection, "SalesByDayProduct", "SoldOnDay = ? and ProductID = ?", day, productId);
+            deleteEmpty(connection, "SalesByDaySeller", "SoldOnDay = ? and SoldBy = ?", day, soldBy);
+            deleteEmpty(connection, "SalesByMonthCategory", "SoldOnMonth = ? and Category = ?", month, category);
+        }
+    }
+
+    public static void moveCategory(Connection connection, int productId, String from, String to)
+            throws SQLException {
+        // Takes the product's monthly totals out of the old category, then adds them to the new one
+        for (int sign = -1; sign <= 1; sign += 2) {
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "insert into SalesByMonthCategory (SoldOnMonth, Category, Quantity, Revenue, SaleCount) " +
+                            "select SoldOnDay / 100, ?, ? * sum(Quantity), ? * sum(Revenue), ? * sum(SaleCount) " +
+                            "from SalesByDayProduct where ProductID = ? " +
+                            "group by SoldOnDay / 100 " +
+                            "on conflict (SoldOnMonth, Category) do update set " +
+                            "Quantity = Quantity + excluded.Quantity, " +
+                            "Revenue = Revenue + excluded.Revenue, " +
+                            "SaleCount = SaleCount + excluded.SaleCount"
+            )) {
+                preparedStatement.setString(1, sign < 0 ? from : to);
+                preparedStatement.setInt(2, sign);
+                preparedStatement.setInt(3, sign);
+                preparedStatement.setInt(4, sign);
+                preparedStatement.setInt(5, productId);
+
+                preparedStatement.executeUpdate();
+            }
+        }
+
+        deleteEmpty(connection, "SalesByMonthCategory", "Category = ?", from);
+    }
+
+    public static void rebuild(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            for (String table : TABLES) {
+                statement.executeUpdate("delete from " + table);
+            }
+
+            statement.executeUpdate(
+                    "insert into SalesByDayProduct (SoldOnDay, ProductID, Quantity, Revenue, SaleCount) " +
+                            "select A.SoldOnDay, O.ProductID, sum(A.SoldQuantity), " +
+                            "sum(A.SoldQuantity * A.UnitPrice), count(*) " +
+                            "from Sales as A " +
+                            "inner join StockTrx as T on T.StockTrxID = A.StockTrxID " +
+                            "inner join Stock as O on O.SKU = T.SKU " +
+                            "group by A.SoldOnDay, O.ProductID"
+            );
+
+            statement.executeUpdate(
+                    "insert into SalesByDaySeller (SoldOnDay, SoldBy, Quantity, Revenue, SaleCount) " +
+                            "select SoldOnDay, SoldBy, sum(SoldQuantity), sum(SoldQuantity * UnitPrice), count(*) " +
+                            "from Sales " +
+                            "group by SoldOnDay, SoldBy"
+            );
+
+            statement.executeUpdate(
+                    "insert into SalesByMonthCategory (SoldOnMonth, Category, Quantity, Revenue, SaleCount) " +
+                            "select R.SoldOnDay / 100, P.Category, sum(R.Quantity), sum(R.Revenue), " +
+                            "sum(R.SaleCount) " +
+                            "from SalesByDayProduct as R " +
+                            "inner join Products as P on P.ProductID = R.ProductID " +
+                            "group by R.SoldOnDay / 100, P.Category"
+            );
+        }
+    }
+
+    private static void deleteEmpty(Connection connection, String table, String where, Object... keys)
+            throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "delete from " + table + " where " + where + " and SaleCount = 0"
+        )) {
+            for (int i = 0; i < keys.length; i++) {
+                preparedStatement.setObject(i + 1, keys[i]);
+            }
+
+            preparedStatement.executeUpdate();
+        }
+    }
+}
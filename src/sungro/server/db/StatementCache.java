@@ -0,0 +1,242 @@
+package sungro.server.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+class StatementCache {
+    private final Connection physical;
+    private final int maxSize;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final Consumer<String> onPrepare;
+    private final QueryStats queryStats;
+
+    // Statements currently handed out are removed from here, so two users of the same SQL never share one
+    private final LinkedHashMap<String, PreparedStatement> idle;
+
+    StatementCache(
+            Connection physical, int maxSize, AtomicLong hits, AtomicLong misses, Consumer<String> onPrepare,
+            QueryStats queryStats
+    ) {
+        this.physical = physical;
+        this.maxSize = maxSize;
+        this.hits = hits;
+        this.misses = misses;
+        this.onPrepare = onPrepare;
+        this.queryStats = queryStats;
+
+        idle = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement;
+
+        synchronized (this) {
+            statement = idle.remove(sql);
+        }
+
+        if (statement != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            onPrepare.accept(sql);
+            statement = physical.prepareStatement(sql);
+        }
+
+        return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                new CachedStatement(sql, statement)
+        );
+    }
+
+    void close() {
+        synchronized (this) {
+            for (PreparedStatement statement : idle.values()) {
+                closeQuietly(statement);
+            }
+            idle.clear();
+        }
+    }
+
+    private void release(String sql, PreparedStatement statement) {
+        try {
+            statement.clearParameters();
+        } catch (SQLException e) {
+            closeQuietly(statement);
+            return;
+        }
+
+        PreparedStatement evicted = null;
+
+        synchronized (this) {
+            PreparedStatement previous = idle.put(sql, statement);
+            if (previous != null) {
+                evicted = previous;
+            } else if (idle.size() > maxSize) {
+                Map.Entry<String, PreparedStatement> eldest = idle.entrySet().iterator().next();
+                idle.remove(eldest.getKey());
+                evicted = eldest.getValue();
+            }
+        }
+
+        if (evicted != null) {
+            closeQuietly(evicted);
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private class CachedStatement implements InvocationHandler {
+        private final String sql;
+        private final PreparedStatement statement;
+        private boolean closed;
+
+        // Types of the last values bound for the slow statement log, and the values too while QueryStats logs them
+        private Object[] types = new Object[0];
+        private Object[] values = new Object[0];
+
+        CachedStatement(String sql, PreparedStatement statement) {
+            this.sql = sql;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        release(sql, statement);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || statement.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Cached" + statement;
+            }
+
+            if (closed) {
+                throw new SQLException("Statement is closed");
+            }
+
+            int argCount = args == null ? 0 : args.length;
+
+            if (argCount == 0) {
+                long start = System.nanoTime();
+
+                switch (method.getName()) {
+                    case "executeQuery":
+                        return Proxy.newProxyInstance(
+                                ResultSet.class.getClassLoader(),
+                                new Class<?>[]{ResultSet.class},
+                                new TimedResultSet(this, statement.executeQuery(), start)
+                        );
+                    case "executeUpdate":
+                        int updated = statement.executeUpdate();
+                        record(System.nanoTime() - start, updated);
+                        return updated;
+                    case "execute":
+                        boolean hasResultSet = statement.execute();
+                        record(System.nanoTime() - start, Math.max(statement.getUpdateCount(), 0));
+                        return hasResultSet;
+                }
+            } else if (argCount == 2 && method.getName().startsWith("set") && args[0] instanceof Integer) {
+                String type = method.getName().substring(3).toUpperCase();
+                bound((Integer) args[0], type, type.equals("NULL") ? null : args[1]);
+            }
+
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        void record(long nanos, long rows) {
+            queryStats.record(sql, nanos, rows, types, values);
+        }
+
+        private void bound(int index, String type, Object value) {
+            if (index > types.length) {
+                types = Arrays.copyOf(types, index);
+                values = Arrays.copyOf(values, index);
+            }
+
+            types[index - 1] = type;
+            values[index - 1] = queryStats.isLogValues() ? value : null;
+        }
+    }
+
+    // Times a query from execution until its rows are exhausted or it is closed, since SQLite does most of the work
+    // while stepping through the rows
+    private static class TimedResultSet implements InvocationHandler {
+        private final CachedStatement statement;
+        private final ResultSet resultSet;
+        private final long start;
+        private long rows;
+        private boolean recorded;
+
+        TimedResultSet(CachedStatement statement, ResultSet resultSet, long start) {
+            this.statement = statement;
+            this.resultSet = resultSet;
+            this.start = start;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next":
+                    boolean hasRow = resultSet.next();
+                    if (hasRow) {
+                        rows++;
+                    } else {
+                        finish();
+                    }
+                    return hasRow;
+                case "close":
+                    finish();
+                    resultSet.close();
+                    return null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+            }
+
+            try {
+                return method.invoke(resultSet, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void finish() {
+            if (!recorded) {
+                recorded = true;
+                statement.record(System.nanoTime() - start, rows);
+            }
+        }
+    }
+}
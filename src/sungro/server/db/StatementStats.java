@@ -0,0 +1,62 @@
+package sungro.server.db;
+
+import java.io.Serializable;
+
+public class StatementStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String sql;
+    private final long calls;
+    private final long totalMicros;
+    private final long maxMicros;
+    private final long rows;
+    private final long[] histogram;
+
+    public StatementStats(String sql, long calls, long totalMicros, long maxMicros, long rows, long[] histogram) {
+        this.sql = sql;
+        this.calls = calls;
+        this.totalMicros = totalMicros;
+        this.maxMicros = maxMicros;
+        this.rows = rows;
+        this.histogram = histogram;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    public long getTotalMicros() {
+        return totalMicros;
+    }
+
+    public long getMeanMicros() {
+        return calls == 0 ? 0 : totalMicros / calls;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    // Rows returned by queries, or rows changed by updates
+    public long getRows() {
+        return rows;
+    }
+
+    // Element i counts the calls that took less than 2^i microseconds and at least 2^(i - 1), except the last one,
+    // which counts everything slower
+    public long[] getHistogram() {
+        return histogram;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "calls=%d total=%dus mean=%dus max=%dus rows=%d %s",
+                calls, totalMicros, getMeanMicros(), maxMicros, rows, sql
+        );
+    }
+}
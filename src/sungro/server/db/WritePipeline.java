@@ -0,0 +1,390 @@
+package sungro.server.db;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Group commit: writes from many threads are queued to one writer thread, which runs them in batches, each batch in
+// one transaction with one commit. With the SAFE profile a commit is an fsync, so ten terminals selling at once pay
+// for one fsync instead of ten.
+//
+// Each operation runs inside its own savepoint. One that throws is rolled back to it alone, and its caller gets the
+// exception while the rest of the batch commits. One that returns a failure status has done nothing to undo. Later
+// operations in a batch see the writes of earlier ones, as if they had run one after another.
+//
+// With no linger the writer still batches: whatever queues up while a batch commits goes into the next one. A linger
+// holds each batch open a little longer, trading latency for fewer commits when writes arrive in a trickle.
+public class WritePipeline implements WritePipelineMXBean {
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final long DEFAULT_MAX_LINGER_MILLIS = 0;
+
+    // Far above any batch's commit time, so it only fires when the writer is stuck
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    public interface Operation<T> {
+        T execute(Connection connection, AfterCommit afterCommit) throws SQLException, IOException;
+    }
+
+    // Work that must only happen once the operation's writes are durable, such as updating in-memory caches
+    public static class AfterCommit {
+        private final List<Runnable> actions = new ArrayList<>();
+
+        public void add(Runnable action) {
+            actions.add(action);
+        }
+    }
+
+    private final ConnectionPool writePool;
+
+    // Unbounded, as every caller waits for its own operation, so there are never more queued than calling threads
+    private final BlockingQueue<Task<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    // Queued by stop, after which nothing else is
+    private final Task<Void> stop = new Task<>(null);
+    private boolean stopped;
+
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long maxLingerMillis = DEFAULT_MAX_LINGER_MILLIS;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder commitNanos = new LongAdder();
+    private final AtomicLong largestBatch = new AtomicLong();
+
+    public WritePipeline(ConnectionPool writePool) {
+        this.writePool = writePool;
+
+        writer = new Thread(this::run, "write-pipeline");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Runs the operation in the next batch and waits for the batch to commit. An operation that times out or is
+    // interrupted before the writer gets to it is skipped. Once the writer has started it, the caller waits for the
+    // outcome however long that takes, as a write its caller was told failed must never commit.
+    public <T> T execute(Operation<T> operation) throws SQLException, IOException {
+        Task<T> task = enqueue(operation);
+
+        try {
+            return task.future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            if (task.claim()) {
+                task.fail(e);
+                throw new SQLException("Interrupted while waiting for a write", e);
+            }
+        } catch (TimeoutException e) {
+            if (task.claim()) {
+                task.fail(e);
+                throw new SQLException("Timed out after " + timeoutMillis + " ms waiting for a write", e);
+            }
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+
+        try {
+            return task.future.join();
+        } catch (CompletionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    // Completes with the operation's result once its batch has committed, or with what it or the commit threw
+    public <T> CompletableFuture<T> submit(Operation<T> operation) {
+        return enqueue(operation).future;
+    }
+
+    private <T> Task<T> enqueue(Operation<T> operation) {
+        Task<T> task = new Task<>(operation);
+
+        synchronized (this) {
+            if (stopped) {
+                task.fail(new SQLException("Write pipeline is stopped"));
+                return task;
+            }
+
+            queue.add(task);
+        }
+
+        return task;
+    }
+
+    // What an operation threw, to throw on to its caller
+    private static SQLException rethrow(Throwable cause) throws IOException {
+        if (cause instanceof SQLException) {
+            return (SQLException) cause;
+        } else if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+
+        // An Error in the writer, which the caller answers like any failed write
+        return new SQLException(cause);
+    }
+
+    // Finishes the operations already queued, then lets the writer thread end
+    public void stop() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+
+            stopped = true;
+            queue.add(stop);
+        }
+
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @Override
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public long getMaxLingerMillis() {
+        return maxLingerMillis;
+    }
+
+    @Override
+    public void setMaxLingerMillis(long maxLingerMillis) {
+        if (maxLingerMillis < 0) {
+            throw new IllegalArgumentException("Linger must not be negative");
+        }
+
+        this.maxLingerMillis = maxLingerMillis;
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    @Override
+    public void setTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("Timeout must be at least 1 ms");
+        }
+
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public int getQueued() {
+        return queue.size();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public long getOperations() {
+        return operations.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public double getAverageBatchSize() {
+        long batches = this.batches.sum();
+        return batches == 0 ? 0 : (double) operations.sum() / batches;
+    }
+
+    @Override
+    public long getLargestBatch() {
+        return largestBatch.get();
+    }
+
+    @Override
+    public double getAverageCommitMillis() {
+        long batches = this.batches.sum();
+        return batches == 0 ? 0 : commitNanos.sum() / 1e6 / batches;
+    }
+
+    private void run() {
+        List<Task<?>> batch = new ArrayList<>();
+        boolean last = false;
+
+        while (!last) {
+            try {
+                fill(batch);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Always the last one queued, so the batch holds everything that came before it
+            last = batch.remove(stop);
+
+            if (!batch.isEmpty()) {
+                try {
+                    runBatch(batch);
+                } catch (Throwable throwable) {
+                    // An Error such as a StackOverflowError must not end the thread, or every later write would wait
+                    // for it in vain. Whatever in the batch hasn't completed yet fails with it.
+                    throwable.printStackTrace();
+
+                    for (Task<?> task : batch) {
+                        if (task.fail(throwable)) {
+                            failed.increment();
+                        }
+                    }
+                }
+
+                batch.clear();
+            }
+        }
+    }
+
+    // Waits for the first operation, then takes more until the batch is full or the linger runs out
+    private void fill(List<Task<?>> batch) throws InterruptedException {
+        batch.add(queue.take());
+
+        int maxBatchSize = this.maxBatchSize;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+
+        while (batch.size() < maxBatchSize) {
+            queue.drainTo(batch, maxBatchSize - batch.size());
+
+            if (batch.contains(stop)) {
+                return;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatchSize || remaining <= 0) {
+                return;
+            }
+
+            Task<?> task = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (task == null) {
+                return;
+            }
+
+            batch.add(task);
+        }
+    }
+
+    private void runBatch(List<Task<?>> batch) {
+        List<Task<?>> succeeded = new ArrayList<>();
+
+        try (Connection connection = writePool.getConnection()) {
+            connection.setAutoCommit(false);
+
+            for (Task<?> task : batch) {
+                // Its caller gave up waiting
+                if (task.future.isDone() || !task.claim()) {
+                    continue;
+                }
+
+                Savepoint savepoint = connection.setSavepoint();
+
+                try {
+                    task.execute(connection);
+                    connection.releaseSavepoint(savepoint);
+                    succeeded.add(task);
+                } catch (SQLException | IOException | RuntimeException e) {
+                    connection.rollback(savepoint);
+                    connection.releaseSavepoint(savepoint);
+                    task.fail(e);
+                    failed.increment();
+                }
+            }
+
+            long started = System.nanoTime();
+            connection.commit();
+            commitNanos.add(System.nanoTime() - started);
+        } catch (SQLException e) {
+            // Nothing in the batch is committed, including the operations that succeeded so far
+            for (Task<?> task : batch) {
+                if (task.fail(e)) {
+                    failed.increment();
+                }
+            }
+
+            succeeded.clear();
+        }
+
+        batches.increment();
+        operations.add(batch.size());
+        largestBatch.accumulateAndGet(batch.size(), Math::max);
+
+        for (Task<?> task : succeeded) {
+            task.complete();
+        }
+    }
+
+    private static class Task<T> {
+        private final Operation<T> operation;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final AfterCommit afterCommit = new AfterCommit();
+        private T result;
+
+        // Taken by the writer to run the operation, or by a caller giving up to skip it, whichever comes first
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        Task(Operation<T> operation) {
+            this.operation = operation;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        void execute(Connection connection) throws SQLException, IOException {
+            result = operation.execute(connection, afterCommit);
+        }
+
+        void complete() {
+            try {
+                for (Runnable action : afterCommit.actions) {
+                    action.run();
+                }
+            } catch (RuntimeException e) {
+                // The writes are committed either way, so the caller still gets its result
+                e.printStackTrace();
+            } finally {
+                future.complete(result);
+            }
+        }
+
+        // Whether this failed the task, which it doesn't if the task already failed
+        boolean fail(Throwable throwable) {
+            return future.completeExceptionally(throwable);
+        }
+    }
+}
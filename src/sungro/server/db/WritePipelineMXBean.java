@@ -0,0 +1,29 @@
+package sungro.server.db;
+
+public interface WritePipelineMXBean {
+    int getMaxBatchSize();
+
+    void setMaxBatchSize(int maxBatchSize);
+
+    long getMaxLingerMillis();
+
+    void setMaxLingerMillis(long maxLingerMillis);
+
+    long getTimeoutMillis();
+
+    void setTimeoutMillis(long timeoutMillis);
+
+    int getQueued();
+
+    long getBatches();
+
+    long getOperations();
+
+    long getFailed();
+
+    double getAverageBatchSize();
+
+    long getLargestBatch();
+
+    double getAverageCommitMillis();
+}